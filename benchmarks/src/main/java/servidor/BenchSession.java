@@ -0,0 +1,45 @@
+package servidor;
+
+import protocolo.Codec;
+
+/**
+ * Sessão de chat sem conexão, para os benchmarks. Só conta o que recebe, o
+ * suficiente para que o JIT não descarte a entrega.
+ */
+final class BenchSession implements ChatSession {
+  private final String username;
+  private final Codec codec;
+  long frames;
+  long bytes;
+
+  BenchSession(String username, Codec codec) {
+    this.username = username;
+    this.codec = codec;
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public boolean supports(String feature) {
+    return false;
+  }
+
+  @Override
+  public Codec codec() {
+    return codec;
+  }
+
+  @Override
+  public void sendFrame(byte[] frame) {
+    frames++;
+    bytes += frame.length;
+  }
+
+  @Override
+  public int queuedFrames() {
+    return 0;
+  }
+}
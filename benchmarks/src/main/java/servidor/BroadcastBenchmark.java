@@ -0,0 +1,72 @@
+package servidor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocolo.Codec;
+
+/**
+ * Server.broadcastMessage com a sala cheia de sessões em memória: formata a
+ * linha, codifica uma vez por protocolo e entrega a cada membro, além de
+ * registrar no histórico. Com o profiler gc (padrão do Benchmarks), mostra
+ * também quantos bytes cada broadcast aloca, que não deve crescer com o
+ * número de membros.
+ *
+ * A caixa de entrada offline, o log de mensagens e o cluster ficam
+ * desligados; o log do servidor só registra avisos.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dserver.mailbox.enabled=false", "-Dserver.log.enabled=false",
+    "-Dserver.cluster.port=0", "-Dserver.logging.level=warn" })
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+  @Param({ "10", "100", "1000", "10000" })
+  int members;
+
+  /**
+   * Protocolo dos membros: todos em texto, todos binários, ou metade de cada
+   * (duas codificações por broadcast).
+   */
+  @Param({ "text", "binary", "mixed" })
+  String codecs;
+
+  private BenchSession[] sessions;
+
+  @Setup
+  public void setup() {
+    sessions = new BenchSession[members];
+    for (int i = 0; i < members; i++) {
+      boolean binary = "binary".equals(codecs) || "mixed".equals(codecs) && i % 2 == 1;
+      sessions[i] = new BenchSession("user" + i, binary ? Codec.BINARY : Codec.TEXT);
+      Server.addClient(sessions[i].getUsername(), sessions[i]);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (BenchSession session : sessions) {
+      Server.removeClient(session.getUsername(), session);
+    }
+  }
+
+  @Benchmark
+  public void broadcastMessage() {
+    Server.broadcastMessage("user0", "alguém já testou o upload retomável com arquivos grandes?");
+  }
+}
@@ -0,0 +1,153 @@
+package servidor;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocolo.BinaryCodec;
+import protocolo.Codec;
+import protocolo.ServerBound;
+import protocolo.TextCodec;
+
+/**
+ * Interpretação dos comandos do cliente (o que o ClientHandler e o NioServer
+ * fazem a cada mensagem recebida), nos dois protocolos, e a codificação de
+ * uma mensagem de chat para envio.
+ *
+ * O lado de texto começa dos bytes recebidos, como o ClientHandler: a
+ * conversão para String faz parte do custo, assim como no binário.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+  @Param({ "chat", "private", "sendfile", "history" })
+  String command;
+
+  private byte[] textLine;
+  private byte[] binaryFrame;
+  private final Commands commands = new Commands();
+  private final String message = "[14:30] ana: alguém já testou o upload retomável com arquivos grandes?";
+
+  /**
+   * Recebe os comandos decodificados e guarda o último, para que o JIT não
+   * descarte a decodificação.
+   */
+  static final class Commands implements ServerBound {
+    Object last;
+    long size;
+
+    @Override
+    public void chat(String message) {
+      last = message;
+    }
+
+    @Override
+    public void privateMessage(String recipient, String message) {
+      last = message;
+    }
+
+    @Override
+    public void sendFileRequest(String recipient, String fileName, long fileSize) {
+      last = fileName;
+      size = fileSize;
+    }
+
+    @Override
+    public void acceptFile(String sender) {
+      last = sender;
+    }
+
+    @Override
+    public void download(String fileName) {
+      last = fileName;
+    }
+
+    @Override
+    public void autoReceive(boolean enabled) {
+      size = enabled ? 1 : 0;
+    }
+
+    @Override
+    public void join(String room) {
+      last = room;
+    }
+
+    @Override
+    public void leave() {
+      last = null;
+    }
+
+    @Override
+    public void history(String query) {
+      last = query;
+    }
+
+    @Override
+    public void invalid(String usage) {
+      last = usage;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    textLine = encode(Codec.TEXT);
+    binaryFrame = encode(Codec.BINARY);
+  }
+
+  private byte[] encode(Codec codec) {
+    switch (command) {
+      case "chat":
+        return codec.chat("alguém já testou o upload retomável com arquivos grandes?");
+      case "private":
+        return codec.privateMessage("bob", "te mando o relatório daqui a pouco");
+      case "sendfile":
+        return codec.sendFileRequest("bob", "relatorio_final.pdf", 48_213_779L);
+      case "history":
+        return codec.history("#geral 2h 100");
+      default:
+        throw new IllegalArgumentException(command);
+    }
+  }
+
+  @Benchmark
+  public Object parseText() {
+    // A linha sem o '\n', como o BufferedReader a entrega.
+    TextCodec.decodeServerBound(new String(textLine, 0, textLine.length - 1, StandardCharsets.UTF_8), commands);
+    return commands.last;
+  }
+
+  @Benchmark
+  public Object parseBinary() throws ProtocolException {
+    // O quadro sem o tamanho, como BinaryCodec.readFrame o entrega.
+    BinaryCodec.decodeServerBound(ByteBuffer.wrap(binaryFrame, 4, binaryFrame.length - 4), commands);
+    return commands.last;
+  }
+
+  @Benchmark
+  public byte[] encodeText() {
+    return Codec.TEXT.message(message);
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return Codec.BINARY.message(message);
+  }
+}
@@ -0,0 +1,125 @@
+package servidor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Os laços de envio do FileDownloadHandler, enviando um arquivo inteiro por
+ * uma conexão local a um leitor que descarta os bytes:
+ * - zeroCopy: FileChannel.transferTo (sendfile no Linux);
+ * - buffer: leitura para um byte[] de 8 KB e escrita no stream do socket;
+ * - cache: escrita direto do MappedByteBuffer do FileCache.
+ *
+ * Um MappedByteBuffer tem no máximo 2 GB, e o FileCache não guarda arquivos
+ * desse tamanho: no servidor, eles vão sempre por zeroCopy ou buffer. Para
+ * comparar os três métodos também em 4 GB, o cache aqui mapeia o arquivo em
+ * regiões de até MAX_REGION bytes e as envia em sequência.
+ *
+ * Os arquivos são criados em java.io.tmpdir, que precisa ter espaço para o
+ * maior tamanho; para rodar só alguns, use por exemplo -p size=1048576.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.logging.level=warn")
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+  private static final long MAX_REGION = 1L << 30;
+
+  @Param({ "1048576", "67108864", "268435456", "1073741824", "4294967296" })
+  long size;
+
+  @Param({ "zeroCopy", "buffer", "cache" })
+  String method;
+
+  private Path path;
+  private FileChannel file;
+  private final List<ByteBuffer> mapped = new ArrayList<>();
+  private Loopback loopback;
+  private SocketChannel sender;
+  private OutputStream senderStream;
+  private ExecutorService reader;
+  private Future<Long> drained;
+
+  @Setup
+  public void setup() throws IOException {
+    path = Files.createTempFile("download-benchmark", ".bin");
+    byte[] block = new byte[1024 * 1024];
+    new Random(42).nextBytes(block);
+    try (OutputStream out = Files.newOutputStream(path)) {
+      for (long written = 0; written < size; written += block.length) {
+        out.write(block, 0, (int) Math.min(block.length, size - written));
+      }
+    }
+    file = FileChannel.open(path, StandardOpenOption.READ);
+    if ("cache".equals(method)) {
+      for (long position = 0; position < size; position += MAX_REGION) {
+        mapped.add(file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_REGION, size - position)));
+      }
+    }
+
+    loopback = new Loopback();
+    SocketChannel[] connection = loopback.connect();
+    sender = connection[1];
+    senderStream = sender.socket().getOutputStream();
+    reader = Executors.newSingleThreadExecutor();
+    drained = reader.submit(Loopback.drain(connection[0]));
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    sender.close();
+    drained.get();
+    reader.shutdown();
+    loopback.close();
+    file.close();
+    Files.delete(path);
+  }
+
+  @Benchmark
+  public void send() throws IOException {
+    switch (method) {
+      case "zeroCopy":
+        FileDownloadHandler.sendZeroCopy(file, 0, size, sender);
+        break;
+      case "buffer":
+        FileDownloadHandler.sendWithBuffer(file, 0, size, senderStream);
+        break;
+      case "cache":
+        for (ByteBuffer region : mapped) {
+          FileDownloadHandler.sendFromCache(region, 0, region.capacity(), sender);
+        }
+        break;
+      default:
+        throw new IllegalArgumentException(method);
+    }
+  }
+}
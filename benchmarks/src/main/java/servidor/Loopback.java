@@ -0,0 +1,57 @@
+package servidor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+
+/**
+ * Conexões TCP locais para os benchmarks de transferência.
+ */
+final class Loopback implements AutoCloseable {
+  private final ServerSocketChannel server;
+
+  Loopback() throws IOException {
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+  }
+
+  /**
+   * Abre uma conexão.
+   *
+   * @return O lado que conectou e o lado aceito, nessa ordem.
+   */
+  SocketChannel[] connect() throws IOException {
+    SocketChannel client = SocketChannel.open(server.getLocalAddress());
+    return new SocketChannel[] { client, server.accept() };
+  }
+
+  /**
+   * Tarefa que lê e descarta tudo o que chega no canal até o outro lado
+   * encerrar a conexão, e depois fecha o canal.
+   *
+   * @return Quantos bytes foram lidos.
+   */
+  static Callable<Long> drain(SocketChannel channel) {
+    return () -> {
+      try (SocketChannel reader = channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        long total = 0;
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+          total += read;
+          buffer.clear();
+        }
+        return total;
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+  }
+}
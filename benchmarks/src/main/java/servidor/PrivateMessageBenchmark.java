@@ -0,0 +1,66 @@
+package servidor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import protocolo.Codec;
+
+/**
+ * Server.sendPrivateMessage com muitos usuários conectados: a busca do
+ * destinatário e a entrega, e o caminho de um destinatário que não existe
+ * (que também consulta o diretório do cluster antes de avisar o remetente).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dserver.mailbox.enabled=false", "-Dserver.log.enabled=false",
+    "-Dserver.cluster.port=0", "-Dserver.logging.level=warn" })
+@State(Scope.Benchmark)
+public class PrivateMessageBenchmark {
+
+  @Param({ "10", "1000", "10000" })
+  int users;
+
+  private BenchSession[] sessions;
+  private String recipient;
+
+  @Setup
+  public void setup() {
+    sessions = new BenchSession[users];
+    for (int i = 0; i < users; i++) {
+      sessions[i] = new BenchSession("user" + i, Codec.TEXT);
+      Server.addClient(sessions[i].getUsername(), sessions[i]);
+    }
+    recipient = "user" + users / 2;
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (BenchSession session : sessions) {
+      Server.removeClient(session.getUsername(), session);
+    }
+  }
+
+  @Benchmark
+  public void online() {
+    Server.sendPrivateMessage("user0", recipient, "te mando o relatório daqui a pouco");
+  }
+
+  @Benchmark
+  public void unknown() {
+    Server.sendPrivateMessage("user0", "ninguem", "te mando o relatório daqui a pouco");
+  }
+}
@@ -0,0 +1,73 @@
+package servidor;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * O que o chat paga por observabilidade a cada evento: um contador e o
+ * histograma das métricas, e um evento no log do servidor, registrado ou
+ * filtrado pelo nível.
+ *
+ * Registrando sem parar, o log logo passa de 3/4 do buffer e entra na
+ * amostragem; é o custo com o log sob carga, que é quando ele importa. A
+ * saída do log vai para um stream vazio.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.logging.level=info")
+@State(Scope.Benchmark)
+public class RecordingBenchmark {
+  private final LatencyHistogram histogram = new LatencyHistogram();
+  private long value;
+
+  @Setup
+  public void setup() {
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  @Benchmark
+  public void counter() {
+    Metrics.Message.ROOM.count();
+  }
+
+  @Benchmark
+  public void histogram() {
+    // Valores diferentes a cada chamada, espalhados pelas faixas.
+    histogram.record(value++ & 0xFFFFF);
+  }
+
+  @Benchmark
+  public void broadcast() {
+    Metrics.broadcast(value++ & 0xFFFFF, 50);
+  }
+
+  @Benchmark
+  public void serverLogInfo() {
+    ServerLog.info("Usuário entrou no chat", "ana");
+  }
+
+  @Benchmark
+  public void serverLogTransfer() {
+    ServerLog.transfer(ServerLog.Level.INFO, "Upload concluído", 42, "ana", "relatorio.pdf", 1_048_576);
+  }
+
+  @Benchmark
+  public void serverLogFiltered() {
+    ServerLog.debug("Arquivo já está armazenado");
+  }
+}
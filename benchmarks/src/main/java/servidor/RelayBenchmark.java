@@ -0,0 +1,190 @@
+package servidor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * O repasse das transferências privadas no FileTransferHandler: cada um de
+ * streams remetentes locais envia size bytes e fecha a conexão, e o servidor
+ * repassa tudo, em paralelo, para destinatários que descartam os bytes.
+ * - direct: canais NIO com ByteBuffer direto (server.transfer.directRelay);
+ * - heap: streams do socket com byte[] de 8 KB.
+ *
+ * O repasse vai até o fim da conexão do remetente, então cada operação usa
+ * pares de conexões novos. A operação só termina quando todos os
+ * destinatários leram tudo.
+ *
+ * Além das operações por segundo, saem dois contadores:
+ * - bytes: bytes repassados por segundo, somando os streams;
+ * - cpuMsPerOp: tempo de CPU das threads de repasse por operação, medido com
+ *   o ThreadMXBean. Não inclui os remetentes e destinatários simulados.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.logging.level=warn")
+@State(Scope.Benchmark)
+public class RelayBenchmark {
+
+  @Param({ "1048576", "67108864" })
+  long size;
+
+  @Param({ "direct", "heap" })
+  String relay;
+
+  // Repasses simultâneos, cada um com a sua thread, como no servidor.
+  @Param({ "1", "4", "16" })
+  int streams;
+
+  /**
+   * Bytes repassados, por segundo.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Traffic {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  /**
+   * CPU das threads de repasse, por operação.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class CpuTime {
+    final AtomicLong nanos = new AtomicLong();
+    long operations;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      nanos.set(0);
+      operations = 0;
+    }
+
+    public double cpuMsPerOp() {
+      return operations == 0 ? 0 : nanos.get() / 1e6 / operations;
+    }
+  }
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final ByteBuffer data = ByteBuffer.allocateDirect(256 * 1024);
+  private Loopback loopback;
+  private ExecutorService peers;
+  private ExecutorService relays;
+  private SocketChannel[] fromSender;
+  private SocketChannel[] toRecipient;
+  private List<Future<Long>> received;
+
+  @Setup
+  public void setup() throws IOException {
+    loopback = new Loopback();
+    peers = Executors.newFixedThreadPool(2 * streams);
+    relays = Executors.newFixedThreadPool(streams);
+    fromSender = new SocketChannel[streams];
+    toRecipient = new SocketChannel[streams];
+  }
+
+  @Setup(Level.Invocation)
+  public void connect() throws IOException {
+    received = new ArrayList<>(streams);
+    for (int i = 0; i < streams; i++) {
+      SocketChannel[] sender = loopback.connect();
+      SocketChannel[] recipient = loopback.connect();
+      fromSender[i] = sender[1];
+      toRecipient[i] = recipient[0];
+      SocketChannel senderSide = sender[0];
+      peers.submit(() -> {
+        try (SocketChannel channel = senderSide) {
+          long remaining = size;
+          while (remaining > 0) {
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit((int) Math.min(chunk.capacity(), remaining));
+            remaining -= channel.write(chunk);
+          }
+        }
+        return null;
+      });
+      received.add(peers.submit(Loopback.drain(recipient[1])));
+    }
+  }
+
+  @TearDown(Level.Invocation)
+  public void disconnect() throws IOException {
+    for (int i = 0; i < streams; i++) {
+      fromSender[i].close();
+      toRecipient[i].close();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    relays.shutdownNow();
+    peers.shutdownNow();
+    loopback.close();
+  }
+
+  @Benchmark
+  public long relay(Traffic traffic, CpuTime cpu) throws Exception {
+    List<Future<?>> relayed = new ArrayList<>(streams);
+    for (int i = 0; i < streams; i++) {
+      SocketChannel from = fromSender[i];
+      SocketChannel to = toRecipient[i];
+      relayed.add(relays.submit(() -> {
+        long start = threads.getCurrentThreadCpuTime();
+        FileTransferHandler handler = new FileTransferHandler("ana", "bob");
+        if ("direct".equals(relay)) {
+          handler.relayChannels(from, to, from.socket().getReceiveBufferSize());
+        } else {
+          handler.relayStreams(from.socket(), to.socket());
+        }
+        // O repasse com streams já fecha o socket; o direto deixa aberto.
+        if (to.isOpen()) {
+          to.shutdownOutput();
+        }
+        cpu.nanos.addAndGet(threads.getCurrentThreadCpuTime() - start);
+        return null;
+      }));
+    }
+    for (Future<?> future : relayed) {
+      future.get();
+    }
+    long total = 0;
+    for (Future<Long> future : received) {
+      total += future.get();
+    }
+    traffic.bytes += total;
+    cpu.operations++;
+    return total;
+  }
+}
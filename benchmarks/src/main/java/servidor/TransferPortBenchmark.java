@@ -0,0 +1,61 @@
+package servidor;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Preparar uma transferência na porta única: gerar o token, registrar a rota
+ * e achá-la quando o cliente conecta. É o que substituiu a procura de uma
+ * porta livre (findAvailablePort) a cada transferência.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dserver.logging.level=warn")
+@State(Scope.Benchmark)
+public class TransferPortBenchmark {
+
+  /**
+   * Tokens de outras transferências já registrados.
+   */
+  @Param({ "0", "10000" })
+  int outstanding;
+
+  private final TransferPort.Route route = new TransferPort.Route() {
+    @Override
+    public void connected(Socket socket) {
+    }
+  };
+  private String reusable;
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < outstanding; i++) {
+      TransferPort.registerReusable(route);
+    }
+    reusable = TransferPort.registerReusable(route);
+  }
+
+  @Benchmark
+  public TransferPort.Route registerAndClaim() {
+    return TransferPort.claim(TransferPort.register(route));
+  }
+
+  @Benchmark
+  public TransferPort.Route claimReusable() {
+    return TransferPort.claim(reusable);
+  }
+}
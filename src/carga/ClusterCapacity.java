@@ -0,0 +1,336 @@
+package carga;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capacidade do cluster por número de nós: para cada executor em executors
+ * e cada quantidade de nós em nodes, sobe os servidores nesta máquina e roda
+ * o LoadGenerator com cada vez mais usuários, até um passo não se sustentar.
+ * Um passo se sustenta se todos os usuários continuam conectados no fim, a
+ * perda de mensagens de sala fica até maxLoss e o p99 da sala até maxP99.
+ *
+ * Além do pico, sai uma tabela com as threads da JVM e a memória residente
+ * dos nós em cada passo, lidas da porta de métricas com as sessões ainda
+ * abertas: é onde aparece o custo de uma thread por sessão (mode=blocking
+ * com o executor cached) frente às virtual threads.
+ *
+ * Uso: java -cp out carga.ClusterCapacity chave=valor ...
+ *
+ * Os servidores e o gerador rodam em processos separados, com o mesmo
+ * classpath deste. Como dividem a mesma máquina, o resultado mostra como a
+ * capacidade cresce com os nós, e não a de um cluster de verdade.
+ */
+public final class ClusterCapacity {
+  private static final String USAGE = String.join("\n",
+      "Uso: java -cp out carga.ClusterCapacity [chave=valor ...]",
+      "  nodes=1,2,4                quantidades de nós testadas",
+      "  start=200                  usuários por nó no primeiro passo",
+      "  growth=1.5                 fator de aumento dos usuários a cada passo",
+      "  max=20000                  usuários por nó no máximo",
+      "  duration=20                segundos de carga em cada passo",
+      "  chatPerUser=0.05           mensagens de sala por segundo, por usuário",
+      "  privatePerUser=0.02        mensagens privadas por segundo, por usuário",
+      "  roomSize=50                usuários por sala",
+      "  maxLoss=1                  perda máxima de mensagens de sala, em %",
+      "  maxP99=500                 p99 máximo da latência da sala, em ms",
+      "  mode=nio                   server.mode dos nós",
+      "  executors=cached,virtual   server.executor dos nós; compare com mode=blocking",
+      "  basePort=20000             chat em basePort+i, transferência +100, cluster +200, métricas +300",
+      "  dir=                       diretório dos nós (padrão: um diretório temporário)");
+  private static final long START_TIMEOUT_MS = 30000;
+
+  /**
+   * Resultado de um passo, lido da linha de resumo do LoadGenerator.
+   */
+  private static final class Step {
+    final int users;
+    final Map<String, String> values;
+
+    Step(int users, Map<String, String> values) {
+      this.users = users;
+      this.values = values;
+    }
+
+    double number(String key) {
+      String value = values.get(key);
+      return value == null ? Double.NaN : Double.parseDouble(value);
+    }
+
+    String resources() {
+      return String.format("%10.0f %10.1f %12.1f", number("threads"), number("rss_mb"),
+          number("rss_mb") * 1024 / users);
+    }
+
+    boolean sustained(double maxLoss, double maxP99) {
+      return number("conectados") == users && number("perda_sala") <= maxLoss && number("p99_sala_ms") <= maxP99;
+    }
+
+    String describe() {
+      return String.format("%d conectados, %.0f entregas/s, perda %.2f%%, p99 %.1fms", (long) number("conectados"),
+          number("entregas_s"), number("perda_sala"), number("p99_sala_ms"));
+    }
+  }
+
+  private ClusterCapacity() {
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Properties config = new Properties();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals <= 0) {
+        System.out.println(USAGE);
+        return;
+      }
+      config.setProperty(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+    }
+    List<Integer> nodeCounts = new ArrayList<>();
+    int start;
+    double growth;
+    int max;
+    double maxLoss;
+    double maxP99;
+    try {
+      for (String nodes : config.getProperty("nodes", "1,2,4").split(",")) {
+        nodeCounts.add(Integer.parseInt(nodes.trim()));
+      }
+      start = Integer.parseInt(config.getProperty("start", "200"));
+      growth = Math.max(1.1, Double.parseDouble(config.getProperty("growth", "1.5")));
+      max = Integer.parseInt(config.getProperty("max", "20000"));
+      maxLoss = Double.parseDouble(config.getProperty("maxLoss", "1"));
+      maxP99 = Double.parseDouble(config.getProperty("maxP99", "500"));
+    } catch (NumberFormatException e) {
+      System.out.println("Valor inválido: " + e.getMessage());
+      System.out.println(USAGE);
+      return;
+    }
+    String dir = config.getProperty("dir", "");
+    Path base = dir.isEmpty() ? Files.createTempDirectory("cluster-capacity") : Paths.get(dir);
+
+    List<String> table = new ArrayList<>();
+    List<String> resources = new ArrayList<>();
+    boolean limited = false;
+    for (String executor : config.getProperty("executors", "cached,virtual").split(",")) {
+      executor = executor.trim();
+      for (int nodes : nodeCounts) {
+        System.out.printf("%n== %d nó(s), executor %s ==%n", nodes, executor);
+        List<Process> servers = startNodes(config, base.resolve(executor + "-" + nodes + "-nos"), nodes, executor);
+        Step best = null;
+        boolean failed = false;
+        try {
+          for (int perNode = start; perNode <= max; perNode = Math.max(perNode + 1, (int) (perNode * growth))) {
+            Step step = run(config, nodes, perNode * nodes);
+            boolean sustained = step != null && step.sustained(maxLoss, maxP99);
+            System.out.printf("%6d usuários: %s%s%n", perNode * nodes, sustained ? "ok" : "não sustentou",
+                step == null ? " (gerador sem resumo)" : ", " + step.describe());
+            if (step != null) {
+              resources.add(String.format("%4d %-8s %10d %s%s", nodes, executor, step.users, step.resources(),
+                  sustained ? "" : " !"));
+            }
+            if (!sustained) {
+              failed = true;
+              break;
+            }
+            best = step;
+          }
+        } finally {
+          stop(servers);
+        }
+        table.add(best == null
+            ? String.format("%4d %-8s %14s %14s %14s %12s", nodes, executor, "-", "-", "-", "-")
+            : String.format("%4d %-8s %14d %14d %14.0f %10.1fms%s", nodes, executor, best.users, best.users / nodes,
+                best.number("entregas_s"), best.number("p99_sala_ms"), failed ? "" : " *"));
+        limited |= best != null && !failed;
+      }
+    }
+
+    System.out.printf("%nPico sustentado (perda até %.2f%%, p99 da sala até %.0fms):%n", maxLoss, maxP99);
+    System.out.printf("%4s %-8s %14s %14s %14s %12s%n", "nós", "executor", "sessões", "sessões/nó", "entregas/s",
+        "p99 sala");
+    for (String line : table) {
+      System.out.println(line);
+    }
+    if (limited) {
+      System.out.println("* chegou a max usuários por nó sem falhar; o pico real é maior.");
+    }
+
+    System.out.printf("%nThreads e memória residente por passo (somadas entre os nós):%n");
+    System.out.printf("%4s %-8s %10s %10s %10s %12s%n", "nós", "executor", "sessões", "threads", "RSS MB",
+        "KB/sessão");
+    boolean unsustained = false;
+    for (String line : resources) {
+      System.out.println(line);
+      unsustained |= line.endsWith(" !");
+    }
+    if (unsustained) {
+      System.out.println("! passo que não se sustentou.");
+    }
+  }
+
+  /**
+   * Sobe os nós, cada um no seu diretório, e espera todos se ligarem.
+   */
+  private static List<Process> startNodes(Properties config, Path dir, int nodes, String executor)
+      throws IOException, InterruptedException {
+    int basePort = Integer.parseInt(config.getProperty("basePort", "20000"));
+    byte[] secret = new byte[16];
+    new SecureRandom().nextBytes(secret);
+    StringBuilder hex = new StringBuilder();
+    for (byte b : secret) {
+      hex.append(String.format("%02x", b));
+    }
+
+    List<Process> servers = new ArrayList<>();
+    try {
+      for (int i = 0; i < nodes; i++) {
+        Path nodeDir = Files.createDirectories(dir.resolve("no-" + i));
+        List<String> command = java();
+        command.add("-Dserver.port=" + (basePort + i));
+        command.add("-Dserver.transfer.port=" + (basePort + 100 + i));
+        command.add("-Dserver.metrics.port=" + (basePort + 300 + i));
+        command.add("-Dserver.mode=" + config.getProperty("mode", "nio"));
+        command.add("-Dserver.executor=" + executor);
+        command.add("-Dserver.logging.level=warn");
+        if (nodes > 1) {
+          command.add("-Dserver.cluster.port=" + (basePort + 200 + i));
+          command.add("-Dserver.cluster.secret=" + hex);
+          if (i > 0) {
+            command.add("-Dserver.cluster.peers=localhost:" + (basePort + 200 + i - 1));
+          }
+        }
+        command.add("servidor.Server");
+        File log = nodeDir.resolve("servidor.log").toFile();
+        servers.add(new ProcessBuilder(command).directory(nodeDir.toFile()).redirectErrorStream(true)
+            .redirectOutput(log).start());
+      }
+      for (int i = 0; i < nodes; i++) {
+        awaitPeers(basePort + 300 + i, nodes - 1);
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      stop(servers);
+      throw e;
+    }
+    return servers;
+  }
+
+  /**
+   * Espera a porta de métricas do nó mostrar peers conexões com outros nós.
+   */
+  private static void awaitPeers(int metricsPort, int peers) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+    while (true) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress("localhost", metricsPort), 1000);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write("metrics\n".getBytes(StandardCharsets.US_ASCII));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        int connected = 0;
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+          if (line.startsWith("chat_cluster_peers_connected ")) {
+            connected = (int) Double.parseDouble(line.substring(line.indexOf(' ') + 1));
+          }
+        }
+        if (connected >= peers) {
+          return;
+        }
+      } catch (IOException e) {
+        // O nó ainda está subindo.
+      }
+      if (System.currentTimeMillis() > deadline) {
+        throw new IOException("O nó com métricas na porta " + metricsPort + " não ficou pronto");
+      }
+      TimeUnit.MILLISECONDS.sleep(200);
+    }
+  }
+
+  /**
+   * Roda o LoadGenerator com users usuários divididos entre os nós.
+   *
+   * @return O resultado, ou null se o gerador terminou sem a linha de resumo.
+   */
+  private static Step run(Properties config, int nodes, int users) throws IOException, InterruptedException {
+    int basePort = Integer.parseInt(config.getProperty("basePort", "20000"));
+    int duration = Integer.parseInt(config.getProperty("duration", "20"));
+    double chatPerUser = Double.parseDouble(config.getProperty("chatPerUser", "0.05"));
+    double privatePerUser = Double.parseDouble(config.getProperty("privatePerUser", "0.02"));
+    int roomSize = Math.max(1, Integer.parseInt(config.getProperty("roomSize", "50")));
+
+    StringBuilder servers = new StringBuilder();
+    StringBuilder metrics = new StringBuilder();
+    for (int i = 0; i < nodes; i++) {
+      servers.append(i == 0 ? "" : ",").append("localhost:").append(basePort + i);
+      metrics.append(i == 0 ? "" : ",").append("localhost:").append(basePort + 300 + i);
+    }
+    List<String> command = java();
+    command.add(LoadGenerator.class.getName());
+    command.add("servers=" + servers);
+    command.add("metrics=" + metrics);
+    command.add("users=" + users);
+    command.add("rooms=" + Math.max(1, users / roomSize));
+    // Cerca de 500 conexões por segundo na rampa.
+    command.add("ramp=" + Math.max(5, users / 500));
+    command.add("duration=" + duration);
+    command.add("report=" + duration);
+    command.add(String.format(Locale.ROOT, "chatRate=%.2f", chatPerUser * users));
+    command.add(String.format(Locale.ROOT, "privateRate=%.2f", privatePerUser * users));
+
+    Process generator = new ProcessBuilder(command).redirectErrorStream(true).start();
+    Map<String, String> summary = null;
+    try (BufferedReader in = new BufferedReader(
+        new InputStreamReader(generator.getInputStream(), StandardCharsets.UTF_8))) {
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        if (line.startsWith(LoadGenerator.SUMMARY)) {
+          summary = new HashMap<>();
+          for (String field : line.substring(LoadGenerator.SUMMARY.length()).trim().split(" ")) {
+            int equals = field.indexOf('=');
+            summary.put(field.substring(0, equals), field.substring(equals + 1));
+          }
+        }
+      }
+    } finally {
+      if (!generator.waitFor(1, TimeUnit.MINUTES)) {
+        generator.destroyForcibly();
+      }
+    }
+    return summary == null ? null : new Step(users, summary);
+  }
+
+  /**
+   * Início da linha de comando de uma JVM com o mesmo classpath desta.
+   */
+  private static List<String> java() {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    return command;
+  }
+
+  private static void stop(List<Process> servers) throws InterruptedException {
+    for (Process server : servers) {
+      server.destroy();
+    }
+    for (Process server : servers) {
+      if (!server.waitFor(10, TimeUnit.SECONDS)) {
+        server.destroyForcibly();
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package carga;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Proxy local que simula uma rede com latência para as conexões de
+ * transferência. Cada sentido atrasa os bytes em metade do RTT e tem no
+ * máximo window bytes em trânsito, como uma janela TCP: uma conexão sozinha
+ * fica limitada a cerca de window / (RTT / 2), e é aí que o download em
+ * várias conexões faz diferença.
+ *
+ * Um proxy é aberto por destino (host:porta da porta de transferência), na
+ * primeira conexão.
+ */
+final class DelayProxy {
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  /**
+   * Bytes lidos de um lado, com o horário em que podem ser entregues ao
+   * outro. data null marca o fim do sentido.
+   */
+  private static final class Chunk {
+    final long due;
+    final byte[] data;
+
+    Chunk(long due, byte[] data) {
+      this.due = due;
+      this.data = data;
+    }
+  }
+
+  private final long delayNanos;
+  private final int windowChunks;
+  private final Map<String, InetSocketAddress> proxies = new ConcurrentHashMap<>();
+
+  /**
+   * @param rttMillis RTT simulado.
+   * @param window    Bytes em trânsito por sentido de cada conexão.
+   */
+  DelayProxy(long rttMillis, int window) {
+    this.delayNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis) / 2;
+    this.windowChunks = Math.max(1, window / CHUNK_SIZE);
+  }
+
+  /**
+   * Conecta ao destino passando pelo proxy.
+   */
+  Socket connect(String host, int port) throws IOException {
+    InetSocketAddress local;
+    try {
+      local = proxies.computeIfAbsent(host + ":" + port, key -> start(host, port));
+    } catch (IllegalStateException e) {
+      throw new IOException(e.getMessage(), e.getCause());
+    }
+    return new Socket(local.getAddress(), local.getPort());
+  }
+
+  private InetSocketAddress start(String host, int port) {
+    try {
+      ServerSocket server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+      daemon("proxy-" + port, () -> {
+        while (!server.isClosed()) {
+          try {
+            Socket client = server.accept();
+            Socket target = new Socket(host, port);
+            // Os dois sockets fecham quando os dois sentidos terminarem.
+            AtomicInteger open = new AtomicInteger(2);
+            Runnable done = () -> {
+              if (open.decrementAndGet() == 0) {
+                closeQuietly(client);
+                closeQuietly(target);
+              }
+            };
+            pipe(client, target, done);
+            pipe(target, client, done);
+          } catch (IOException e) {
+            System.err.println("Proxy de latência: " + e.getMessage());
+          }
+        }
+        return null;
+      });
+      return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    } catch (IOException e) {
+      throw new IllegalStateException("Não foi possível abrir o proxy de latência", e);
+    }
+  }
+
+  /**
+   * Repassa um sentido da conexão: uma thread lê e põe os blocos na fila com
+   * o horário em que podem sair; outra espera esse horário e escreve.
+   */
+  private void pipe(Socket from, Socket to, Runnable done) {
+    BlockingQueue<Chunk> line = new ArrayBlockingQueue<>(windowChunks);
+    daemon("proxy-reader", () -> {
+      try {
+        InputStream in = from.getInputStream();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          line.put(new Chunk(System.nanoTime() + delayNanos, Arrays.copyOf(buffer, read)));
+        }
+      } catch (IOException e) {
+        // Conexão encerrada; o escritor termina ao receber o fim.
+      }
+      line.put(new Chunk(System.nanoTime() + delayNanos, null));
+      return null;
+    });
+    daemon("proxy-writer", () -> {
+      try {
+        OutputStream out = to.getOutputStream();
+        while (true) {
+          Chunk chunk = line.take();
+          long wait = chunk.due - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+          if (chunk.data == null) {
+            to.shutdownOutput();
+            break;
+          }
+          out.write(chunk.data);
+        }
+      } catch (IOException e) {
+        // O outro lado fechou; não há para onde repassar.
+        closeQuietly(from);
+        closeQuietly(to);
+      }
+      done.run();
+      return null;
+    });
+  }
+
+  /**
+   * As threads do proxy nunca são interrompidas; a interrupção só encerra a
+   * thread.
+   */
+  private static void daemon(String name, Callable<Void> task) {
+    Thread thread = new Thread(() -> {
+      try {
+        task.call();
+      } catch (Exception e) {
+        Thread.currentThread().interrupt();
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
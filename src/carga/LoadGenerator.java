@@ -0,0 +1,506 @@
+package carga;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+import servidor.LatencyHistogram;
+
+/**
+ * Gerador de carga: abre muitas sessões simuladas contra um servidor (ou os
+ * nós de um cluster) e mede a latência de entrega de ponta a ponta, a vazão e
+ * as falhas.
+ *
+ * Uso: java -cp out carga.LoadGenerator chave=valor ...
+ *
+ * As mensagens e os arquivos saem em horários programados, num ritmo fixo,
+ * independente de o servidor estar atrasado; a latência é medida a partir do
+ * horário programado, então um servidor lento aparece nos percentis em vez
+ * de só diminuir o ritmo do teste.
+ */
+public final class LoadGenerator {
+  static final int TRANSFER_TIMEOUT = 30000;
+  private static final String USAGE = String.join("\n",
+      "Uso: java -cp out carga.LoadGenerator [chave=valor ...]",
+      "  servers=localhost:12345    host:porta de chat, separados por vírgula (usuários divididos entre eles)",
+      "  users=100                  sessões simuladas",
+      "  rooms=1                    salas; com mais de uma, os usuários se dividem entre carga-0, carga-1, ...",
+      "  prefix=carga               prefixo dos nomes de usuário",
+      "  ramp=10                    segundos para conectar todos os usuários",
+      "  duration=60                segundos de carga depois da conexão",
+      "  drain=5                    segundos esperando entregas atrasadas no fim",
+      "  chatRate=50                mensagens de sala por segundo (no total)",
+      "  privateRate=10             mensagens privadas por segundo (no total)",
+      "  uploadRate=0               arquivos compartilhados com @all por minuto",
+      "  privateFileRate=0          arquivos privados por minuto",
+      "  fileSize=1m                tamanho dos arquivos sintéticos (sufixos k, m, g)",
+      "  downloadFraction=0.1       fração da sala que baixa cada arquivo compartilhado",
+      "  downloadStreams=1          conexões paralelas por download (faixas do arquivo)",
+      "  binary=false               negocia o protocolo binary-v1",
+      "  latencyMs=0                RTT simulado nas conexões de transferência",
+      "  window=256k                bytes em trânsito por sentido com latencyMs",
+      "  report=5                   segundos entre as linhas de progresso",
+      "  metrics=                   host:porta de métricas dos servidores, lidas no início e no fim");
+  // Início da última linha do resumo.
+  static final String SUMMARY = "resumo:";
+  // Séries das métricas do servidor mostradas no resumo.
+  private static final List<String> SCRAPED = Arrays.asList("chat_users_connected",
+      "chat_broadcast_fanout_seconds", "chat_outbound_queue_max", "chat_outbound_dropped_total",
+      "chat_outbound_slow_consumers_total", "chat_transfer_port_failures_total", "chat_server_log_dropped_total",
+      "jvm_threads", "jvm_heap_used_bytes", "process_resident_memory_bytes");
+
+  /**
+   * Configuração do teste, lida dos argumentos.
+   */
+  static final class Settings {
+    final List<String> servers;
+    final int users;
+    final int rooms;
+    final String prefix;
+    final int rampSeconds;
+    final int durationSeconds;
+    final int drainSeconds;
+    final double chatRate;
+    final double privateRate;
+    final double uploadRate;
+    final double privateFileRate;
+    final long fileSize;
+    final double downloadFraction;
+    final int downloadStreams;
+    final boolean binary;
+    final long latencyMs;
+    final int reportSeconds;
+    final List<String> metrics;
+    // Proxy com latência para as transferências, ou null.
+    final DelayProxy proxy;
+
+    Settings(Properties config) {
+      servers = list(config.getProperty("servers", "localhost:12345"));
+      users = Integer.parseInt(config.getProperty("users", "100"));
+      rooms = Math.max(1, Integer.parseInt(config.getProperty("rooms", "1")));
+      prefix = config.getProperty("prefix", "carga");
+      rampSeconds = Integer.parseInt(config.getProperty("ramp", "10"));
+      durationSeconds = Integer.parseInt(config.getProperty("duration", "60"));
+      drainSeconds = Integer.parseInt(config.getProperty("drain", "5"));
+      chatRate = Double.parseDouble(config.getProperty("chatRate", "50"));
+      privateRate = Double.parseDouble(config.getProperty("privateRate", "10"));
+      uploadRate = Double.parseDouble(config.getProperty("uploadRate", "0")) / 60;
+      privateFileRate = Double.parseDouble(config.getProperty("privateFileRate", "0")) / 60;
+      fileSize = size(config.getProperty("fileSize", "1m"));
+      downloadFraction = Double.parseDouble(config.getProperty("downloadFraction", "0.1"));
+      downloadStreams = Math.max(1, Integer.parseInt(config.getProperty("downloadStreams", "1")));
+      binary = Boolean.parseBoolean(config.getProperty("binary", "false"));
+      latencyMs = Long.parseLong(config.getProperty("latencyMs", "0"));
+      reportSeconds = Math.max(1, Integer.parseInt(config.getProperty("report", "5")));
+      metrics = list(config.getProperty("metrics", ""));
+      proxy = latencyMs > 0 ? new DelayProxy(latencyMs, (int) size(config.getProperty("window", "256k"))) : null;
+    }
+
+    private static List<String> list(String value) {
+      List<String> items = new ArrayList<>();
+      for (String item : value.split(",")) {
+        if (!item.trim().isEmpty()) {
+          items.add(item.trim());
+        }
+      }
+      return items;
+    }
+
+    private static long size(String value) {
+      String number = value.trim().toLowerCase(Locale.ROOT);
+      long unit = 1;
+      if (number.endsWith("k")) {
+        unit = 1024;
+      } else if (number.endsWith("m")) {
+        unit = 1024 * 1024;
+      } else if (number.endsWith("g")) {
+        unit = 1024 * 1024 * 1024;
+      }
+      if (unit > 1) {
+        number = number.substring(0, number.length() - 1);
+      }
+      return Long.parseLong(number) * unit;
+    }
+  }
+
+  // Transferências de arquivo (uploads, downloads e cada faixa deles).
+  static final ExecutorService transfers = Executors.newCachedThreadPool(task -> {
+    Thread thread = new Thread(task, "carga-transfer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  // Bytes de arquivo enviados e recebidos, para a vazão do relatório.
+  static final LongAdder transferredBytes = new LongAdder();
+
+  private static AtomicIntegerArray roomMembers;
+  private static volatile boolean running = true;
+
+  private LoadGenerator() {
+  }
+
+  static String roomName(int room) {
+    return "carga-" + room;
+  }
+
+  static int roomSize(int room) {
+    return roomMembers.get(room);
+  }
+
+  static void enterRoom(int room) {
+    roomMembers.incrementAndGet(room);
+  }
+
+  static void leaveRoom(int room) {
+    roomMembers.decrementAndGet(room);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    Properties config = new Properties();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals <= 0) {
+        System.out.println(USAGE);
+        return;
+      }
+      config.setProperty(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+    }
+    Settings settings;
+    try {
+      settings = new Settings(config);
+    } catch (NumberFormatException e) {
+      System.out.println("Valor inválido: " + e.getMessage());
+      System.out.println(USAGE);
+      return;
+    }
+    roomMembers = new AtomicIntegerArray(settings.rooms);
+
+    System.out.printf("Gerador de carga: %d usuários em %s, %d sala(s), %.1f msg/s na sala, %.1f privadas/s%n",
+        settings.users, settings.servers, settings.rooms, settings.chatRate, settings.privateRate);
+    if (settings.uploadRate > 0 || settings.privateFileRate > 0) {
+      System.out.printf("Arquivos de %s: %.1f/min para @all, %.1f/min privados, %d conexão(ões) por download%s%n",
+          bytes(settings.fileSize), settings.uploadRate * 60, settings.privateFileRate * 60, settings.downloadStreams,
+          settings.latencyMs > 0 ? ", RTT simulado de " + settings.latencyMs + " ms" : "");
+    }
+    List<String> before = scrape(settings.metrics);
+
+    SimulatedUser[] users = connect(settings);
+    System.out.printf("%d de %d usuários conectados.%n", LoadStats.connected.sum(), settings.users);
+
+    List<Thread> pacers = new ArrayList<>();
+    pacers.add(pace("carga-chat", settings.chatRate, due -> {
+      SimulatedUser sender = pick(users);
+      if (sender != null) {
+        sender.chat(due);
+      }
+    }));
+    pacers.add(pace("carga-private", settings.privateRate, due -> {
+      SimulatedUser sender = pick(users);
+      SimulatedUser recipient = pick(users);
+      if (sender != null && recipient != null && sender != recipient) {
+        sender.privateTo(recipient, due);
+      }
+    }));
+    AtomicLong uploads = new AtomicLong();
+    pacers.add(pace("carga-upload", settings.uploadRate, due -> {
+      SimulatedUser sender = pick(users);
+      if (sender != null) {
+        sender.shareFile(uploads.incrementAndGet());
+      }
+    }));
+    pacers.add(pace("carga-private-file", settings.privateFileRate, due -> {
+      SimulatedUser sender = pick(users);
+      SimulatedUser recipient = pick(users);
+      if (sender != null && recipient != null && sender != recipient) {
+        sender.offerFile(recipient);
+      }
+    }));
+
+    long start = System.nanoTime();
+    report(settings, start, TimeUnit.SECONDS.toNanos(settings.durationSeconds));
+    running = false;
+    for (Thread pacer : pacers) {
+      pacer.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    // Entregas e transferências ainda em andamento.
+    TimeUnit.SECONDS.sleep(settings.drainSeconds);
+
+    // Lidas antes de desconectar, com as sessões ainda abertas no servidor.
+    List<String> after = scrape(settings.metrics);
+    summary(settings, elapsed, after);
+    printMetrics(settings.metrics, before, after);
+    for (SimulatedUser user : users) {
+      user.close();
+    }
+    transfers.shutdownNow();
+  }
+
+  /**
+   * Conecta os usuários espalhados pelo tempo de rampa. Cada servidor da
+   * lista recebe um usuário por vez.
+   */
+  private static SimulatedUser[] connect(Settings settings) throws InterruptedException {
+    SimulatedUser[] users = new SimulatedUser[settings.users];
+    ExecutorService connector = Executors.newFixedThreadPool(8);
+    long interval = settings.users == 0 ? 0 : TimeUnit.SECONDS.toNanos(settings.rampSeconds) / settings.users;
+    long start = System.nanoTime();
+    for (int i = 0; i < users.length; i++) {
+      String[] server = settings.servers.get(i % settings.servers.size()).split(":");
+      users[i] = new SimulatedUser(settings, settings.prefix + i, i % settings.rooms, server[0],
+          Integer.parseInt(server[1]));
+      parkUntil(start + i * interval);
+      connector.execute(users[i]::connect);
+    }
+    connector.shutdown();
+    connector.awaitTermination(1, TimeUnit.MINUTES);
+    // Espera a confirmação dos logins ainda em trânsito.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (LoadStats.connected.sum() + LoadStats.Failure.CONNECT.count.sum()
+        + LoadStats.Failure.LOGIN_REJECTED.count.sum() < settings.users
+        && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(50);
+    }
+    return users;
+  }
+
+  /**
+   * Um usuário conectado qualquer, ou null se nenhum dos sorteados estiver.
+   */
+  private static SimulatedUser pick(SimulatedUser[] users) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int attempt = 0; attempt < 8; attempt++) {
+      SimulatedUser user = users[random.nextInt(users.length)];
+      if (user.isConnected()) {
+        return user;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Thread que executa action perSecond vezes por segundo, passando o
+   * horário programado de cada execução. Se atrasar, executa as pendentes em
+   * seguida, sem esperar: o ritmo não cai junto com o servidor.
+   */
+  private static Thread pace(String name, double perSecond, LongConsumer action) {
+    Thread thread = new Thread(() -> {
+      if (perSecond <= 0) {
+        return;
+      }
+      double interval = 1e9 / perSecond;
+      long start = System.nanoTime();
+      for (long n = 0; running; n++) {
+        long due = start + (long) (n * interval);
+        parkUntil(due);
+        if (running) {
+          action.accept(due);
+        }
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  private static void parkUntil(long due) {
+    for (long wait = due - System.nanoTime(); wait > 0 && running; wait = due - System.nanoTime()) {
+      LockSupport.parkNanos(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(200)));
+    }
+  }
+
+  /**
+   * Imprime uma linha de progresso a cada settings.reportSeconds até o fim
+   * da duração, com as taxas e os percentis só do intervalo.
+   */
+  private static void report(Settings settings, long start, long duration) throws InterruptedException {
+    long[] previousLatency = LoadStats.Message.ROOM.latency.snapshot();
+    long previousSent = sent();
+    long previousDelivered = delivered();
+    long previousBytes = transferredBytes.sum();
+    long previousFailures = LoadStats.failures();
+    long previousTime = start;
+    long interval = TimeUnit.SECONDS.toNanos(settings.reportSeconds);
+    for (long next = start + interval; next - start <= duration; next += interval) {
+      TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+      long now = System.nanoTime();
+      double seconds = (now - previousTime) / 1e9;
+      long[] latency = LoadStats.Message.ROOM.latency.snapshot();
+      long[] window = new long[latency.length];
+      for (int i = 0; i < latency.length; i++) {
+        window[i] = latency[i] - previousLatency[i];
+      }
+      long sent = sent();
+      long delivered = delivered();
+      long bytes = transferredBytes.sum();
+      long failures = LoadStats.failures();
+      System.out.printf("%4ds | conectados %d | enviadas %.0f/s | entregues %.0f/s | sala p50 %s p99 %s p99,9 %s"
+          + " | arquivos %.1f MB/s | falhas %d%n",
+          TimeUnit.NANOSECONDS.toSeconds(now - start), LoadStats.connected.sum(),
+          (sent - previousSent) / seconds, (delivered - previousDelivered) / seconds,
+          millis(LatencyHistogram.quantile(window, 0.5)), millis(LatencyHistogram.quantile(window, 0.99)),
+          millis(LatencyHistogram.quantile(window, 0.999)), (bytes - previousBytes) / seconds / 1e6,
+          failures - previousFailures);
+      previousLatency = latency;
+      previousSent = sent;
+      previousDelivered = delivered;
+      previousBytes = bytes;
+      previousFailures = failures;
+      previousTime = now;
+    }
+    TimeUnit.NANOSECONDS.sleep(Math.max(0, start + duration - System.nanoTime()));
+  }
+
+  private static void summary(Settings settings, long elapsed, List<String> metrics) {
+    double seconds = elapsed / 1e9;
+    System.out.printf("%nResultado: %.0f s de carga, %d usuários (%d conectados no fim)%n", seconds,
+        settings.users, LoadStats.connected.sum());
+
+    System.out.printf("%-10s %10s %12s %12s %9s %10s %10s %10s %10s%n", "mensagens", "enviadas", "esperadas",
+        "entregues", "perdidas", "entregas/s", "p50", "p99", "p99,9");
+    for (LoadStats.Message type : LoadStats.Message.values()) {
+      long[] latency = type.latency.snapshot();
+      long expected = type.expected.sum();
+      long delivered = type.delivered.sum();
+      System.out.printf("%-10s %10d %12d %12d %8.2f%% %10.0f %10s %10s %10s%n",
+          type == LoadStats.Message.ROOM ? "sala" : "privadas", type.sent.sum(), expected, delivered,
+          expected == 0 ? 0.0 : Math.max(0, expected - delivered) * 100.0 / expected, delivered / seconds,
+          millis(LatencyHistogram.quantile(latency, 0.5)), millis(LatencyHistogram.quantile(latency, 0.99)),
+          millis(LatencyHistogram.quantile(latency, 0.999)));
+    }
+
+    if (LoadStats.Transfer.UPLOAD.started.sum() + LoadStats.Transfer.PRIVATE.started.sum() > 0) {
+      System.out.printf("%-10s %10s %12s %12s %10s %10s %10s%n", "arquivos", "iniciados", "concluídos", "bytes",
+          "MB/s", "p50", "p99");
+      for (LoadStats.Transfer type : LoadStats.Transfer.values()) {
+        long[] duration = type.duration.snapshot();
+        System.out.printf("%-10s %10d %12d %12s %10.1f %10s %10s%n", type.name().toLowerCase(Locale.ROOT),
+            type.started.sum(), type.finished.sum(), bytes(type.bytes.sum()), type.bytes.sum() / seconds / 1e6,
+            millis(LatencyHistogram.quantile(duration, 0.5)), millis(LatencyHistogram.quantile(duration, 0.99)));
+      }
+    }
+
+    StringBuilder failures = new StringBuilder();
+    for (LoadStats.Failure failure : LoadStats.Failure.values()) {
+      if (failure.count.sum() > 0) {
+        failures.append(' ').append(failure.name().toLowerCase(Locale.ROOT)).append('=').append(failure.count.sum());
+      }
+    }
+    long attempts = settings.users + sent() + LoadStats.Transfer.UPLOAD.started.sum()
+        + LoadStats.Transfer.DOWNLOAD.started.sum() + LoadStats.Transfer.PRIVATE.started.sum();
+    System.out.printf("falhas: %d (%.3f%% das operações)%s%n", LoadStats.failures(),
+        attempts == 0 ? 0.0 : LoadStats.failures() * 100.0 / attempts, failures);
+
+    // Uma linha chave=valor, sem formatação regional, lida pelo ClusterCapacity.
+    // Com metrics, também as threads e a memória residente, somadas entre os
+    // servidores.
+    long expected = LoadStats.Message.ROOM.expected.sum();
+    long lost = Math.max(0, expected - LoadStats.Message.ROOM.delivered.sum());
+    String resources = settings.metrics.isEmpty() ? ""
+        : String.format(Locale.ROOT, " threads=%.0f rss_mb=%.1f", sum(metrics, "jvm_threads"),
+            sum(metrics, "process_resident_memory_bytes") / (1024 * 1024));
+    System.out.printf(Locale.ROOT, "%s usuarios=%d conectados=%d entregas_s=%.1f perda_sala=%.4f p99_sala_ms=%.2f"
+        + " falhas=%d%s%n", SUMMARY, settings.users, LoadStats.connected.sum(), delivered() / seconds,
+        expected == 0 ? 0.0 : lost * 100.0 / expected,
+        LatencyHistogram.quantile(LoadStats.Message.ROOM.latency.snapshot(), 0.99) / 1e6, LoadStats.failures(),
+        resources);
+  }
+
+  /**
+   * Soma uma série lida por scrape em todos os servidores; NaN se algum
+   * servidor não respondeu.
+   */
+  private static double sum(List<String> scraped, String series) {
+    double total = 0;
+    for (String line : scraped) {
+      if (line.contains(" indisponível")) {
+        return Double.NaN;
+      }
+      String sample = line.substring(line.indexOf(' ') + 1);
+      if (sample.startsWith(series + " ")) {
+        total += Double.parseDouble(sample.substring(series.length() + 1));
+      }
+    }
+    return total;
+  }
+
+  private static long sent() {
+    return LoadStats.Message.ROOM.sent.sum() + LoadStats.Message.PRIVATE.sent.sum();
+  }
+
+  private static long delivered() {
+    return LoadStats.Message.ROOM.delivered.sum() + LoadStats.Message.PRIVATE.delivered.sum();
+  }
+
+  /**
+   * Lê a porta de métricas de cada servidor e guarda só as séries de SCRAPED,
+   * prefixadas com o endereço.
+   */
+  private static List<String> scrape(List<String> endpoints) {
+    List<String> lines = new ArrayList<>();
+    for (String endpoint : endpoints) {
+      String[] address = endpoint.split(":");
+      try (Socket socket = new Socket(address[0], Integer.parseInt(address[1]))) {
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write("metrics\n".getBytes(StandardCharsets.US_ASCII));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+          if (!line.startsWith("#") && SCRAPED.contains(line.split("[{ ]")[0])) {
+            lines.add(endpoint + " " + line);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        lines.add(endpoint + " indisponível: " + e.getMessage());
+      }
+    }
+    return lines;
+  }
+
+  private static void printMetrics(List<String> endpoints, List<String> before, List<String> after) {
+    if (endpoints.isEmpty()) {
+      return;
+    }
+    System.out.println("\nMétricas dos servidores (antes -> depois):");
+    for (String line : after) {
+      if (line.contains(" indisponível")) {
+        System.out.println("  " + line);
+        continue;
+      }
+      int value = line.lastIndexOf(' ');
+      String series = line.substring(0, value);
+      String previous = "-";
+      for (String old : before) {
+        if (old.startsWith(series + " ")) {
+          previous = old.substring(series.length() + 1);
+        }
+      }
+      System.out.println("  " + series + " " + previous + " -> " + line.substring(value + 1));
+    }
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.2fms", nanos / 1e6);
+  }
+
+  private static String bytes(long bytes) {
+    if (bytes >= 1024 * 1024) {
+      return String.format("%.1fMB", bytes / (1024.0 * 1024));
+    }
+    return String.format("%.1fKB", bytes / 1024.0);
+  }
+}
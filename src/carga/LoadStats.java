@@ -0,0 +1,72 @@
+package carga;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import servidor.LatencyHistogram;
+
+/**
+ * Contadores e histogramas do gerador de carga. Tudo é somado sem lock pelas
+ * threads dos usuários simulados e lido pelo relatório.
+ */
+final class LoadStats {
+
+  /**
+   * Tipos de mensagem com latência medida de ponta a ponta.
+   */
+  enum Message {
+    ROOM, PRIVATE;
+
+    // Mensagens enviadas e entregas esperadas (uma por destinatário).
+    final LongAdder sent = new LongAdder();
+    final LongAdder expected = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    // Do horário programado do envio até a entrega, em nanossegundos.
+    final LatencyHistogram latency = new LatencyHistogram();
+  }
+
+  /**
+   * Transferências de arquivo, cronometradas do pedido no chat até o último
+   * byte.
+   */
+  enum Transfer {
+    UPLOAD, DOWNLOAD, PRIVATE;
+
+    final LongAdder started = new LongAdder();
+    final LongAdder finished = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LatencyHistogram duration = new LatencyHistogram();
+  }
+
+  enum Failure {
+    // Não conectou, ou a conexão caiu antes do login terminar.
+    CONNECT,
+    // O servidor recusou o nome (em uso ou inválido).
+    LOGIN_REJECTED,
+    // A conexão de chat caiu durante o teste.
+    DISCONNECT,
+    // Escrita no chat falhou.
+    SEND,
+    UPLOAD,
+    DOWNLOAD,
+    PRIVATE_TRANSFER;
+
+    final LongAdder count = new LongAdder();
+  }
+
+  static final LongAdder connected = new LongAdder();
+
+  private LoadStats() {
+  }
+
+  static void fail(Failure failure) {
+    failure.count.increment();
+  }
+
+  static long failures() {
+    long total = 0;
+    for (Failure failure : Failure.values()) {
+      total += failure.count.sum();
+    }
+    return total;
+  }
+}
@@ -0,0 +1,470 @@
+package carga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import protocolo.BinaryCodec;
+import protocolo.ClientBound;
+import protocolo.Codec;
+import protocolo.Compression;
+import protocolo.TextCodec;
+
+/**
+ * Uma sessão de chat simulada. Conecta, faz login, entra na sala e fica
+ * lendo o que o servidor envia numa thread própria; os envios são feitos
+ * pelas threads do LoadGenerator, que chamam chat(), privateTo(),
+ * shareFile() e offerFile() no ritmo configurado.
+ *
+ * As mensagens levam o horário programado do envio (System.nanoTime()) no
+ * texto, depois de MARK; quem recebe calcula a latência de ponta a ponta.
+ * Como todos os usuários estão no mesmo processo, o relógio é o mesmo.
+ */
+final class SimulatedUser implements ClientBound {
+  static final String MARK = "carga#";
+  private static final String LOGGED_IN = "Você entrou no chat.";
+  private static final String LOGIN_RETRY = "Digite outro nome:";
+  private static final String PRIVATE = "(privado)";
+  private static final int CHUNK_SIZE = 256 * 1024;
+  private static final int READER_STACK_SIZE = 256 * 1024;
+  // Conteúdo dos arquivos sintéticos. Aleatório para não comprimir; cada
+  // upload troca os primeiros bytes, para o servidor não deduplicar.
+  private static final byte[] CONTENT = new byte[CHUNK_SIZE];
+
+  static {
+    ThreadLocalRandom.current().nextBytes(CONTENT);
+  }
+
+  final String name;
+  final int room;
+  private final LoadGenerator.Settings settings;
+  private final String host;
+  private final int port;
+
+  private Socket socket;
+  private OutputStream out;
+  // Separado do monitor da sessão: uma escrita bloqueada não pode impedir
+  // close() de fechar o socket e destravá-la.
+  private final Object writeLock = new Object();
+  private Codec codec = Codec.TEXT;
+  private volatile boolean connected;
+  private volatile boolean closing;
+
+  // Horário do pedido de cada upload e download, por nome de arquivo.
+  private final Map<String, Long> uploads = new ConcurrentHashMap<>();
+  private final Map<String, Long> downloads = new ConcurrentHashMap<>();
+  // Transferências privadas por usuário do outro lado: tamanho e horário do
+  // pedido (o destinatário mede a duração, então o remetente anota nele).
+  private final Map<String, Long> offered = new ConcurrentHashMap<>();
+  private final Map<String, long[]> expectedFiles = new ConcurrentHashMap<>();
+
+  SimulatedUser(LoadGenerator.Settings settings, String name, int room, String host, int port) {
+    this.settings = settings;
+    this.name = name;
+    this.room = room;
+    this.host = host;
+    this.port = port;
+  }
+
+  boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * Conecta, negocia o protocolo e envia o login. A sessão só conta como
+   * conectada quando o servidor confirma o login.
+   */
+  void connect() {
+    try {
+      socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      InputStream in = socket.getInputStream();
+      out = socket.getOutputStream();
+      negotiate(in);
+      send(codec.login(name));
+      if (settings.rooms > 1) {
+        send(codec.join(LoadGenerator.roomName(room)));
+      }
+      Thread reader = new Thread(null, () -> read(in), "carga-" + name, READER_STACK_SIZE);
+      reader.setDaemon(true);
+      reader.start();
+    } catch (IOException e) {
+      LoadStats.fail(LoadStats.Failure.CONNECT);
+      close();
+    }
+  }
+
+  private void negotiate(InputStream in) throws IOException {
+    String line = Compression.readLineUnbuffered(in, 64 * 1024);
+    if (line == null) {
+      throw new IOException("Conexão encerrada pelo servidor");
+    }
+    // Servidor sem negociação: a primeira linha já é o pedido de nome.
+    if (!line.equals(Compression.HELLO) && !line.startsWith(Compression.HELLO + " ")) {
+      return;
+    }
+    boolean binary = settings.binary && Compression.features(line).contains(BinaryCodec.FEATURE);
+    String hello = binary ? Compression.HELLO + " " + BinaryCodec.FEATURE : Compression.HELLO;
+    out.write((hello + "\n").getBytes(StandardCharsets.UTF_8));
+    while ((line = Compression.readLineUnbuffered(in, 64 * 1024)) != null) {
+      if (line.equals(Compression.HELLO_OK) || line.startsWith(Compression.HELLO_OK + " ")) {
+        if (Compression.features(line).contains(BinaryCodec.FEATURE)) {
+          codec = Codec.BINARY;
+        }
+        return;
+      }
+    }
+    throw new IOException("Conexão encerrada pelo servidor");
+  }
+
+  private void read(InputStream in) {
+    try {
+      if (codec == Codec.BINARY) {
+        DataInputStream frames = new DataInputStream(new BufferedInputStream(in, 8 * 1024));
+        ByteBuffer frame = ByteBuffer.allocate(1024);
+        while ((frame = BinaryCodec.readFrame(frames, frame)) != null) {
+          BinaryCodec.decodeClientBound(frame, this);
+        }
+      } else {
+        BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 8 * 1024);
+        String line;
+        while ((line = lines.readLine()) != null) {
+          TextCodec.decodeClientBound(line, this);
+        }
+      }
+    } catch (IOException e) {
+      // Tratado abaixo, como o fim da conexão.
+    }
+    if (!closing) {
+      LoadStats.fail(connected ? LoadStats.Failure.DISCONNECT : LoadStats.Failure.CONNECT);
+    }
+    close();
+  }
+
+  /**
+   * Encerra a sessão. Pode ser chamado mais de uma vez.
+   */
+  synchronized void close() {
+    closing = true;
+    if (connected) {
+      connected = false;
+      LoadStats.connected.decrement();
+      LoadGenerator.leaveRoom(room);
+    }
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Escreve um comando já codificado. As threads do gerador dividem a
+   * sessão, então cada comando vai inteiro numa única escrita.
+   */
+  private boolean send(byte[] frame) {
+    synchronized (writeLock) {
+      if (closing) {
+        return false;
+      }
+      try {
+        out.write(frame);
+        return true;
+      } catch (IOException e) {
+        if (!closing) {
+          LoadStats.fail(LoadStats.Failure.SEND);
+        }
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Mensagem para a sala, programada para scheduledNanos.
+   */
+  void chat(long scheduledNanos) {
+    // Lido antes do envio: quem entrar depois não recebe a mensagem.
+    int recipients = LoadGenerator.roomSize(room) - 1;
+    if (send(codec.chat(MARK + scheduledNanos))) {
+      LoadStats.Message.ROOM.sent.increment();
+      LoadStats.Message.ROOM.expected.add(Math.max(0, recipients));
+    }
+  }
+
+  /**
+   * Mensagem privada para outro usuário simulado.
+   */
+  void privateTo(SimulatedUser recipient, long scheduledNanos) {
+    if (send(codec.privateMessage(recipient.name, MARK + scheduledNanos))) {
+      LoadStats.Message.PRIVATE.sent.increment();
+      LoadStats.Message.PRIVATE.expected.increment();
+    }
+  }
+
+  /**
+   * Compartilha um arquivo sintético com a sala (SENDFILE_REQUEST para @all).
+   * O upload começa quando o servidor responder com a porta de transferência.
+   */
+  void shareFile(long sequence) {
+    String fileName = name + "-" + sequence + ".bin";
+    uploads.put(fileName, System.nanoTime());
+    if (send(codec.sendFileRequest("@all", fileName, settings.fileSize))) {
+      LoadStats.Transfer.UPLOAD.started.increment();
+    } else {
+      uploads.remove(fileName);
+    }
+  }
+
+  /**
+   * Oferece um arquivo privado a outro usuário, que aceita assim que o
+   * pedido chegar.
+   */
+  void offerFile(SimulatedUser recipient) {
+    if (offered.putIfAbsent(recipient.name, settings.fileSize) != null) {
+      return;
+    }
+    recipient.expectedFiles.put(name, new long[] { settings.fileSize, System.nanoTime() });
+    if (send(codec.sendFileRequest(recipient.name, "carga.bin", settings.fileSize))) {
+      LoadStats.Transfer.PRIVATE.started.increment();
+    } else {
+      offered.remove(recipient.name);
+      recipient.expectedFiles.remove(name);
+    }
+  }
+
+  // ---- Eventos do servidor, chamados pela thread de leitura ----
+
+  @Override
+  public void message(String text) {
+    int mark = text.indexOf(MARK);
+    if (mark < 0) {
+      if (!connected && text.startsWith(LOGGED_IN)) {
+        loggedIn();
+      } else if (!connected && text.startsWith("Servidor: ") && text.endsWith(LOGIN_RETRY)) {
+        // Outra sessão (de outra execução, ou em outro nó) já usa o nome, ou
+        // o prefixo deixou o nome longo demais.
+        LoadStats.fail(LoadStats.Failure.LOGIN_REJECTED);
+        close();
+      }
+      return;
+    }
+    long now = System.nanoTime();
+    int start = mark + MARK.length();
+    int end = start;
+    while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == '-')) {
+      end++;
+    }
+    long scheduled;
+    try {
+      scheduled = Long.parseLong(text.substring(start, end));
+    } catch (NumberFormatException e) {
+      return;
+    }
+    LoadStats.Message type = text.lastIndexOf(PRIVATE, mark) >= 0 ? LoadStats.Message.PRIVATE
+        : LoadStats.Message.ROOM;
+    type.delivered.increment();
+    type.latency.record(now - scheduled);
+  }
+
+  private synchronized void loggedIn() {
+    if (closing) {
+      return;
+    }
+    connected = true;
+    LoadStats.connected.increment();
+    LoadGenerator.enterRoom(room);
+  }
+
+  @Override
+  public void incomingFile(String sender, String fileName, long fileSize) {
+    send(codec.acceptFile(sender));
+  }
+
+  @Override
+  public void broadcastFile(String sender, String fileName, long fileSize) {
+    if (sender.equals(name) || ThreadLocalRandom.current().nextDouble() >= settings.downloadFraction) {
+      return;
+    }
+    downloads.put(fileName, System.nanoTime());
+    if (send(codec.download(fileName))) {
+      LoadStats.Transfer.DOWNLOAD.started.increment();
+    } else {
+      downloads.remove(fileName);
+    }
+  }
+
+  @Override
+  public void uploadReady(String host, int port, String token, String fileName) {
+    Long requested = uploads.remove(fileName);
+    long started = requested == null ? System.nanoTime() : requested;
+    LoadGenerator.transfers.execute(() -> upload(host, port, token, started));
+  }
+
+  @Override
+  public void downloadReady(String host, int port, String token, String fileName, long fileSize) {
+    Long requested = downloads.remove(fileName);
+    long started = requested == null ? System.nanoTime() : requested;
+    LoadGenerator.transfers.execute(() -> download(host, port, token, fileSize, started));
+  }
+
+  @Override
+  public void pushReady(String host, int port, String token, String fileName, long fileSize, String sender) {
+    // O gerador não liga o recebimento automático.
+  }
+
+  @Override
+  public void transferReady(String host, int port, String token, String peer, String fileName, boolean deflate) {
+    Long size = offered.remove(peer);
+    if (size != null) {
+      LoadGenerator.transfers.execute(() -> sendPrivate(host, port, token, size));
+      return;
+    }
+    long[] expected = expectedFiles.remove(peer);
+    if (expected != null) {
+      LoadGenerator.transfers.execute(() -> receivePrivate(host, port, token, expected[0], expected[1]));
+    }
+  }
+
+  // ---- Transferências, nas threads de LoadGenerator.transfers ----
+
+  private Socket openTransfer(String host, int port, String token) throws IOException {
+    Socket transfer = settings.proxy != null ? settings.proxy.connect(host, port) : new Socket(host, port);
+    transfer.setSoTimeout(LoadGenerator.TRANSFER_TIMEOUT);
+    transfer.getOutputStream().write((token + "\n").getBytes(StandardCharsets.UTF_8));
+    return transfer;
+  }
+
+  private void upload(String host, int port, String token, long started) {
+    try (Socket transfer = openTransfer(host, port, token)) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(transfer.getInputStream()));
+      DataOutputStream out = new DataOutputStream(transfer.getOutputStream());
+      long offset = in.readLong();
+      byte[] first = CONTENT.clone();
+      ByteBuffer.wrap(first).putLong(System.nanoTime()).putInt(name.hashCode());
+      Compression.ChunkWriter writer = new Compression.ChunkWriter(null);
+      for (long sent = offset; sent < settings.fileSize;) {
+        int length = (int) Math.min(CHUNK_SIZE, settings.fileSize - sent);
+        writer.writeChunk(out, sent == 0 ? first : CONTENT, 0, length);
+        sent += length;
+        LoadGenerator.transferredBytes.add(length);
+      }
+      writer.writeEnd(out);
+      out.flush();
+      long confirmed = in.readLong();
+      if (confirmed != settings.fileSize) {
+        throw new IOException("Servidor confirmou " + confirmed + " bytes");
+      }
+      finish(LoadStats.Transfer.UPLOAD, settings.fileSize - offset, started);
+    } catch (IOException e) {
+      LoadStats.fail(LoadStats.Failure.UPLOAD);
+    }
+  }
+
+  /**
+   * Baixa o arquivo em settings.downloadStreams faixas paralelas, como o
+   * cliente faz em redes com latência alta.
+   */
+  private void download(String host, int port, String token, long fileSize, long started) {
+    int streams = (int) Math.max(1, Math.min(settings.downloadStreams, fileSize / CHUNK_SIZE));
+    long rangeSize = (fileSize + streams - 1) / streams;
+    try {
+      List<Future<Long>> ranges = new ArrayList<>();
+      for (int i = 1; i < streams; i++) {
+        long offset = i * rangeSize;
+        long length = Math.min(rangeSize, fileSize - offset);
+        ranges.add(LoadGenerator.transfers.submit(() -> downloadRange(host, port, token, offset, length)));
+      }
+      long received = downloadRange(host, port, token, 0, streams == 1 ? -1 : rangeSize);
+      for (Future<Long> range : ranges) {
+        received += range.get();
+      }
+      if (received != fileSize) {
+        throw new IOException("Recebidos " + received + " de " + fileSize + " bytes");
+      }
+      finish(LoadStats.Transfer.DOWNLOAD, received, started);
+    } catch (Exception e) {
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      LoadStats.fail(LoadStats.Failure.DOWNLOAD);
+    }
+  }
+
+  private long downloadRange(String host, int port, String token, long offset, long length) throws IOException {
+    try (Socket transfer = openTransfer(host, port, token)) {
+      DataOutputStream out = new DataOutputStream(transfer.getOutputStream());
+      out.writeLong(offset);
+      out.writeLong(length);
+      out.flush();
+      DataInputStream in = new DataInputStream(transfer.getInputStream());
+      long count = in.readLong();
+      return drain(in, count);
+    }
+  }
+
+  private void sendPrivate(String host, int port, String token, long size) {
+    try (Socket transfer = openTransfer(host, port, token)) {
+      OutputStream out = transfer.getOutputStream();
+      for (long sent = 0; sent < size;) {
+        int length = (int) Math.min(CHUNK_SIZE, size - sent);
+        out.write(CONTENT, 0, length);
+        sent += length;
+      }
+      transfer.shutdownOutput();
+    } catch (IOException e) {
+      LoadStats.fail(LoadStats.Failure.PRIVATE_TRANSFER);
+    }
+  }
+
+  private void receivePrivate(String host, int port, String token, long size, long started) {
+    try (Socket transfer = openTransfer(host, port, token)) {
+      long received = drain(transfer.getInputStream(), Long.MAX_VALUE);
+      if (received != size) {
+        throw new IOException("Recebidos " + received + " de " + size + " bytes");
+      }
+      finish(LoadStats.Transfer.PRIVATE, received, started);
+    } catch (IOException e) {
+      LoadStats.fail(LoadStats.Failure.PRIVATE_TRANSFER);
+    }
+  }
+
+  /**
+   * Lê e descarta até limit bytes ou até o fim do fluxo.
+   *
+   * @return Quantos bytes foram lidos.
+   */
+  private static long drain(InputStream in, long limit) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    long total = 0;
+    while (total < limit) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total));
+      if (read == -1) {
+        break;
+      }
+      total += read;
+      LoadGenerator.transferredBytes.add(read);
+    }
+    return total;
+  }
+
+  private static void finish(LoadStats.Transfer type, long bytes, long started) {
+    type.finished.increment();
+    type.bytes.add(bytes);
+    type.duration.record(System.nanoTime() - started);
+  }
+}
@@ -1,6 +1,10 @@
 package cliente;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -8,23 +12,60 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import protocolo.BinaryCodec;
+import protocolo.ClientBound;
+import protocolo.Codec;
+import protocolo.Compression;
+import protocolo.TextCodec;
 
 public class Client {
 
   // Armazena informações sobre ofertas de arquivos recebidas
-  private static Map<String, String[]> pendingFileOffers = new HashMap<>();
-  // Armazena o caminho do arquivo que este cliente ofereceu para envio
+  private static Map<String, String[]> pendingFileOffers = new ConcurrentHashMap<>();
+  // Ofertas recebidas que o usuário aceitou, esperando o TRANSFER_READY
+  private static Map<String, String[]> acceptedFileOffers = new ConcurrentHashMap<>();
+  // Arquivos oferecidos em privado: destinatário -> nome anunciado -> caminho
+  private static Map<String, Map<String, String>> sentFileOffers = new ConcurrentHashMap<>();
+  // Armazena o caminho do arquivo enviado para @all até o servidor confirmar
   private static String fileToSendPath = null;
 
   // Timeout para conexões de transferência de arquivo (30 segundos)
   private static final int FILE_TRANSFER_TIMEOUT = 30000;
+  // Tamanho dos blocos do upload; o servidor aceita até 1 MB.
+  private static final int UPLOAD_CHUNK_SIZE = 256 * 1024;
+  // Tentativas de retomar um upload/download interrompido antes de desistir.
+  static final int MAX_TRANSFER_ATTEMPTS = 4;
+  // Conexões simultâneas usadas no download de arquivos compartilhados.
+  private static int downloadStreams = 1;
+  // Compressão pedida ao servidor na conexão (ver protocolo.Compression).
+  private static boolean wantFileCompression = true;
+  private static boolean wantChatCompression = false;
+  private static int compressionLevel = 6;
+  // Se o servidor aceitou comprimir os blocos de arquivo nesta conexão.
+  static volatile boolean fileCompression = false;
+  // Pede o protocolo binário ao servidor (ver protocolo.BinaryCodec).
+  private static boolean wantBinaryProtocol = true;
+  // Protocolo combinado com o servidor; texto até a negociação dizer o contrário.
+  private static Codec codec = Codec.TEXT;
+  // Saída da conexão de chat. Só a thread principal envia.
+  private static OutputStream serverOut;
+  // Trata as mensagens recebidas do servidor, em qualquer protocolo.
+  private static final ClientBound SERVER_EVENTS = new ServerEvents();
+  // Fim das respostas do servidor a um nome recusado (em uso ou inválido).
+  private static final String LOGIN_RETRY = "Digite outro nome:";
+  // Se o nome já foi enviado; volta a false se o servidor recusar o nome.
+  private static volatile boolean loggedIn = false;
 
   public static void main(String[] args) {
     Properties props = new Properties();
@@ -35,80 +76,47 @@ public class Client {
       props.load(in);
       serverAddress = props.getProperty("server.address", "localhost");
       serverPort = Integer.parseInt(props.getProperty("server.port", "12345"));
+      downloadStreams = Math.max(1, Integer.parseInt(props.getProperty("download.streams", "1")));
+      wantFileCompression = Boolean.parseBoolean(props.getProperty("compression.files", "true"));
+      wantChatCompression = Boolean.parseBoolean(props.getProperty("compression.chat", "false"));
+      compressionLevel = Integer.parseInt(props.getProperty("compression.level", "6"));
+      wantBinaryProtocol = Boolean.parseBoolean(props.getProperty("protocol.binary", "true"));
     } catch (IOException e) {
       System.out.println("Arquivo 'config.properties' não encontrado. Usando valores padrão.");
     }
     // O try-with-resources garante que todos os recursos (Socket, Reader, Writer)
     // serão fechados automaticamente ao final do bloco
     try (Socket socket = new Socket(serverAddress, serverPort);
-        PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-        BufferedReader serverReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in))
 
     ) {
       System.out.println("Conectado ao servidor de chat. ");
 
+      // A negociação acontece antes de criar o leitor do chat: com
+      // chat-deflate, tudo o que vem depois do HELLO_OK já está comprimido, e
+      // com binary-v1 vem em quadros.
+      InputStream chatIn = socket.getInputStream();
+      OutputStream chatOut = socket.getOutputStream();
+      if (negotiate(chatIn, chatOut)) {
+        chatIn = Compression.inflating(chatIn);
+        chatOut = Compression.deflating(chatOut, compressionLevel);
+      }
+      serverOut = chatOut;
+      InputStream serverIn = chatIn;
+
       Thread messageListerner = new Thread(() -> {
         try {
-          String serverMessage;
-          while ((serverMessage = serverReader.readLine()) != null) {
-            if (serverMessage.startsWith("INCOMING_FILE")) {
-              // Servidor avisando de um pedido de arquivo:
-              // INCOMING_FILE @remetente nome_arquivo tamanho
-              String[] parts = serverMessage.split(" ", 4);
-              String sender = parts[1].substring(1);
-              String fileName = parts[2];
-              String fileSize = parts[3];
-              pendingFileOffers.put(sender, new String[] { fileName, fileSize });
-
-              System.out.printf("\n>>> %s quer te enviar o arquivo '%s' (%s bytes).%n", sender, fileName, fileSize);
-              System.out.printf(">>> Para aceitar, digite: /accept %s%n", sender);
-            } else if (serverMessage.startsWith("BROADCAST_FILE")) {
-              // Servidor notifica sobre um arquivo compartilhado: BROADCAST_FILE @remetente
-              // nome_arquivo
-              String[] parts = serverMessage.split(" ", 4);
-              String sender = parts[1].substring(1); // remove o @
-              String fileName = parts[2];
-              String fileSize = parts[3];
-              System.out.printf("\n>>> %s compartilhou o arquivo '%s' (%s bytes).%n", sender, fileName, fileSize);
-              System.out.printf(">>> Para baixar, digite: /download %s%n", fileName);
-            } else if (serverMessage.startsWith("UPLOAD_READY")) {
-              // Servidor está pronto para receber nosso upload: UPLOAD_READY ip porta
-              // nome_arquivo
-              String[] parts = serverMessage.split(" ", 4);
-              String ip = parts[1];
-              int port = Integer.parseInt(parts[2]);
-              new Thread(() -> uploadFile(fileToSendPath, ip, port)).start();
-            } else if (serverMessage.startsWith("DOWNLOAD_READY")) {
-              // Servidor está pronto para nos enviar um arquivo: DOWNLOAD_READY ip porta
-              // nome_arquivo
-              String[] parts = serverMessage.split(" ", 5);
-              String ip = parts[1];
-              int port = Integer.parseInt(parts[2]);
-              String fileName = parts[3];
-              long fileSize = Long.parseLong(parts[4]);
-              new Thread(() -> receiveFile(ip, port, fileName, fileSize)).start();
-            } else if (serverMessage.startsWith("TRANSFER_READY")) {
-              String[] parts = serverMessage.split(" ", 4);
-              String ip = parts[1];
-              int port = Integer.parseInt(parts[2]);
-              String peer = parts[3].substring(1);
-
-              String fileNameToReceive = null;
-              long fileSizeToReceive = 0;
-
-              if (pendingFileOffers.containsKey(peer)) {
-                String[] offer = pendingFileOffers.get(peer);
-                fileNameToReceive = offer[0];
-                fileSizeToReceive = Long.parseLong(offer[1]);
-                pendingFileOffers.remove(peer);
-              }
-
-              String finalFileName = fileNameToReceive;
-              long finalFileSize = fileSizeToReceive;
-              new Thread(() -> handlerFileTransfer(ip, port, finalFileName, finalFileSize)).start();
-            } else {
-              System.out.println(serverMessage);
+          if (codec == Codec.BINARY) {
+            DataInputStream frames = new DataInputStream(new BufferedInputStream(serverIn, 8 * 1024));
+            ByteBuffer frame = ByteBuffer.allocate(1024);
+            while ((frame = BinaryCodec.readFrame(frames, frame)) != null) {
+              BinaryCodec.decodeClientBound(frame, SERVER_EVENTS);
+            }
+          } else {
+            BufferedReader serverReader = new BufferedReader(new InputStreamReader(serverIn, StandardCharsets.UTF_8));
+            String serverMessage;
+            while ((serverMessage = serverReader.readLine()) != null) {
+              TextCodec.decodeClientBound(serverMessage, SERVER_EVENTS);
             }
           }
         } catch (IOException e) {
@@ -125,7 +133,10 @@ public class Client {
       String userInput;
 
       while ((userInput = consoleReader.readLine()) != null) {
-        if (userInput.startsWith("/sendfile")) {
+        if (!loggedIn) {
+          send(codec.login(userInput));
+          loggedIn = true;
+        } else if (userInput.startsWith("/sendfile")) {
           // Usuário quer enviar um arquivo: /sendfile destinatario
           // /caminho/para/arquivo.txt
           String[] parts = userInput.split(" ", 3);
@@ -135,9 +146,15 @@ public class Client {
             File file = new File(filePath);
 
             if (file.exists() && file.isFile()) {
-              fileToSendPath = filePath; // Armazena o caminho para quando o servidor confirmar
-              String command = String.format("SENDFILE_REQUEST %s %s %d", recipient, file.getName(), file.length());
-              writer.println(command);
+              // O servidor não aceita espaços nem caracteres de controle no nome.
+              String announced = file.getName().replaceAll("[\\p{javaWhitespace}\\p{javaISOControl}]", "_");
+              // Armazena o caminho para quando o servidor confirmar
+              if ("@all".equalsIgnoreCase(recipient)) {
+                fileToSendPath = filePath;
+              } else {
+                sentFileOffers.computeIfAbsent(recipient, r -> new ConcurrentHashMap<>()).put(announced, filePath);
+              }
+              send(codec.sendFileRequest(recipient, announced, file.length()));
             } else {
               System.out.println("Erro: Arquivo não encontrado ou não é um arquivo válido.");
             }
@@ -150,9 +167,10 @@ public class Client {
           String[] parts = userInput.split(" ", 2);
           if (parts.length == 2) {
             String sender = parts[1];
-            if (pendingFileOffers.containsKey(sender)) {
-              writer.println("SENDFILE_ACCEPT " + sender);
-              // pendingFileOffers.remove(sender); // Limpa a oferta pendente
+            String[] offer = pendingFileOffers.remove(sender);
+            if (offer != null) {
+              acceptedFileOffers.put(sender, offer);
+              send(codec.acceptFile(sender));
             } else {
               System.out.println("Nenhuma oferta de arquivo pendente de " + sender);
             }
@@ -160,13 +178,44 @@ public class Client {
             System.out.println("Formato inválido. Use: /accept <remetente>");
           }
         } else if (userInput.startsWith("/download")) {
-          writer.println(userInput);
+          String[] parts = userInput.split(" ", 2);
+          if (parts.length == 2) {
+            send(codec.download(parts[1]));
+          } else {
+            System.out.println("Formato inválido. Use: /download <arquivo>");
+          }
+        } else if (userInput.startsWith("/autoreceive")) {
+          String[] parts = userInput.split(" ", 2);
+          if (parts.length == 2 && ("on".equalsIgnoreCase(parts[1]) || "off".equalsIgnoreCase(parts[1]))) {
+            send(codec.autoReceive("on".equalsIgnoreCase(parts[1])));
+          } else {
+            System.out.println("Formato inválido. Use: /autoreceive on|off");
+          }
+        } else if (userInput.startsWith("/join")) {
+          String[] parts = userInput.split(" ", 2);
+          if (parts.length == 2) {
+            send(codec.join(parts[1]));
+          } else {
+            System.out.println("Formato inválido. Use: /join <sala>");
+          }
+        } else if ("/leave".equalsIgnoreCase(userInput.trim())) {
+          send(codec.leave());
+        } else if (userInput.trim().equalsIgnoreCase("/history") || userInput.startsWith("/history ")) {
+          send(codec.history(userInput.trim().substring("/history".length()).trim()));
+        } else if (userInput.startsWith("@")) {
+          // Mensagem privada: @destinatario mensagem
+          String[] parts = userInput.split(" ", 2);
+          if (parts.length == 2) {
+            send(codec.privateMessage(parts[0].substring(1), parts[1]));
+          } else {
+            System.out.println("Formato inválido. Use: @user <mensagem>");
+          }
+        } else if ("sair".equalsIgnoreCase(userInput.trim())) {
+          send(codec.quit());
+          break;
         } else {
           // Mensagem normal de chat
-          writer.println(userInput);
-          if ("sair".equalsIgnoreCase(userInput.trim())) {
-            break;
-          }
+          send(codec.chat(userInput));
         }
       }
 
@@ -178,40 +227,182 @@ public class Client {
   }
 
   /**
-   * Lida com a conexão ao socket de transferência e decide se envia ou recebe.
+   * Responde ao HELLO do servidor pedindo os recursos de compressão e o
+   * protocolo binário habilitados em config.properties. Um servidor antigo
+   * não envia HELLO: a primeira linha já é o pedido de nome de usuário, e a
+   * conexão segue em texto, sem compressão.
+   *
+   * As linhas são lidas byte a byte, para não consumir nada do que vem
+   * depois do HELLO_OK.
+   *
+   * @return true se o restante da conexão de chat deve ser comprimido.
    */
-  private static void handlerFileTransfer(String ip, int port, String fileName, long fileSize) {
-    if (fileToSendPath != null) {
-      // Se temos um arquivo para enviar, somos o remetente
-      sendFile(fileToSendPath, ip, port);
-      fileToSendPath = null;
-    } else {
-      // Caso contrário, somos o destinatário. Precisamos encontrar a oferta.
-      receiveFile(ip, port, fileName, fileSize);
+  private static boolean negotiate(InputStream in, OutputStream out) throws IOException {
+    String line = Compression.readLineUnbuffered(in, 64 * 1024);
+    if (line == null) {
+      throw new IOException("Conexão encerrada pelo servidor");
+    }
+    if (!line.equals(Compression.HELLO) && !line.startsWith(Compression.HELLO + " ")) {
+      System.out.println(line);
+      return false;
+    }
+
+    Set<String> offered = Compression.features(line);
+    StringBuilder hello = new StringBuilder(Compression.HELLO);
+    if (wantFileCompression && offered.contains(Compression.FILE_DEFLATE)) {
+      hello.append(' ').append(Compression.FILE_DEFLATE);
+    }
+    if (wantChatCompression && offered.contains(Compression.CHAT_DEFLATE)) {
+      hello.append(' ').append(Compression.CHAT_DEFLATE);
+    }
+    if (wantBinaryProtocol && offered.contains(BinaryCodec.FEATURE)) {
+      hello.append(' ').append(BinaryCodec.FEATURE);
+    }
+    out.write((hello + "\n").getBytes(StandardCharsets.UTF_8));
+    out.flush();
+
+    // O servidor pode enviar as boas-vindas antes de confirmar.
+    while ((line = Compression.readLineUnbuffered(in, 64 * 1024)) != null) {
+      if (line.equals(Compression.HELLO_OK) || line.startsWith(Compression.HELLO_OK + " ")) {
+        Set<String> agreed = Compression.features(line);
+        fileCompression = agreed.contains(Compression.FILE_DEFLATE);
+        if (agreed.contains(BinaryCodec.FEATURE)) {
+          codec = Codec.BINARY;
+        }
+        return agreed.contains(Compression.CHAT_DEFLATE);
+      }
+      System.out.println(line);
     }
+    throw new IOException("Conexão encerrada pelo servidor");
+  }
+
+  /**
+   * Envia uma mensagem já codificada com o codec combinado.
+   */
+  private static void send(byte[] message) throws IOException {
+    serverOut.write(message);
+    serverOut.flush();
+  }
+
+  /**
+   * Reações às mensagens do servidor. Roda na thread de escuta; as
+   * transferências de arquivo ganham threads próprias.
+   */
+  private static final class ServerEvents implements ClientBound {
+
+    @Override
+    public void message(String text) {
+      if (text.startsWith("Servidor: ") && text.endsWith(LOGIN_RETRY)) {
+        loggedIn = false;
+      }
+      System.out.println(text);
+    }
+
+    @Override
+    public void incomingFile(String sender, String fileName, long fileSize) {
+      // Servidor avisando de um pedido de arquivo
+      pendingFileOffers.put(sender, new String[] { fileName, Long.toString(fileSize) });
+
+      System.out.printf("\n>>> %s quer te enviar o arquivo '%s' (%d bytes).%n", sender, fileName, fileSize);
+      System.out.printf(">>> Para aceitar, digite: /accept %s%n", sender);
+    }
+
+    @Override
+    public void broadcastFile(String sender, String fileName, long fileSize) {
+      // Servidor notifica sobre um arquivo compartilhado
+      System.out.printf("\n>>> %s compartilhou o arquivo '%s' (%d bytes).%n", sender, fileName, fileSize);
+      System.out.printf(">>> Para baixar, digite: /download %s%n", fileName);
+    }
+
+    @Override
+    public void uploadReady(String host, int port, String token, String fileName) {
+      // Servidor está pronto para receber nosso upload
+      new Thread(() -> uploadFile(fileToSendPath, host, port, token)).start();
+    }
+
+    @Override
+    public void downloadReady(String host, int port, String token, String fileName, long fileSize) {
+      // Servidor está pronto para nos enviar um arquivo
+      new Thread(() -> downloadFile(host, port, token, fileName, fileSize, true)).start();
+    }
+
+    @Override
+    public void pushReady(String host, int port, String token, String fileName, long fileSize, String sender) {
+      // Recebimento automático de um arquivo enviado para @all, enquanto o
+      // upload acontece.
+      System.out.printf("\n>>> Recebendo automaticamente '%s' de %s (%d bytes).%n", fileName, sender, fileSize);
+      // Os bytes chegam na ordem do upload, então o download é sempre sequencial.
+      new Thread(() -> downloadFile(host, port, token, fileName, fileSize, false)).start();
+    }
+
+    @Override
+    public void transferReady(String host, int port, String token, String peer, String fileName, boolean deflate) {
+      // Se aceitamos uma oferta desse arquivo, somos o destinatário.
+      String[] accepted = acceptedFileOffers.get(peer);
+      if (accepted != null && accepted[0].equals(fileName)) {
+        acceptedFileOffers.remove(peer);
+        long fileSize = Long.parseLong(accepted[1]);
+        new Thread(() -> receiveFile(host, port, token, fileName, fileSize, deflate)).start();
+        return;
+      }
+      // Senão, só enviamos se oferecemos esse arquivo a peer nesta execução.
+      Map<String, String> offered = sentFileOffers.get(peer);
+      String filePath = offered == null ? null : offered.remove(fileName);
+      if (filePath != null) {
+        new Thread(() -> sendFile(filePath, host, port, token, deflate)).start();
+      } else {
+        System.out.printf("%n>>> %s aceitou '%s', mas esse arquivo não foi oferecido por este cliente.%n", peer,
+            fileName);
+      }
+    }
+  }
+
+  /**
+   * Conecta-se à porta de transferência do servidor e se identifica com o
+   * token recebido pelo chat. Os bytes seguintes já são da transferência.
+   */
+  static Socket connectTransfer(String ip, int port, String token) throws IOException {
+    Socket fileSocket = new Socket(ip, port);
+    fileSocket.setSoTimeout(FILE_TRANSFER_TIMEOUT);
+    OutputStream out = fileSocket.getOutputStream();
+    out.write((token + "\n").getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    return fileSocket;
   }
 
   /**
    * Conecta-se ao socket de transferência e envia o arquivo especificado.
+   *
+   * @param deflate Envia em blocos (ver Compression.ChunkWriter), comprimidos
+   *                quando o arquivo ainda não é comprimido.
    */
-  private static void sendFile(String filePath, String ip, int port) {
+  private static void sendFile(String filePath, String ip, int port, String token, boolean deflate) {
     File file = new File(filePath);
     System.out.printf("Iniciando envio de '%s' para %s:%d...%n", file.getName(), ip, port);
 
-    try (Socket fileSocket = new Socket(ip, port)) {
-      fileSocket.setSoTimeout(FILE_TRANSFER_TIMEOUT);
+    Compression.ChunkWriter chunks = deflate
+        ? new Compression.ChunkWriter(Compression.isPrecompressed(file.getName()) ? null : compressionLevel)
+        : null;
+    try (Socket fileSocket = connectTransfer(ip, port, token)) {
 
       try (FileInputStream fileIn = new FileInputStream(file);
           OutputStream socketOut = fileSocket.getOutputStream()) {
 
-        byte[] buffer = new byte[8192];
+        DataOutputStream chunkOut = deflate
+            ? new DataOutputStream(new BufferedOutputStream(socketOut, Compression.CHUNK_SIZE + 4))
+            : null;
+        byte[] buffer = new byte[deflate ? Compression.CHUNK_SIZE : 8192];
         int bytesRead;
         long totalBytes = 0;
         long totalSize = file.length();
         int lastPercent = -1;
 
         while ((bytesRead = fileIn.read(buffer)) != -1) {
-          socketOut.write(buffer, 0, bytesRead);
+          if (chunks != null) {
+            chunks.writeChunk(chunkOut, buffer, 0, bytesRead);
+          } else {
+            socketOut.write(buffer, 0, bytesRead);
+          }
           totalBytes += bytesRead;
 
           int currentPercent = (int) ((double) totalBytes / totalSize * 100);
@@ -221,6 +412,11 @@ public class Client {
           }
         }
 
+        if (chunks != null) {
+          chunks.writeEnd(chunkOut);
+          chunkOut.flush();
+        }
+
         if (lastPercent < 100) {
           printProgress(totalSize, totalSize);
         }
@@ -232,54 +428,50 @@ public class Client {
       System.out.println("Timeout ao enviar arquivo - conexão muito lenta ou perdida.");
     } catch (Exception e) {
       System.out.println("Erro ao enviar arquivo: " + e.getMessage());
+    } finally {
+      if (chunks != null) {
+        chunks.close();
+      }
     }
   }
 
   /**
    * Conecta-se ao socket de transferência e recebe um arquivo.
+   *
+   * @param deflate O remetente envia em blocos, terminados pelo bloco vazio.
    */
-  private static void receiveFile(String ip, int port, String fileName, long totalSize) {
+  private static void receiveFile(String ip, int port, String token, String fileName, long totalSize,
+      boolean deflate) {
     System.out.printf("Iniciando recebimento de arquivo de %s:%d", ip, port);
 
-    File downloadsDir = new File("Downloads");
-    if (!downloadsDir.exists()) {
-      if (!downloadsDir.mkdir()) {
-        System.err.println("Erro: Não foi possível criar diretório Downloads");
-        return;
-      }
+    File downloadsDir = downloadsDir();
+    if (downloadsDir == null) {
+      return;
     }
 
     if (fileName == null) {
       System.err.println("Erro: Nome do arquivo para receber é desconhecido.");
       return;
     }
-
-    // Evita sobrescrever arquivos
-    File targetFile = new File(downloadsDir, fileName);
-    int counter = 1;
-    while (targetFile.exists()) {
-      String nameWithoutExt = fileName;
-      String extension = "";
-      int lastDot = fileName.lastIndexOf('.');
-      if (lastDot > 0) {
-        nameWithoutExt = fileName.substring(0, lastDot);
-        extension = fileName.substring(lastDot);
-      }
-      targetFile = new File(downloadsDir, nameWithoutExt + "_" + counter + extension);
-      counter++;
+    fileName = localFileName(fileName);
+    if (fileName == null) {
+      return;
     }
 
-    try (Socket fileSocket = new Socket(ip, port)) {
-      fileSocket.setSoTimeout(FILE_TRANSFER_TIMEOUT);
+    // Evita sobrescrever arquivos
+    File targetFile = uniqueTarget(downloadsDir, fileName);
 
+    Compression.ChunkReader chunks = deflate ? new Compression.ChunkReader() : null;
+    try (Socket fileSocket = connectTransfer(ip, port, token)) {
       try (InputStream socketIn = fileSocket.getInputStream();
           FileOutputStream fileOut = new FileOutputStream(targetFile)) {
 
-        byte[] buffer = new byte[8192];
+        DataInputStream chunkIn = deflate ? new DataInputStream(socketIn) : null;
+        byte[] buffer = new byte[deflate ? Compression.CHUNK_SIZE : 8192];
         int bytesRead;
         long totalBytes = 0;
 
-        while ((bytesRead = socketIn.read(buffer)) != -1) {
+        while ((bytesRead = chunks != null ? chunks.readChunk(chunkIn, buffer) : socketIn.read(buffer)) > 0) {
           fileOut.write(buffer, 0, bytesRead);
           totalBytes += bytesRead;
           printProgress(totalBytes, totalSize);
@@ -292,13 +484,17 @@ public class Client {
       System.out.println("Timeout ao receber arquivo - conexão muito lenta ou perdida.");
     } catch (IOException e) {
       System.err.println("Erro ao receber arquivo: " + e.getMessage());
+    } finally {
+      if (chunks != null) {
+        chunks.close();
+      }
     }
   }
 
   /*
    * Barra de progresso
    */
-  private static void printProgress(long bytesTransferred, long totalBytes) {
+  static void printProgress(long bytesTransferred, long totalBytes) {
     int barLength = 50; // número de caracteres da barra
     double percent = (double) bytesTransferred / totalBytes;
     int filled = (int) (barLength * percent);
@@ -321,14 +517,213 @@ public class Client {
     }
   }
 
-  /*
-   * Barra de progresso
+  /**
+   * Faz o upload de um arquivo de broadcast para o servidor, em blocos. Se a
+   * conexão cair, reconecta com o mesmo token e continua a partir do que o
+   * servidor informa já ter gravado.
    */
-  private static void uploadFile(String filePath, String ip, int port) {
+  private static void uploadFile(String filePath, String ip, int port, String token) {
     File file = new File(filePath);
     System.out.printf("Iniciando upload de '%s' para o servidor em %s:%d...%n", file.getName(), ip, port);
-    sendFile(filePath, ip, port);
+    long totalSize = file.length();
+    // Com file-deflate, cada bloco vai comprimido se ficar menor.
+    Compression.ChunkWriter chunks = new Compression.ChunkWriter(
+        fileCompression && !Compression.isPrecompressed(file.getName()) ? compressionLevel : null);
+
+    for (int attempt = 1;; attempt++) {
+      try (Socket fileSocket = connectTransfer(ip, port, token);
+          DataInputStream in = new DataInputStream(fileSocket.getInputStream());
+          DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(fileSocket.getOutputStream(), UPLOAD_CHUNK_SIZE + 4));
+          RandomAccessFile fileIn = new RandomAccessFile(file, "r")) {
+
+        // O servidor informa quantos bytes já tem; o envio continua dali.
+        long offset = in.readLong();
+        fileIn.seek(offset);
+
+        byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+        int bytesRead;
+        while ((bytesRead = fileIn.read(buffer)) != -1) {
+          chunks.writeChunk(out, buffer, 0, bytesRead);
+          offset += bytesRead;
+          printProgress(offset, totalSize);
+        }
+        chunks.writeEnd(out);
+        out.flush();
+
+        long confirmed = in.readLong();
+        System.out.printf("Envio de arquivo '%s' concluído. Total: %.2f MB%n",
+            file.getName(), confirmed / (1024.0 * 1024.0));
+        break;
+      } catch (IOException e) {
+        if (!retryAfter(attempt, "upload", e)) {
+          break;
+        }
+      }
+    }
+    chunks.close();
     fileToSendPath = null;
   }
 
+  /**
+   * Baixa um arquivo compartilhado do servidor. Os bytes vão para um arquivo
+   * '.part' em Downloads; se a conexão cair, o download é retomado pedindo ao
+   * servidor apenas o trecho que falta. Um novo /download do mesmo arquivo
+   * também continua de onde o anterior parou.
+   *
+   * Com download.streams maior que 1 e allowParallel, arquivos grandes são
+   * baixados em várias conexões ao mesmo tempo (ver ParallelDownload).
+   */
+  private static void downloadFile(String ip, int port, String token, String fileName, long totalSize,
+      boolean allowParallel) {
+    fileName = localFileName(fileName);
+    if (fileName == null) {
+      return;
+    }
+    File downloadsDir = downloadsDir();
+    if (downloadsDir == null) {
+      return;
+    }
+    // O tamanho faz parte do nome para não misturar arquivos diferentes com o mesmo nome.
+    File partFile = new File(downloadsDir, fileName + "." + totalSize + ".part");
+    try {
+      partFile.createNewFile();
+    } catch (IOException e) {
+      System.err.println("Erro: Não foi possível criar " + partFile.getName() + ": " + e.getMessage());
+      return;
+    }
+
+    // Um download paralelo interrompido continua em paralelo; um sequencial, em sequência.
+    boolean parallel = ParallelDownload.rangesFileFor(partFile).exists()
+        || allowParallel && partFile.length() == 0 && downloadStreams > 1
+            && totalSize >= downloadStreams * ParallelDownload.MIN_RANGE_SIZE;
+    if (parallel) {
+      try {
+        if (!new ParallelDownload(ip, port, token, partFile, totalSize).run(downloadStreams)) {
+          System.out.printf("Digite /download %s novamente para continuar de onde parou.%n", fileName);
+          return;
+        }
+      } catch (IOException e) {
+        System.err.println("Erro no download de '" + fileName + "': " + e.getMessage());
+        return;
+      }
+    } else if (partFile.length() > 0) {
+      System.out.printf("Retomando download de '%s' a partir de %.2f MB%n",
+          fileName, partFile.length() / (1024.0 * 1024.0));
+    } else {
+      System.out.printf("Iniciando download de '%s' de %s:%d%n", fileName, ip, port);
+    }
+
+    for (int attempt = 1; !parallel && partFile.length() < totalSize; attempt++) {
+      try (Socket fileSocket = connectTransfer(ip, port, token);
+          DataOutputStream out = new DataOutputStream(fileSocket.getOutputStream());
+          DataInputStream in = new DataInputStream(fileSocket.getInputStream());
+          RandomAccessFile fileOut = new RandomAccessFile(partFile, "rw")) {
+
+        long offset = partFile.length();
+        out.writeLong(offset);
+        out.writeLong(-1); // até o fim do arquivo
+        out.flush();
+
+        DownloadStream data = new DownloadStream(in);
+        try {
+          fileOut.seek(offset);
+          byte[] buffer = new byte[64 * 1024];
+          while (data.remaining() > 0) {
+            int bytesRead = data.read(buffer, 0, buffer.length);
+            fileOut.write(buffer, 0, bytesRead);
+            offset += bytesRead;
+            printProgress(offset, totalSize);
+          }
+        } finally {
+          data.close();
+        }
+      } catch (IOException e) {
+        if (!retryAfter(attempt, "download", e)) {
+          System.out.printf("Digite /download %s novamente para continuar de onde parou.%n", fileName);
+          return;
+        }
+      }
+    }
+
+    File targetFile = uniqueTarget(downloadsDir, fileName);
+    if (!partFile.renameTo(targetFile)) {
+      System.err.println("Erro: Não foi possível renomear " + partFile.getName());
+      return;
+    }
+    System.out.printf("Arquivo '%s' recebido com sucesso. Total: %.2f MB%n",
+        targetFile.getName(), totalSize / (1024.0 * 1024.0));
+  }
+
+  /**
+   * Decide se uma transferência interrompida deve ser tentada de novo e
+   * espera antes da próxima tentativa (1s, 2s, 4s...).
+   *
+   * @return false se as tentativas acabaram.
+   */
+  private static boolean retryAfter(int attempt, String operation, IOException e) {
+    if (attempt >= MAX_TRANSFER_ATTEMPTS) {
+      System.out.printf("%nErro no %s: %s. Tentativas esgotadas.%n", operation, e.getMessage());
+      return false;
+    }
+    long delay = 1000L << (attempt - 1);
+    System.out.printf("%nConexão perdida durante o %s (%s). Retomando em %d s...%n",
+        operation, e.getMessage(), delay / 1000);
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Retorna o diretório Downloads, criando-o se necessário.
+   */
+  private static File downloadsDir() {
+    File downloadsDir = new File("Downloads");
+    if (!downloadsDir.exists()) {
+      if (!downloadsDir.mkdir()) {
+        System.err.println("Erro: Não foi possível criar diretório Downloads");
+        return null;
+      }
+    }
+    return downloadsDir;
+  }
+
+  /**
+   * O nome anunciado pelo servidor sem os diretórios, para o arquivo ficar
+   * dentro de Downloads. Devolve null se não sobra um nome que possa ser
+   * usado.
+   */
+  private static String localFileName(String fileName) {
+    String name = new File(fileName).getName();
+    if (name.isEmpty() || ".".equals(name) || "..".equals(name)) {
+      System.err.println("Erro: Nome de arquivo inválido recebido do servidor: " + fileName);
+      return null;
+    }
+    return name;
+  }
+
+  /**
+   * Escolhe um nome que não sobrescreva arquivos existentes: nome_1.ext, nome_2.ext...
+   */
+  private static File uniqueTarget(File downloadsDir, String fileName) {
+    File targetFile = new File(downloadsDir, fileName);
+    int counter = 1;
+    while (targetFile.exists()) {
+      String nameWithoutExt = fileName;
+      String extension = "";
+      int lastDot = fileName.lastIndexOf('.');
+      if (lastDot > 0) {
+        nameWithoutExt = fileName.substring(0, lastDot);
+        extension = fileName.substring(lastDot);
+      }
+      targetFile = new File(downloadsDir, nameWithoutExt + "_" + counter + extension);
+      counter++;
+    }
+    return targetFile;
+  }
+
 }
@@ -0,0 +1,77 @@
+package cliente;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import protocolo.Compression;
+
+/**
+ * Lê a resposta do servidor a um pedido de download ou de recebimento
+ * automático: o long com o total de bytes do trecho, o byte de codec (só se
+ * file-deflate foi negociado) e os dados, crus ou em blocos comprimidos.
+ */
+final class DownloadStream {
+  private final DataInputStream in;
+  private final Compression.ChunkReader reader;
+  private final byte[] chunk;
+  private int chunkPosition;
+  private int chunkLength;
+  private long remaining;
+
+  DownloadStream(DataInputStream in) throws IOException {
+    this.in = in;
+    this.remaining = in.readLong();
+    int codec = Client.fileCompression ? in.readUnsignedByte() : Compression.CODEC_RAW;
+    if (codec == Compression.CODEC_CHUNKS) {
+      reader = new Compression.ChunkReader();
+      chunk = new byte[Compression.CHUNK_SIZE];
+    } else if (codec == Compression.CODEC_RAW) {
+      reader = null;
+      chunk = null;
+    } else {
+      throw new IOException("Codec de download desconhecido: " + codec);
+    }
+  }
+
+  /**
+   * Bytes do trecho que ainda não foram lidos.
+   */
+  long remaining() {
+    return remaining;
+  }
+
+  /**
+   * Lê até length bytes do trecho para buffer.
+   *
+   * @return Quantos bytes foram lidos; nunca 0 enquanto remaining() > 0.
+   */
+  int read(byte[] buffer, int offset, int length) throws IOException {
+    int max = (int) Math.min(length, remaining);
+    int bytesRead;
+    if (reader == null) {
+      bytesRead = in.read(buffer, offset, max);
+      if (bytesRead == -1) {
+        throw new IOException("Conexão encerrada antes do fim do arquivo");
+      }
+    } else {
+      if (chunkPosition == chunkLength) {
+        chunkLength = reader.readChunk(in, chunk);
+        chunkPosition = 0;
+        if (chunkLength == 0 || chunkLength > remaining) {
+          throw new IOException("Bloco comprimido fora do tamanho anunciado");
+        }
+      }
+      bytesRead = Math.min(max, chunkLength - chunkPosition);
+      System.arraycopy(chunk, chunkPosition, buffer, offset, bytesRead);
+      chunkPosition += bytesRead;
+    }
+    remaining -= bytesRead;
+    return bytesRead;
+  }
+
+  void close() {
+    if (reader != null) {
+      reader.close();
+    }
+  }
+}
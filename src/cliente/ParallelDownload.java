@@ -0,0 +1,199 @@
+package cliente;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download de um arquivo compartilhado usando várias conexões em paralelo.
+ * O arquivo é dividido em faixas contíguas, uma por conexão, e cada faixa é
+ * gravada na sua posição de um arquivo '.part' pré-alocado. Em links com
+ * muita latência, uma única conexão TCP não consegue ocupar toda a banda.
+ *
+ * O progresso de cada faixa fica em um arquivo '.ranges' ao lado do '.part',
+ * para que um novo /download continue de onde cada faixa parou.
+ */
+final class ParallelDownload {
+  // Faixas menores que isso não compensam uma conexão extra.
+  static final long MIN_RANGE_SIZE = 2 * 1024 * 1024;
+  // Intervalo de gravação do progresso de uma faixa no arquivo '.ranges'.
+  private static final long PROGRESS_SAVE_INTERVAL = 1024 * 1024;
+
+  private final String ip;
+  private final int port;
+  private final String token;
+  private final File partFile;
+  private final File rangesFile;
+  private final long totalSize;
+
+  private RandomAccessFile ranges;
+  private long[] done;
+  private int streams;
+  private final AtomicLong transferred = new AtomicLong();
+  private volatile IOException failure;
+
+  ParallelDownload(String ip, int port, String token, File partFile, long totalSize) {
+    this.ip = ip;
+    this.port = port;
+    this.token = token;
+    this.partFile = partFile;
+    this.rangesFile = rangesFileFor(partFile);
+    this.totalSize = totalSize;
+  }
+
+  static File rangesFileFor(File partFile) {
+    return new File(partFile.getPath() + ".ranges");
+  }
+
+  /**
+   * Baixa o arquivo com a quantidade de conexões pedida. Se já existir um
+   * download parcial, a divisão em faixas dele é mantida.
+   *
+   * @return true se o arquivo foi baixado por completo.
+   */
+  boolean run(int requestedStreams) throws IOException {
+    openProgress(requestedStreams);
+    try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+      raf.setLength(totalSize);
+    }
+
+    try (FileChannel target = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE)) {
+      Thread[] workers = new Thread[streams];
+      for (int i = 0; i < streams; i++) {
+        int range = i;
+        workers[i] = new Thread(() -> downloadRange(range, target), "download-" + i);
+        workers[i].start();
+      }
+
+      // O progresso é impresso só por esta thread, somando todas as faixas.
+      for (Thread worker : workers) {
+        while (worker.isAlive()) {
+          Client.printProgress(transferred.get(), totalSize);
+          try {
+            worker.join(200);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+        }
+      }
+      Client.printProgress(transferred.get(), totalSize);
+    } finally {
+      ranges.close();
+    }
+
+    if (failure != null) {
+      System.out.printf("%nErro no download: %s.%n", failure.getMessage());
+      return false;
+    }
+    rangesFile.delete();
+    return true;
+  }
+
+  private void openProgress(int requestedStreams) throws IOException {
+    boolean resuming = rangesFile.exists() && rangesFile.length() >= 4;
+    ranges = new RandomAccessFile(rangesFile, "rw");
+    if (resuming) {
+      streams = ranges.readInt();
+      done = new long[streams];
+      for (int i = 0; i < streams; i++) {
+        done[i] = ranges.readLong();
+        transferred.addAndGet(done[i]);
+      }
+      System.out.printf("Retomando download em %d conexões a partir de %.2f MB%n",
+          streams, transferred.get() / (1024.0 * 1024.0));
+    } else {
+      streams = requestedStreams;
+      done = new long[streams];
+      ranges.setLength(0);
+      ranges.writeInt(streams);
+      for (int i = 0; i < streams; i++) {
+        ranges.writeLong(0);
+      }
+      System.out.printf("Iniciando download em %d conexões de %s:%d%n", streams, ip, port);
+    }
+  }
+
+  private long rangeStart(int range) {
+    return totalSize / streams * range;
+  }
+
+  private long rangeEnd(int range) {
+    return range == streams - 1 ? totalSize : rangeStart(range + 1);
+  }
+
+  /**
+   * Baixa uma faixa, reconectando com o mesmo token se a conexão cair.
+   */
+  private void downloadRange(int range, FileChannel target) {
+    long end = rangeEnd(range);
+    for (int attempt = 1;; attempt++) {
+      long position = rangeStart(range) + done[range];
+      if (position >= end || failure != null) {
+        return;
+      }
+      try (Socket fileSocket = Client.connectTransfer(ip, port, token);
+          DataOutputStream out = new DataOutputStream(fileSocket.getOutputStream());
+          DataInputStream in = new DataInputStream(fileSocket.getInputStream())) {
+
+        out.writeLong(position);
+        out.writeLong(end - position);
+        out.flush();
+
+        DownloadStream data = new DownloadStream(in);
+        try {
+          byte[] buffer = new byte[64 * 1024];
+          long unsaved = 0;
+          while (data.remaining() > 0) {
+            int bytesRead = data.read(buffer, 0, buffer.length);
+            // Escrita posicional: as faixas gravam no mesmo canal sem disputar a posição.
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, bytesRead);
+            while (bytes.hasRemaining()) {
+              position += target.write(bytes, position);
+            }
+            done[range] += bytesRead;
+            transferred.addAndGet(bytesRead);
+            unsaved += bytesRead;
+            if (unsaved >= PROGRESS_SAVE_INTERVAL) {
+              saveProgress(range);
+              unsaved = 0;
+            }
+          }
+        } finally {
+          data.close();
+        }
+        saveProgress(range);
+        return;
+      } catch (IOException e) {
+        try {
+          saveProgress(range);
+        } catch (IOException ignored) {
+        }
+        if (attempt >= Client.MAX_TRANSFER_ATTEMPTS) {
+          failure = e;
+          return;
+        }
+        try {
+          Thread.sleep(1000L << (attempt - 1));
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void saveProgress(int range) throws IOException {
+    synchronized (ranges) {
+      ranges.seek(4 + 8L * range);
+      ranges.writeLong(done[range]);
+    }
+  }
+}
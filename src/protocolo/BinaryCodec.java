@@ -0,0 +1,411 @@
+package protocolo;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Protocolo binário da conexão de chat, negociado no HELLO com o recurso
+ * "binary-v1". Cada mensagem é um quadro:
+ *
+ * [int tamanho][byte opcode][campos]
+ *
+ * onde tamanho conta o opcode e os campos. Os campos têm tipo fixo por
+ * opcode: texto é [int tamanho][UTF-8], números são int ou long e booleanos
+ * um byte. Uma versão nova do formato seria um recurso novo ("binary-v2"),
+ * negociado da mesma forma.
+ *
+ * A decodificação é feita por tabela: o opcode indexa o decodificador, que
+ * lê os campos direto do buffer recebido e chama o handler.
+ */
+public final class BinaryCodec extends Codec {
+  public static final String FEATURE = "binary-v1";
+  // Mesmo limite das linhas do protocolo de texto.
+  public static final int MAX_FRAME_SIZE = 64 * 1024;
+
+  // Cliente -> servidor
+  private static final int LOGIN = 0x01;
+  private static final int CHAT = 0x02;
+  private static final int PRIVATE_MESSAGE = 0x03;
+  private static final int SENDFILE_REQUEST = 0x04;
+  private static final int SENDFILE_ACCEPT = 0x05;
+  private static final int DOWNLOAD = 0x06;
+  private static final int AUTORECEIVE = 0x07;
+  private static final int QUIT = 0x08;
+  private static final int JOIN = 0x09;
+  private static final int LEAVE = 0x0A;
+  private static final int HISTORY = 0x0B;
+
+  // Servidor -> cliente
+  private static final int MESSAGE = 0x41;
+  private static final int INCOMING_FILE = 0x42;
+  private static final int BROADCAST_FILE = 0x43;
+  private static final int UPLOAD_READY = 0x44;
+  private static final int DOWNLOAD_READY = 0x45;
+  private static final int PUSH_READY = 0x46;
+  private static final int TRANSFER_READY = 0x47;
+
+  private interface ServerDecoder {
+    /** @return false se o cliente pediu para sair. */
+    boolean decode(ByteBuffer frame, ServerBound handler) throws ProtocolException;
+  }
+
+  private interface ClientDecoder {
+    void decode(ByteBuffer frame, ClientBound handler) throws ProtocolException;
+  }
+
+  private static final ServerDecoder[] SERVER_BOUND = new ServerDecoder[256];
+  private static final ClientDecoder[] CLIENT_BOUND = new ClientDecoder[256];
+
+  static {
+    SERVER_BOUND[CHAT] = (f, h) -> {
+      h.chat(string(f));
+      return true;
+    };
+    SERVER_BOUND[PRIVATE_MESSAGE] = (f, h) -> {
+      h.privateMessage(string(f), string(f));
+      return true;
+    };
+    SERVER_BOUND[SENDFILE_REQUEST] = (f, h) -> {
+      h.sendFileRequest(string(f), string(f), f.getLong());
+      return true;
+    };
+    SERVER_BOUND[SENDFILE_ACCEPT] = (f, h) -> {
+      h.acceptFile(string(f));
+      return true;
+    };
+    SERVER_BOUND[DOWNLOAD] = (f, h) -> {
+      h.download(string(f));
+      return true;
+    };
+    SERVER_BOUND[AUTORECEIVE] = (f, h) -> {
+      h.autoReceive(f.get() != 0);
+      return true;
+    };
+    SERVER_BOUND[QUIT] = (f, h) -> false;
+    SERVER_BOUND[JOIN] = (f, h) -> {
+      h.join(string(f));
+      return true;
+    };
+    SERVER_BOUND[LEAVE] = (f, h) -> {
+      h.leave();
+      return true;
+    };
+    SERVER_BOUND[HISTORY] = (f, h) -> {
+      h.history(string(f));
+      return true;
+    };
+
+    CLIENT_BOUND[MESSAGE] = (f, h) -> h.message(string(f));
+    CLIENT_BOUND[INCOMING_FILE] = (f, h) -> h.incomingFile(string(f), string(f), f.getLong());
+    CLIENT_BOUND[BROADCAST_FILE] = (f, h) -> h.broadcastFile(string(f), string(f), f.getLong());
+    CLIENT_BOUND[UPLOAD_READY] = (f, h) -> h.uploadReady(string(f), f.getInt(), string(f), string(f));
+    CLIENT_BOUND[DOWNLOAD_READY] = (f, h) -> h.downloadReady(string(f), f.getInt(), string(f), string(f),
+        f.getLong());
+    CLIENT_BOUND[PUSH_READY] = (f, h) -> h.pushReady(string(f), f.getInt(), string(f), string(f), f.getLong(),
+        string(f));
+    CLIENT_BOUND[TRANSFER_READY] = (f, h) -> h.transferReady(string(f), f.getInt(), string(f), string(f),
+        string(f), f.get() != 0);
+  }
+
+  BinaryCodec() {
+  }
+
+  /**
+   * Lê o quadro de login, o primeiro depois da negociação.
+   *
+   * @param frame O quadro, do opcode ao fim dos campos.
+   * @return O nome de usuário.
+   */
+  public static String decodeLogin(ByteBuffer frame) throws ProtocolException {
+    try {
+      int opcode = frame.get() & 0xFF;
+      if (opcode != LOGIN) {
+        throw new ProtocolException("Esperado o quadro de login, recebido o opcode " + opcode);
+      }
+      return string(frame);
+    } catch (BufferUnderflowException e) {
+      throw new ProtocolException("Quadro de login truncado");
+    }
+  }
+
+  /**
+   * Decodifica um quadro de um cliente já identificado.
+   *
+   * @param frame O quadro, do opcode ao fim dos campos.
+   * @return false se o cliente pediu para sair, true caso contrário.
+   */
+  public static boolean decodeServerBound(ByteBuffer frame, ServerBound handler) throws ProtocolException {
+    int opcode = frame.get() & 0xFF;
+    ServerDecoder decoder = SERVER_BOUND[opcode];
+    if (decoder == null) {
+      throw new ProtocolException("Opcode desconhecido: " + opcode);
+    }
+    try {
+      return decoder.decode(frame, handler);
+    } catch (BufferUnderflowException e) {
+      throw new ProtocolException("Quadro truncado, opcode " + opcode);
+    }
+  }
+
+  /**
+   * Decodifica um quadro recebido do servidor.
+   *
+   * @param frame O quadro, do opcode ao fim dos campos.
+   */
+  public static void decodeClientBound(ByteBuffer frame, ClientBound handler) throws ProtocolException {
+    int opcode = frame.get() & 0xFF;
+    ClientDecoder decoder = CLIENT_BOUND[opcode];
+    if (decoder == null) {
+      throw new ProtocolException("Opcode desconhecido: " + opcode);
+    }
+    try {
+      decoder.decode(frame, handler);
+    } catch (BufferUnderflowException e) {
+      throw new ProtocolException("Quadro truncado, opcode " + opcode);
+    }
+  }
+
+  /**
+   * Lê o próximo quadro de um fluxo bloqueante.
+   *
+   * @param buffer Buffer de trabalho. Se o quadro não couber, outro maior é
+   *               criado e devolvido; o chamador deve guardá-lo.
+   * @return O buffer com o quadro entre position e limit, ou null no fim do
+   *         fluxo.
+   */
+  public static ByteBuffer readFrame(DataInputStream in, ByteBuffer buffer) throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    checkLength(length);
+    if (buffer.capacity() < length) {
+      buffer = ByteBuffer.allocate(Math.min(Math.max(length, buffer.capacity() * 2), MAX_FRAME_SIZE));
+    }
+    in.readFully(buffer.array(), buffer.arrayOffset(), length);
+    buffer.clear();
+    buffer.limit(length);
+    return buffer;
+  }
+
+  /**
+   * Valida o tamanho lido no início de um quadro.
+   */
+  public static void checkLength(int length) throws ProtocolException {
+    if (length < 1 || length > MAX_FRAME_SIZE) {
+      throw new ProtocolException("Quadro com tamanho inválido: " + length);
+    }
+  }
+
+  private static String string(ByteBuffer frame) throws ProtocolException {
+    int length = frame.getInt();
+    if (length < 0 || length > frame.remaining()) {
+      throw new ProtocolException("Campo de texto com tamanho inválido: " + length);
+    }
+    String value;
+    if (frame.hasArray()) {
+      value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+      frame.position(frame.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      frame.get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+    }
+    if (hasControl(value)) {
+      throw new ProtocolException("Campo de texto com caractere de controle");
+    }
+    return value;
+  }
+
+  /**
+   * Monta um quadro com o tamanho exato: os textos são convertidos para
+   * UTF-8 antes, para que o tamanho seja conhecido.
+   */
+  private static final class FrameBuilder {
+    private final ByteBuffer frame;
+
+    FrameBuilder(int opcode, int fieldsSize) {
+      if (1 + fieldsSize > MAX_FRAME_SIZE) {
+        throw new IllegalArgumentException("Mensagem excede o tamanho máximo de um quadro");
+      }
+      frame = ByteBuffer.allocate(4 + 1 + fieldsSize);
+      frame.putInt(1 + fieldsSize);
+      frame.put((byte) opcode);
+    }
+
+    FrameBuilder string(byte[] utf8) {
+      frame.putInt(utf8.length);
+      frame.put(utf8);
+      return this;
+    }
+
+    FrameBuilder putInt(int value) {
+      frame.putInt(value);
+      return this;
+    }
+
+    FrameBuilder putLong(long value) {
+      frame.putLong(value);
+      return this;
+    }
+
+    FrameBuilder putBoolean(boolean value) {
+      frame.put((byte) (value ? 1 : 0));
+      return this;
+    }
+
+    byte[] build() {
+      return frame.array();
+    }
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] single(int opcode, String value) {
+    byte[] bytes = utf8(value);
+    return new FrameBuilder(opcode, 4 + bytes.length).string(bytes).build();
+  }
+
+  @Override
+  public byte[] login(String username) {
+    return single(LOGIN, username);
+  }
+
+  @Override
+  public byte[] chat(String message) {
+    return single(CHAT, message);
+  }
+
+  @Override
+  public byte[] privateMessage(String recipient, String message) {
+    byte[] to = utf8(recipient);
+    byte[] text = utf8(message);
+    return new FrameBuilder(PRIVATE_MESSAGE, 8 + to.length + text.length).string(to).string(text).build();
+  }
+
+  @Override
+  public byte[] sendFileRequest(String recipient, String fileName, long fileSize) {
+    byte[] to = utf8(recipient);
+    byte[] name = utf8(fileName);
+    return new FrameBuilder(SENDFILE_REQUEST, 16 + to.length + name.length)
+        .string(to).string(name).putLong(fileSize).build();
+  }
+
+  @Override
+  public byte[] acceptFile(String sender) {
+    return single(SENDFILE_ACCEPT, sender);
+  }
+
+  @Override
+  public byte[] download(String fileName) {
+    return single(DOWNLOAD, fileName);
+  }
+
+  @Override
+  public byte[] autoReceive(boolean enabled) {
+    return new FrameBuilder(AUTORECEIVE, 1).putBoolean(enabled).build();
+  }
+
+  @Override
+  public byte[] join(String room) {
+    return single(JOIN, room);
+  }
+
+  @Override
+  public byte[] leave() {
+    return new FrameBuilder(LEAVE, 0).build();
+  }
+
+  @Override
+  public byte[] history(String query) {
+    return single(HISTORY, query);
+  }
+
+  @Override
+  public byte[] quit() {
+    return new FrameBuilder(QUIT, 0).build();
+  }
+
+  @Override
+  public byte[] message(String text) {
+    byte[] bytes = utf8(text);
+    // O servidor limita o que os clientes enviam, mas os avisos repetem
+    // nomes e textos recebidos; o que não couber num quadro é cortado, em
+    // vez de derrubar quem está enviando.
+    int max = MAX_FRAME_SIZE - 1 - 4;
+    if (bytes.length > max) {
+      int end = max;
+      while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+        end--;
+      }
+      bytes = Arrays.copyOf(bytes, end);
+    }
+    return new FrameBuilder(MESSAGE, 4 + bytes.length).string(bytes).build();
+  }
+
+  @Override
+  public byte[] incomingFile(String sender, String fileName, long fileSize) {
+    return fileNotice(INCOMING_FILE, sender, fileName, fileSize);
+  }
+
+  @Override
+  public byte[] broadcastFile(String sender, String fileName, long fileSize) {
+    return fileNotice(BROADCAST_FILE, sender, fileName, fileSize);
+  }
+
+  private static byte[] fileNotice(int opcode, String sender, String fileName, long fileSize) {
+    byte[] from = utf8(sender);
+    byte[] name = utf8(fileName);
+    return new FrameBuilder(opcode, 16 + from.length + name.length)
+        .string(from).string(name).putLong(fileSize).build();
+  }
+
+  @Override
+  public byte[] uploadReady(String host, int port, String token, String fileName) {
+    byte[] h = utf8(host);
+    byte[] t = utf8(token);
+    byte[] name = utf8(fileName);
+    return new FrameBuilder(UPLOAD_READY, 16 + h.length + t.length + name.length)
+        .string(h).putInt(port).string(t).string(name).build();
+  }
+
+  @Override
+  public byte[] downloadReady(String host, int port, String token, String fileName, long fileSize) {
+    byte[] h = utf8(host);
+    byte[] t = utf8(token);
+    byte[] name = utf8(fileName);
+    return new FrameBuilder(DOWNLOAD_READY, 24 + h.length + t.length + name.length)
+        .string(h).putInt(port).string(t).string(name).putLong(fileSize).build();
+  }
+
+  @Override
+  public byte[] pushReady(String host, int port, String token, String fileName, long fileSize, String sender) {
+    byte[] h = utf8(host);
+    byte[] t = utf8(token);
+    byte[] name = utf8(fileName);
+    byte[] from = utf8(sender);
+    return new FrameBuilder(PUSH_READY, 28 + h.length + t.length + name.length + from.length)
+        .string(h).putInt(port).string(t).string(name).putLong(fileSize).string(from).build();
+  }
+
+  @Override
+  public byte[] transferReady(String host, int port, String token, String peer, String fileName,
+      boolean deflate) {
+    byte[] h = utf8(host);
+    byte[] t = utf8(token);
+    byte[] p = utf8(peer);
+    byte[] name = utf8(fileName);
+    return new FrameBuilder(TRANSFER_READY, 21 + h.length + t.length + p.length + name.length)
+        .string(h).putInt(port).string(t).string(p).string(name).putBoolean(deflate).build();
+  }
+}
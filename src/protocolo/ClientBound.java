@@ -0,0 +1,35 @@
+package protocolo;
+
+/**
+ * Mensagens que o servidor envia ao cliente, já decodificadas por TextCodec
+ * ou BinaryCodec.
+ */
+public interface ClientBound {
+
+  /** Texto para exibir: mensagens do chat e avisos do servidor. */
+  void message(String text);
+
+  /** Outro usuário quer enviar um arquivo privado. */
+  void incomingFile(String sender, String fileName, long fileSize);
+
+  /** Um arquivo foi compartilhado com a sala e pode ser baixado. */
+  void broadcastFile(String sender, String fileName, long fileSize);
+
+  /** O servidor está pronto para receber o upload de um arquivo para @all. */
+  void uploadReady(String host, int port, String token, String fileName);
+
+  /** O servidor está pronto para enviar um arquivo pedido com /download. */
+  void downloadReady(String host, int port, String token, String fileName, long fileSize);
+
+  /** Recebimento automático de um arquivo enviado para @all. */
+  void pushReady(String host, int port, String token, String fileName, long fileSize, String sender);
+
+  /**
+   * Os dois lados de uma transferência privada podem conectar.
+   *
+   * @param fileName O arquivo da oferta aceita. O remetente só envia se
+   *                 ofereceu esse arquivo a peer.
+   * @param deflate  Se os blocos vão comprimidos (ver Compression).
+   */
+  void transferReady(String host, int port, String token, String peer, String fileName, boolean deflate);
+}
@@ -0,0 +1,80 @@
+package protocolo;
+
+/**
+ * Codificação das mensagens da conexão de chat. Há duas:
+ *
+ * TEXT   - o protocolo original, uma linha UTF-8 por mensagem. É o usado por
+ *          clientes que não negociam nada, e continua sendo o padrão.
+ * BINARY - quadros [int tamanho][byte opcode][campos], negociados no HELLO
+ *          com o recurso "binary-v1" (ver BinaryCodec). A decodificação não
+ *          precisa quebrar a linha em pedaços.
+ *
+ * Os dois protocolos chegam às mesmas sessões: o que um cliente binário
+ * escreve pode ser repassado a um cliente de texto. Por isso nenhum dos dois
+ * aceita caracteres de controle nos campos (ver hasControl), e nomes de
+ * usuário e de arquivo também não têm espaços.
+ *
+ * Cada método devolve a mensagem pronta para ser escrita no socket. O array
+ * pode ser enviado a várias sessões e nunca é modificado.
+ */
+public abstract class Codec {
+  public static final Codec TEXT = new TextCodec();
+  public static final Codec BINARY = new BinaryCodec();
+
+  /**
+   * Indica se o texto tem algum caractere de controle, como '\n' ou '\r'.
+   * Repassado a um cliente de texto, ele quebraria a linha e permitiria
+   * forjar comandos do servidor.
+   */
+  public static boolean hasControl(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      if (Character.isISOControl(text.charAt(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // ---- Cliente -> servidor ----
+
+  /** Primeira mensagem depois da negociação: o nome de usuário. */
+  public abstract byte[] login(String username);
+
+  public abstract byte[] chat(String message);
+
+  public abstract byte[] privateMessage(String recipient, String message);
+
+  public abstract byte[] sendFileRequest(String recipient, String fileName, long fileSize);
+
+  public abstract byte[] acceptFile(String sender);
+
+  public abstract byte[] download(String fileName);
+
+  public abstract byte[] autoReceive(boolean enabled);
+
+  public abstract byte[] join(String room);
+
+  public abstract byte[] leave();
+
+  public abstract byte[] history(String query);
+
+  public abstract byte[] quit();
+
+  // ---- Servidor -> cliente ----
+
+  public abstract byte[] message(String text);
+
+  public abstract byte[] incomingFile(String sender, String fileName, long fileSize);
+
+  public abstract byte[] broadcastFile(String sender, String fileName, long fileSize);
+
+  public abstract byte[] uploadReady(String host, int port, String token, String fileName);
+
+  public abstract byte[] downloadReady(String host, int port, String token, String fileName, long fileSize);
+
+  public abstract byte[] pushReady(String host, int port, String token, String fileName, long fileSize,
+      String sender);
+
+  public abstract byte[] transferReady(String host, int port, String token, String peer, String fileName,
+      boolean deflate);
+}
@@ -0,0 +1,263 @@
+package protocolo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressão usada pelo cliente e pelo servidor, negociada na conexão de chat.
+ *
+ * Logo ao conectar, o servidor envia "HELLO" com os recursos que oferece. Um
+ * cliente que entende a negociação responde, antes do nome de usuário, com
+ * "HELLO" e os recursos que quer usar; o servidor confirma com "HELLO_OK".
+ * Clientes antigos simplesmente enviam o nome de usuário e seguem sem
+ * compressão.
+ *
+ * Recursos:
+ * file-deflate - blocos de arquivo comprimidos com Deflater (ver writeChunk);
+ * chat-deflate - o restante da conexão de chat, nos dois sentidos, passa por
+ *                um fluxo deflate com SYNC_FLUSH a cada envio;
+ * binary-v1    - o restante da conexão de chat usa quadros binários em vez
+ *                de linhas (ver BinaryCodec). Com chat-deflate, os quadros é
+ *                que são comprimidos.
+ */
+public final class Compression {
+  public static final String HELLO = "HELLO";
+  public static final String HELLO_OK = "HELLO_OK";
+  public static final String FILE_DEFLATE = "file-deflate";
+  public static final String CHAT_DEFLATE = "chat-deflate";
+
+  /** Codecs de um download, enviado pelo servidor depois do tamanho. */
+  public static final int CODEC_RAW = 0;
+  public static final int CODEC_CHUNKS = 1;
+
+  /** Tamanho dos blocos comprimidos nos downloads e transferências privadas. */
+  public static final int CHUNK_SIZE = 256 * 1024;
+
+  // Depois de tantos blocos seguidos que não diminuíram, o conteúdo é tratado
+  // como já comprimido e o resto vai sem tentar comprimir.
+  private static final int MAX_INCOMPRESSIBLE_RUN = 4;
+
+  // Formatos que já são comprimidos: nem vale a pena tentar.
+  private static final Set<String> PRECOMPRESSED = new HashSet<>(Arrays.asList(
+      "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "jar", "apk",
+      "jpg", "jpeg", "png", "gif", "webp", "heic",
+      "mp3", "aac", "ogg", "flac", "m4a",
+      "mp4", "mkv", "avi", "mov", "webm",
+      "pdf", "docx", "xlsx", "pptx", "odt", "ods"));
+
+  private Compression() {
+  }
+
+  /**
+   * Indica, pela extensão, se o arquivo já é comprimido.
+   */
+  public static boolean isPrecompressed(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    return dot >= 0 && PRECOMPRESSED.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Lista de recursos em uma linha HELLO/HELLO_OK.
+   */
+  public static Set<String> features(String helloLine) {
+    Set<String> features = new HashSet<>(Arrays.asList(helloLine.trim().split(" +")));
+    features.remove(HELLO);
+    features.remove(HELLO_OK);
+    return features;
+  }
+
+  /**
+   * Lê uma linha byte a byte, sem ler nada além do '\n'. Usado na negociação,
+   * em que o que vem depois da linha pode já estar comprimido.
+   *
+   * @return A linha sem o '\n', ou null no fim do fluxo.
+   */
+  public static String readLineUnbuffered(InputStream in, int maxLength) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8.name());
+      }
+      if (line.size() >= maxLength) {
+        throw new IOException("Linha excede o tamanho máximo permitido");
+      }
+      line.write(b);
+    }
+    int length = line.size();
+    byte[] bytes = line.toByteArray();
+    if (length > 0 && bytes[length - 1] == '\r') {
+      length--;
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Escreve blocos no formato [int tamanho][bytes]. Um tamanho negativo -n
+   * indica n bytes comprimidos com deflate, que descomprimem para no máximo
+   * o tamanho de bloco combinado. Cada bloco comprimido é independente, então
+   * uma transferência pode ser retomada em qualquer bloco.
+   */
+  public static final class ChunkWriter {
+    private final Deflater deflater;
+    private byte[] compressed = new byte[0];
+    private int incompressibleRun;
+
+    /**
+     * @param level Nível do Deflater (1 a 9), ou null para nunca comprimir.
+     */
+    public ChunkWriter(Integer level) {
+      this.deflater = level == null ? null : new Deflater(level);
+    }
+
+    public void writeChunk(DataOutputStream out, byte[] data, int offset, int length) throws IOException {
+      if (deflater != null && incompressibleRun < MAX_INCOMPRESSIBLE_RUN && length > 0) {
+        if (compressed.length < length) {
+          compressed = new byte[length];
+        }
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < length) {
+          size += deflater.deflate(compressed, size, length - size);
+        }
+        if (deflater.finished() && size < length) {
+          incompressibleRun = 0;
+          out.writeInt(-size);
+          out.write(compressed, 0, size);
+          return;
+        }
+        incompressibleRun++;
+      }
+      out.writeInt(length);
+      out.write(data, offset, length);
+    }
+
+    /**
+     * Escreve o bloco vazio que marca o fim da transferência.
+     */
+    public void writeEnd(DataOutputStream out) throws IOException {
+      out.writeInt(0);
+    }
+
+    public void close() {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Lê os blocos escritos por ChunkWriter.
+   */
+  public static final class ChunkReader {
+    private final Inflater inflater = new Inflater();
+    private final byte[] probe = new byte[1];
+    private byte[] compressed = new byte[0];
+
+    /**
+     * Lê um bloco para dest.
+     *
+     * @return Quantos bytes foram colocados em dest; 0 no bloco de fim.
+     */
+    public int readChunk(DataInputStream in, byte[] dest) throws IOException {
+      int length = in.readInt();
+      if (length >= 0) {
+        if (length > dest.length) {
+          throw new IOException("Bloco com tamanho inválido: " + length);
+        }
+        in.readFully(dest, 0, length);
+        return length;
+      }
+
+      int size = -length;
+      if (size > dest.length) {
+        throw new IOException("Bloco comprimido com tamanho inválido: " + size);
+      }
+      if (compressed.length < size) {
+        compressed = new byte[size];
+      }
+      in.readFully(compressed, 0, size);
+      inflater.reset();
+      inflater.setInput(compressed, 0, size);
+      try {
+        int inflated = 0;
+        while (!inflater.finished() && inflated < dest.length) {
+          int n = inflater.inflate(dest, inflated, dest.length - inflated);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Bloco comprimido incompleto");
+          }
+          inflated += n;
+        }
+        // Com dest cheio, o fim do fluxo deflate pode ainda não ter sido lido.
+        if (!inflater.finished() && (inflater.inflate(probe) != 0 || !inflater.finished())) {
+          // Descomprimiria para mais do que o tamanho de bloco combinado.
+          throw new IOException("Bloco comprimido excede o tamanho máximo");
+        }
+        return inflated;
+      } catch (DataFormatException e) {
+        throw new IOException("Bloco comprimido inválido: " + e.getMessage());
+      }
+    }
+
+    public void close() {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Fluxo de saída que comprime tudo o que passa e faz SYNC_FLUSH a cada
+   * flush, para que o outro lado receba as mensagens sem esperar mais dados.
+   */
+  public static OutputStream deflating(OutputStream out, int level) {
+    return new DeflaterOutputStream(out, new Deflater(level), 8192, true) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          def.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * Fluxo de entrada que descomprime o que foi escrito por deflating.
+   */
+  public static InputStream inflating(InputStream in) {
+    return new InflaterInputStream(in, new Inflater(), 8192) {
+      // O InflaterInputStream responde 1 até o fim do fluxo, e o
+      // InputStreamReader, achando que há mais bytes prontos, ficaria
+      // bloqueado esperando a próxima mensagem em vez de entregar a atual.
+      @Override
+      public int available() {
+        return 0;
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inf.end();
+        }
+      }
+    };
+  }
+}
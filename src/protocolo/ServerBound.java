@@ -0,0 +1,49 @@
+package protocolo;
+
+/**
+ * Comandos que o cliente envia ao servidor depois do login, já
+ * decodificados por TextCodec ou BinaryCodec.
+ */
+public interface ServerBound {
+
+  /** Mensagem para a sala. */
+  void chat(String message);
+
+  /** Mensagem privada: @destinatario mensagem. */
+  void privateMessage(String recipient, String message);
+
+  /**
+   * Pedido de envio de arquivo. recipient é o nome do destinatário, ou
+   * "@all" para compartilhar com a sala.
+   */
+  void sendFileRequest(String recipient, String fileName, long fileSize);
+
+  /** O destinatário aceitou o arquivo oferecido por sender. */
+  void acceptFile(String sender);
+
+  /** /download de um arquivo compartilhado. */
+  void download(String fileName);
+
+  /** /autoreceive on|off. */
+  void autoReceive(boolean enabled);
+
+  /** /join sala: muda o usuário de sala. */
+  void join(String room);
+
+  /** /leave: volta para a sala padrão. */
+  void leave();
+
+  /**
+   * /history [#sala|@usuário] [desde] [quantidade].
+   *
+   * @param query Os argumentos, como digitados (vazio para o padrão).
+   */
+  void history(String query);
+
+  /**
+   * Comando reconhecido, mas com argumentos inválidos.
+   *
+   * @param usage Como o comando deve ser usado, ex.: "@user <mensagem>".
+   */
+  void invalid(String usage);
+}
@@ -0,0 +1,225 @@
+package protocolo;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * O protocolo de texto original: cada mensagem é uma linha UTF-8 terminada
+ * em '\n', com os campos separados por espaço. Continua sendo usado com
+ * clientes que não negociam o protocolo binário.
+ */
+public final class TextCodec extends Codec {
+
+  TextCodec() {
+  }
+
+  /**
+   * Interpreta uma linha de um cliente já identificado.
+   *
+   * @return false se o cliente pediu para sair, true caso contrário.
+   */
+  public static boolean decodeServerBound(String line, ServerBound handler) {
+    line = line.trim();
+    if ("sair".equalsIgnoreCase(line)) {
+      return false;
+    }
+
+    if (hasControl(line)) {
+      // Um tab ou '\r' no meio da linha iria para os outros clientes.
+      handler.invalid("texto sem caracteres de controle");
+    } else if (line.startsWith("SENDFILE_REQUEST")) {
+      // Ex: SENDFILE_REQUEST @bob relatorio.pdf 123456
+      String[] parts = line.split(" ", 4);
+      if (parts.length == 4) {
+        long fileSize;
+        try {
+          fileSize = Long.parseLong(parts[3]);
+        } catch (NumberFormatException e) {
+          handler.invalid("SENDFILE_REQUEST <destinatário> <arquivo> <tamanho>");
+          return true;
+        }
+        handler.sendFileRequest(parts[1], parts[2], fileSize);
+      }
+    } else if (line.startsWith("SENDFILE_ACCEPT")) {
+      String[] parts = line.split(" ", 2);
+      if (parts.length == 2) {
+        handler.acceptFile(parts[1]);
+      }
+    } else if (line.startsWith("/download")) {
+      String[] parts = line.split(" ", 2);
+      if (parts.length == 2) {
+        handler.download(parts[1]);
+      }
+    } else if (line.startsWith("/autoreceive")) {
+      // /autoreceive on|off
+      String[] parts = line.split(" ", 2);
+      if (parts.length == 2 && ("on".equalsIgnoreCase(parts[1]) || "off".equalsIgnoreCase(parts[1]))) {
+        handler.autoReceive("on".equalsIgnoreCase(parts[1]));
+      } else {
+        handler.invalid("/autoreceive on|off");
+      }
+    } else if (line.startsWith("/join")) {
+      String[] parts = line.split(" ", 2);
+      if (parts.length == 2) {
+        handler.join(parts[1]);
+      } else {
+        handler.invalid("/join <sala>");
+      }
+    } else if ("/leave".equalsIgnoreCase(line)) {
+      handler.leave();
+    } else if ("/history".equalsIgnoreCase(line) || line.startsWith("/history ")) {
+      handler.history(line.substring("/history".length()).trim());
+    } else if (line.startsWith("@")) {
+      // Divide a msg em destinatario e conteudo
+      String[] parts = line.split(" ", 2);
+      if (parts.length == 2) {
+        handler.privateMessage(parts[0].substring(1), parts[1]);
+      } else {
+        handler.invalid("@user <mensagem>");
+      }
+    } else {
+      handler.chat(line);
+    }
+    return true;
+  }
+
+  /**
+   * Interpreta uma linha recebida do servidor. Linhas que não são comandos,
+   * ou que começam como um comando mas não têm os campos dele, são exibidas
+   * como mensagens.
+   */
+  public static void decodeClientBound(String line, ClientBound handler) {
+    try {
+      decodeCommand(line, handler);
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      handler.message(line);
+    }
+  }
+
+  private static void decodeCommand(String line, ClientBound handler) {
+    if (line.startsWith("INCOMING_FILE")) {
+      // INCOMING_FILE @remetente nome_arquivo tamanho
+      String[] parts = line.split(" ", 4);
+      handler.incomingFile(parts[1].substring(1), parts[2], Long.parseLong(parts[3]));
+    } else if (line.startsWith("BROADCAST_FILE")) {
+      // BROADCAST_FILE @remetente nome_arquivo tamanho
+      String[] parts = line.split(" ", 4);
+      handler.broadcastFile(parts[1].substring(1), parts[2], Long.parseLong(parts[3]));
+    } else if (line.startsWith("UPLOAD_READY")) {
+      // UPLOAD_READY ip porta token nome_arquivo
+      String[] parts = line.split(" ", 5);
+      handler.uploadReady(parts[1], Integer.parseInt(parts[2]), parts[3], parts[4]);
+    } else if (line.startsWith("DOWNLOAD_READY")) {
+      // DOWNLOAD_READY ip porta token nome_arquivo tamanho
+      String[] parts = line.split(" ", 6);
+      handler.downloadReady(parts[1], Integer.parseInt(parts[2]), parts[3], parts[4], Long.parseLong(parts[5]));
+    } else if (line.startsWith("PUSH_READY")) {
+      // PUSH_READY ip porta token nome_arquivo tamanho @remetente
+      String[] parts = line.split(" ", 7);
+      handler.pushReady(parts[1], Integer.parseInt(parts[2]), parts[3], parts[4], Long.parseLong(parts[5]),
+          parts[6].substring(1));
+    } else if (line.startsWith("TRANSFER_READY")) {
+      // TRANSFER_READY ip porta token @outro_usuario nome_arquivo [deflate]
+      String[] parts = line.split(" ");
+      handler.transferReady(parts[1], Integer.parseInt(parts[2]), parts[3], parts[4].substring(1), parts[5],
+          parts.length > 6 && "deflate".equals(parts[6]));
+    } else {
+      handler.message(line);
+    }
+  }
+
+  private static byte[] line(String text) {
+    return (text + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public byte[] login(String username) {
+    return line(username);
+  }
+
+  @Override
+  public byte[] chat(String message) {
+    return line(message);
+  }
+
+  @Override
+  public byte[] privateMessage(String recipient, String message) {
+    return line("@" + recipient + " " + message);
+  }
+
+  @Override
+  public byte[] sendFileRequest(String recipient, String fileName, long fileSize) {
+    return line(String.format("SENDFILE_REQUEST %s %s %d", recipient, fileName, fileSize));
+  }
+
+  @Override
+  public byte[] acceptFile(String sender) {
+    return line("SENDFILE_ACCEPT " + sender);
+  }
+
+  @Override
+  public byte[] download(String fileName) {
+    return line("/download " + fileName);
+  }
+
+  @Override
+  public byte[] autoReceive(boolean enabled) {
+    return line("/autoreceive " + (enabled ? "on" : "off"));
+  }
+
+  @Override
+  public byte[] join(String room) {
+    return line("/join " + room);
+  }
+
+  @Override
+  public byte[] leave() {
+    return line("/leave");
+  }
+
+  @Override
+  public byte[] history(String query) {
+    return line(query.isEmpty() ? "/history" : "/history " + query);
+  }
+
+  @Override
+  public byte[] quit() {
+    return line("sair");
+  }
+
+  @Override
+  public byte[] message(String text) {
+    return line(text);
+  }
+
+  @Override
+  public byte[] incomingFile(String sender, String fileName, long fileSize) {
+    return line(String.format("INCOMING_FILE @%s %s %d", sender, fileName, fileSize));
+  }
+
+  @Override
+  public byte[] broadcastFile(String sender, String fileName, long fileSize) {
+    return line(String.format("BROADCAST_FILE @%s %s %d", sender, fileName, fileSize));
+  }
+
+  @Override
+  public byte[] uploadReady(String host, int port, String token, String fileName) {
+    return line(String.format("UPLOAD_READY %s %d %s %s", host, port, token, fileName));
+  }
+
+  @Override
+  public byte[] downloadReady(String host, int port, String token, String fileName, long fileSize) {
+    return line(String.format("DOWNLOAD_READY %s %d %s %s %d", host, port, token, fileName, fileSize));
+  }
+
+  @Override
+  public byte[] pushReady(String host, int port, String token, String fileName, long fileSize, String sender) {
+    return line(String.format("PUSH_READY %s %d %s %s %d @%s", host, port, token, fileName, fileSize, sender));
+  }
+
+  @Override
+  public byte[] transferReady(String host, int port, String token, String peer, String fileName,
+      boolean deflate) {
+    return line(String.format("TRANSFER_READY %s %d %s @%s %s%s", host, port, token, peer, fileName,
+        deflate ? " deflate" : ""));
+  }
+}
@@ -0,0 +1,85 @@
+package servidor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores da distribuição do tamanho dos lotes de escrita: quantas
+ * mensagens de chat foram enviadas para o socket a cada flush (modo blocking)
+ * ou a cada escrita com gathering (modo nio).
+ *
+ * As faixas são potências de 2: 1, 2-3, 4-7, ..., 64+ mensagens.
+ */
+final class BatchStats {
+  private static final int BUCKETS = 7;
+  private static final LongAdder[] batchesBySize = new LongAdder[BUCKETS];
+  private static final LongAdder batches = new LongAdder();
+  private static final LongAdder frames = new LongAdder();
+
+  static {
+    for (int i = 0; i < BUCKETS; i++) {
+      batchesBySize[i] = new LongAdder();
+    }
+  }
+
+  private BatchStats() {
+  }
+
+  /**
+   * Registra um lote escrito com a quantidade de mensagens informada.
+   */
+  static void record(int batchSize) {
+    if (batchSize <= 0) {
+      return;
+    }
+    int bucket = Math.min(31 - Integer.numberOfLeadingZeros(batchSize), BUCKETS - 1);
+    batchesBySize[bucket].increment();
+    batches.increment();
+    frames.add(batchSize);
+  }
+
+  static long batches() {
+    return batches.sum();
+  }
+
+  static long frames() {
+    return frames.sum();
+  }
+
+  /**
+   * Quantidade de lotes em cada faixa de tamanho.
+   */
+  static long[] distribution() {
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = batchesBySize[i].sum();
+    }
+    return counts;
+  }
+
+  /**
+   * Rótulo da faixa de tamanho de índice i, ex.: "4-7".
+   */
+  static String bucketLabel(int i) {
+    int low = 1 << i;
+    if (i == BUCKETS - 1) {
+      return low + "+";
+    }
+    int high = 2 * low - 1;
+    return low == high ? String.valueOf(low) : low + "-" + high;
+  }
+
+  /**
+   * Resumo legível dos contadores.
+   */
+  static String summary() {
+    long totalBatches = batches();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Lotes de escrita: %d, mensagens: %d, média %.2f mensagens/lote%n",
+        totalBatches, frames(), totalBatches == 0 ? 0.0 : (double) frames() / totalBatches));
+    long[] counts = distribution();
+    for (int i = 0; i < BUCKETS; i++) {
+      sb.append(String.format("  %-5s %d%n", bucketLabel(i), counts[i]));
+    }
+    return sb.toString();
+  }
+}
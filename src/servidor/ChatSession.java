@@ -0,0 +1,61 @@
+package servidor;
+
+import java.nio.charset.StandardCharsets;
+
+import protocolo.Codec;
+
+/**
+ * Representa a conexão de chat de um usuário, independente do modelo de I/O
+ * usado pelo servidor (uma thread por cliente ou event loop com NIO).
+ */
+public interface ChatSession {
+
+  /**
+   * Retorna o nome de usuário desta sessão, ou null antes do login.
+   */
+  String getUsername();
+
+  /**
+   * Indica se o cliente desta sessão negociou o recurso no HELLO (ex.:
+   * protocolo.Compression.FILE_DEFLATE). Clientes antigos não negociam nada.
+   */
+  boolean supports(String feature);
+
+  /**
+   * Codificação das mensagens para este cliente: Codec.BINARY se ele
+   * negociou o protocolo binário, Codec.TEXT caso contrário.
+   */
+  Codec codec();
+
+  /**
+   * Envia uma mensagem já codificada com codec() para o cliente desta sessão.
+   * O mesmo array pode ser entregue a várias sessões (ex.: no broadcast), por
+   * isso nunca deve ser modificado depois de enviado.
+   *
+   * @param frame A mensagem codificada.
+   */
+  void sendFrame(byte[] frame);
+
+  /**
+   * Quantas mensagens esperam na fila de saída desta sessão. Lido só pelas
+   * métricas.
+   */
+  int queuedFrames();
+
+  /**
+   * Envia uma mensagem de texto para o cliente desta sessão.
+   *
+   * @param message A mensagem a ser enviada.
+   */
+  default void sendMessage(String message) {
+    sendFrame(codec().message(message));
+  }
+
+  /**
+   * Codifica uma linha do protocolo de texto: UTF-8 com '\n'. Usado na
+   * negociação, que é sempre em texto.
+   */
+  static byte[] encodeLine(String message) {
+    return (message + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -1,20 +1,42 @@
 package servidor;
 
-import java.io.BufferedReader; import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+
+import protocolo.BinaryCodec;
+import protocolo.Codec;
+import protocolo.Compression;
 
 /**
  * ClientHandler é uma classe Runnable que gerencia a comunicação
  * com um único cliente conectado ao servidor. Cada cliente terá sua
  * própria instância de ClientHandler rodando em uma thread separada.
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ChatSession {
+  // Limite das linhas do protocolo de texto, na negociação e depois dela
+  // (o mesmo do NioClientSession).
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+
   private final Socket clientSocket;
-  private PrintWriter writer;
-  private BufferedReader reader;
+  // Mensagens de saída aguardam aqui até a thread de escrita deste cliente
+  // enviá-las. Só essa thread escreve no socket, então não há synchronized
+  // (que prenderia a carrier thread no modo de virtual threads).
+  private final OutboundQueue outbound = new OutboundQueue(true);
+  private volatile boolean closed;
+  // O LineReader do protocolo de texto ou o DataInputStream do binário.
+  private Closeable input;
   private String username;
+  private volatile Set<String> features = Collections.emptySet();
+  private volatile Codec codec = Codec.TEXT;
 
   public ClientHandler(Socket socket) {
     this.clientSocket = socket;
@@ -24,107 +46,223 @@ public class ClientHandler implements Runnable {
   public void run() {
     try {
       // Inicializa os streams de entrada e saída para este cliente.
-      // O 'true' no PrintWriter habilita o auto-flush, garantindo que as mensagens
-      // sejam enviadas imediatamente.
-      this.writer = new PrintWriter(clientSocket.getOutputStream(), true);
-      this.reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+      // A escrita roda em uma tarefa separada, alimentada pela fila de saída.
+      // Com a coalescência feita pelo writeLoop, o algoritmo de Nagle só
+      // acrescentaria atraso.
+      clientSocket.setTcpNoDelay(true);
+      InputStream in = clientSocket.getInputStream();
+      OutputStream out = clientSocket.getOutputStream();
 
-      // ---- LÓGICA DE "LOGIN" ----
-      // Solicita um nome de usuário até que um válido seja fornecido.
-      // (Aqui, estamos apenas garantindo que não seja nulo ou vazio).
-      writer.println("Bem-vindo ao Chat! Por favor, digite seu nome de usuário:");
-      this.username = reader.readLine();
-
-      Server.addClient(this.username, this);
+      // ---- NEGOCIAÇÃO ----
+      // O servidor oferece os recursos; um cliente novo responde com HELLO
+      // antes do nome de usuário, um antigo já envia o nome. Até aqui nada
+      // passou pela fila de saída, então a troca de fluxo é segura.
+      out.write(ChatSession.encodeLine(Handshake.helloLine()));
+      out.write(ChatSession.encodeLine("Bem-vindo ao Chat! Por favor, digite seu nome de usuário:"));
+      out.flush();
+      String firstLine = Compression.readLineUnbuffered(in, MAX_LINE_LENGTH);
+      if (firstLine != null && Handshake.isHello(firstLine)) {
+        this.features = Handshake.agree(firstLine);
+        out.write(ChatSession.encodeLine(Handshake.helloOkLine(features)));
+        out.flush();
+        if (features.contains(Compression.CHAT_DEFLATE)) {
+          in = Compression.inflating(in);
+          out = Compression.deflating(out, Handshake.LEVEL);
+        }
+        if (features.contains(BinaryCodec.FEATURE)) {
+          this.codec = Codec.BINARY;
+        }
+        firstLine = null;
+      }
 
-      Server.broadcastMessage("Servidor", this.username + " entrou no chat");
-      writer.println("Você entrou no chat. Digite 'sair' para se desconectar.");
+      OutputStream chatOut = out;
+      Server.execute(() -> writeLoop(chatOut));
+      CommandDispatcher dispatcher = new CommandDispatcher(this);
 
-      String clientMessage;
+      if (codec == Codec.BINARY) {
+        DataInputStream frames = new DataInputStream(new BufferedInputStream(in, 8 * 1024));
+        this.input = frames;
+        // O buffer do quadro é reutilizado; só cresce se chegar um quadro maior.
+        ByteBuffer frame = BinaryCodec.readFrame(frames, ByteBuffer.allocate(1024));
+        if (frame == null) {
+          return;
+        }
+        while (!login(BinaryCodec.decodeLogin(frame))) {
+          if ((frame = BinaryCodec.readFrame(frames, frame)) == null) {
+            return;
+          }
+        }
 
-      while ((clientMessage = reader.readLine()) != null) {
-        clientMessage = clientMessage.trim();
-        if ("sair".equalsIgnoreCase(clientMessage)) {
-          break;
+        while ((frame = BinaryCodec.readFrame(frames, frame)) != null) {
+          if (!dispatcher.dispatch(frame)) {
+            break;
+          }
+        }
+      } else {
+        LineReader reader = new LineReader(in, MAX_LINE_LENGTH);
+        this.input = reader;
+        // A primeira linha depois da negociação é o nome de usuário.
+        String name = firstLine != null ? firstLine : reader.readLine();
+        while (name != null && !login(name)) {
+          name = reader.readLine();
+        }
+        if (name == null) {
+          return;
         }
 
-        if (clientMessage.startsWith("SENDFILE_REQUEST")) {
-          String[] parts = clientMessage.split(" ", 4);
-          if (parts.length == 4) {
-            // O ClientHandler não acessa o arquivo, apenas repassa a intenção
-            // A lógica de ler o arquivo fica no próprio Cliente.
-            // Ex: SENDFILE_REQUEST @bob relatorio.pdf 123456
-            String recipient = parts[1];
-            String fileName = parts[2];
-            long fileSize = Long.parseLong(parts[3]);
-
-            if ("@all".equalsIgnoreCase(recipient)) {
-              Server.initiateBroadcastUpload(this.username, fileName, fileSize);
-            } else {
-              Server.requestFileTransfer(this.username, recipient, fileName, fileSize);
-            }
+        String clientMessage;
 
+        while ((clientMessage = reader.readLine()) != null) {
+          if (!dispatcher.dispatch(clientMessage)) {
+            break;
           }
-        } else if (clientMessage.startsWith("SENDFILE_ACCEPT")) {
-          String[] parts = clientMessage.split(" ", 2);
-          if (parts.length == 2) {
-            String sender = parts[1];
-            Server.prepareFileTransfer(sender, this.username);
-          }
-        } else if (clientMessage.startsWith("/download")) {
-          String[] parts = clientMessage.split(" ", 2);
-          if (parts.length == 2) {
-            String fileName = parts[1];
-            Server.handleDownloadRequest(this.username, fileName);
-          }
-        } else if (clientMessage.startsWith("@")) {
-          // Divide a msg em destinatario e conteudo
-          String[] parts = clientMessage.split(" ", 2);
-          if (parts.length == 2) {
-            String recipient = parts[0].substring(1); // remove o @
-            String privateMessage = parts[1];
-
-            Server.sendPrivateMessage(this.username, recipient, privateMessage);
-          } else {
-            sendMessage("Servidor: Formato inválido. Use @user <mensagem>");
-          }
-        } else {
-          Server.broadcastMessage(this.username, clientMessage);
         }
       }
     } catch (IOException e) {
-      System.out.println("Erro no handler do cliente " + this.username + " saiu do chat.");
+      ServerLog.log(ServerLog.Level.INFO, "Conexão do cliente interrompida", this.username, null, -1, -1, e);
     } finally {
       // Este bloco 'finally' garante que a limpeza sempre ocorra,
       // seja por desconexão normal ('sair') ou por um erro.
       if (this.username != null) {
-        Server.removeClient(this.username);
-        Server.broadcastMessage("Servidor", this.username + " saiu do chat.");
+        Server.removeClient(this.username, this);
       }
 
+      this.closed = true;
+      outbound.close();
       try {
-        if (reader != null)
-          reader.close();
-        if (writer != null)
-          writer.close();
+        if (input != null)
+          input.close();
         if (clientSocket != null)
           clientSocket.close();
       } catch (IOException e) {
-        e.printStackTrace();
+        ServerLog.warn("Erro ao fechar a conexão do cliente", e);
       }
     }
   }
 
   /**
-   * Envia uma mensagem para o cliente que este handler está gerenciando.
-   * Este método é chamado pelo Server para retransmitir as mensagens.
+   * ---- LÓGICA DE "LOGIN" ----
+   * Registra o usuário no servidor e avisa a sala.
+   *
+   * @return false se o nome já está em uso; o cliente pode tentar outro.
+   */
+  private boolean login(String name) {
+    if (!Server.validUsername(name)) {
+      sendMessage(Server.NAME_INVALID);
+      return false;
+    }
+    this.username = name;
+
+    if (!Server.addClient(this.username, this)) {
+      this.username = null;
+      sendMessage(Server.NAME_IN_USE);
+      return false;
+    }
+
+    sendMessage("Você entrou no chat. Digite 'sair' para se desconectar.");
+    return true;
+  }
+
+  /**
+   * Envia as mensagens da fila de saída até a sessão ser fechada. As mensagens
+   * pendentes são escritas em lote no buffer e enviadas com um único flush,
+   * o que reduz syscalls e pacotes quando o chat está movimentado.
+   */
+  private void writeLoop(OutputStream socketOut) {
+    OutputStream out = new BufferedOutputStream(socketOut, 16 * 1024);
+    try {
+      while (true) {
+        byte[] frame = outbound.take();
+        if (frame == OutboundQueue.CLOSE) {
+          return;
+        }
+        out.write(frame);
+        int batchSize = 1;
+        long deadline = System.nanoTime() + OutboundQueue.LINGER_NANOS;
+
+        // Junta o que já estiver pendente e espera um pouco (no máximo até o
+        // deadline) por mais mensagens antes do flush.
+        while (batchSize < OutboundQueue.MAX_BATCH) {
+          frame = outbound.poll();
+          if (frame == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || (frame = outbound.poll(remaining)) == null) {
+              break;
+            }
+          }
+          if (frame == OutboundQueue.CLOSE) {
+            out.flush();
+            BatchStats.record(batchSize);
+            return;
+          }
+          out.write(frame);
+          batchSize++;
+        }
+
+        out.flush();
+        BatchStats.record(batchSize);
+      }
+    } catch (IOException e) {
+      // A falha de escrita derruba a conexão; o loop de leitura faz a limpeza.
+      closeSocket();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (features.contains(Compression.CHAT_DEFLATE)) {
+        // Libera o Deflater do fluxo comprimido. O socket já está sendo fechado.
+        try {
+          socketOut.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Fecha o socket. O loop de leitura em run() percebe e faz a limpeza.
+   */
+  private void closeSocket() {
+    try {
+      clientSocket.close();
+    } catch (IOException e) {
+      ServerLog.warn("Erro ao fechar a conexão do cliente", e);
+    }
+  }
+
+  /**
+   * Envia uma mensagem já codificada para o cliente que este handler está
+   * gerenciando. Este método é chamado pelo Server para retransmitir as mensagens.
+   * A mensagem só é enfileirada; quem chama não espera pelo socket.
    * 
-   * @param message A mensagem a ser enviada.
+   * @param frame A mensagem codificada, compartilhada entre destinatários.
    */
-  public void sendMessage(String message) {
-    if (writer != null) {
-      writer.println(message);
+  @Override
+  public void sendFrame(byte[] frame) {
+    if (closed) {
+      return;
     }
+    if (!outbound.offer(frame)) {
+      // Cliente lento demais para a política configurada: é desconectado.
+      ServerLog.log(ServerLog.Level.WARN, "Cliente não está consumindo mensagens. Desconectando.", this.username,
+          null, -1, -1, null);
+      this.closed = true;
+      closeSocket();
+    }
+  }
+
+  @Override
+  public boolean supports(String feature) {
+    return features.contains(feature);
+  }
+
+  @Override
+  public Codec codec() {
+    return codec;
+  }
+
+  @Override
+  public int queuedFrames() {
+    return outbound.size();
   }
 
   /**
@@ -132,6 +270,7 @@ public class ClientHandler implements Runnable {
    * 
    * @return O nome de usuário.
    */
+  @Override
   public String getUsername() {
     return this.username;
   }
@@ -0,0 +1,524 @@
+package servidor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import protocolo.Compression;
+
+/**
+ * Modo cluster: vários servidores (nós) ligados entre si por TCP. Cada nó
+ * atende os seus próprios clientes e mantém um diretório de presença com os
+ * usuários dos outros nós (usuário -> nó). Mensagens de sala, mensagens
+ * privadas e o pedido/aceite de envio privado de arquivo são encaminhados ao
+ * nó certo; os arquivos compartilhados com @all continuam no nó que recebeu
+ * o upload.
+ *
+ * Cada nó abre uma conexão de saída (PeerLink) para cada outro nó e recebe
+ * as mensagens deles pelas conexões de entrada. Basta listar em
+ * server.cluster.peers alguns nós já existentes: quem recebe a conexão
+ * conecta de volta, e ao se conectarem os nós trocam a lista de usuários e
+ * a lista dos nós que conhecem, até todos estarem ligados a todos.
+ *
+ * Entre nós, cada mensagem é um quadro [int tamanho][byte tipo][campos], com
+ * texto em [int tamanho][UTF-8].
+ *
+ * A porta do cluster só escuta em server.cluster.bind, e todos os nós
+ * precisam ter o mesmo server.cluster.secret. Quem recebe uma conexão envia
+ * um desafio aleatório de NONCE_SIZE bytes; o HELLO traz o nome do nó e o
+ * HMAC-SHA256 do desafio e do nome com o segredo. Sem o segredo, não há como
+ * se passar por um nó, e um HELLO capturado não serve para outra conexão.
+ * Um quadro malformado derruba a conexão, que o outro lado refaz.
+ */
+final class Cluster {
+  static final int PORT = ServerConfig.getInt("server.cluster.port", 0);
+  // Endereço pelo qual os outros nós alcançam este; também identifica o nó.
+  static final String NODE = ServerConfig.get("server.cluster.host", "localhost") + ":" + PORT;
+  private static final String PEERS = ServerConfig.get("server.cluster.peers", "");
+  // Endereço local em que a porta do cluster escuta.
+  private static final String BIND = ServerConfig.get("server.cluster.bind", "127.0.0.1");
+  private static final String SECRET = ServerConfig.get("server.cluster.secret", "");
+  private static final int MAX_FRAME_SIZE = 1024 * 1024;
+  static final int NONCE_SIZE = 32;
+  // Tempo máximo para um nó que conectou aqui responder ao desafio.
+  static final int HANDSHAKE_TIMEOUT = 5000;
+
+  private static final int PING_TYPE = 0;
+  private static final int HELLO = 1;
+  private static final int PRESENCE = 2;
+  private static final int ABSENCE = 3;
+  private static final int ROOM_MESSAGE = 4;
+  private static final int USER_MESSAGE = 5;
+  private static final int INCOMING_FILE = 6;
+  private static final int TRANSFER_READY = 7;
+  private static final int PEER = 8;
+
+  static final byte[] PING = encode(PING_TYPE);
+
+  /**
+   * Um usuário conectado em outro nó.
+   */
+  private static final class RemoteUser {
+    final String node;
+    final boolean fileDeflate;
+
+    RemoteUser(String node, boolean fileDeflate) {
+      this.node = node;
+      this.fileDeflate = fileDeflate;
+    }
+  }
+
+  private static final Map<String, RemoteUser> directory = new ConcurrentHashMap<>();
+  private static final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+  // Conexão de entrada atual de cada nó; só ela pode apagar os usuários do nó.
+  private static final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+  private static final SecureRandom random = new SecureRandom();
+
+  private Cluster() {
+  }
+
+  static boolean enabled() {
+    return PORT > 0;
+  }
+
+  /**
+   * Abre a porta do cluster e conecta aos nós de server.cluster.peers.
+   */
+  static void start() throws IOException {
+    if (SECRET.isBlank()) {
+      throw new IOException("server.cluster.secret não configurado: os nós precisam de um segredo comum");
+    }
+    ServerSocket serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName(BIND));
+    Thread acceptor = new Thread(() -> acceptLoop(serverSocket), "cluster-port");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    ServerLog.info("Cluster: nó " + NODE + " escutando em " + BIND + ":" + PORT);
+
+    for (String peer : PEERS.split(",")) {
+      if (peer.isBlank()) {
+        continue;
+      }
+      if (validNode(peer.trim())) {
+        connectTo(peer.trim());
+      } else {
+        ServerLog.warn("Cluster: nó inválido em server.cluster.peers: " + peer.trim());
+      }
+    }
+  }
+
+  /**
+   * Indica se o texto tem a forma host:porta, com a porta entre 1 e 65535.
+   */
+  private static boolean validNode(String node) {
+    int colon = node.lastIndexOf(':');
+    if (colon <= 0 || colon == node.length() - 1 || node.length() - colon > 6) {
+      return false;
+    }
+    for (int i = colon + 1; i < node.length(); i++) {
+      if (!Character.isDigit(node.charAt(i))) {
+        return false;
+      }
+    }
+    int port = Integer.parseInt(node.substring(colon + 1));
+    return port > 0 && port <= 65535;
+  }
+
+  private static void connectTo(String node) {
+    if (node.equals(NODE)) {
+      return;
+    }
+    links.computeIfAbsent(node, address -> {
+      PeerLink link = new PeerLink(address);
+      link.start();
+      return link;
+    });
+  }
+
+  // ---- Envio para os outros nós ----
+
+  /**
+   * Primeiras mensagens de uma conexão de saída: o HELLO, os nós conhecidos e
+   * os usuários deste nó.
+   *
+   * @param nonce O desafio enviado pelo outro nó ao aceitar a conexão.
+   */
+  static List<byte[]> greeting(byte[] nonce) {
+    List<byte[]> frames = new ArrayList<>();
+    frames.add(encode(HELLO, NODE, mac(nonce, NODE)));
+    for (String node : links.keySet()) {
+      frames.add(encode(PEER, node));
+    }
+    for (ChatSession session : Server.sessions()) {
+      frames.add(presence(session));
+    }
+    return frames;
+  }
+
+  private static byte[] presence(ChatSession session) {
+    return encode(PRESENCE, session.getUsername(), session.supports(Compression.FILE_DEFLATE));
+  }
+
+  static void userJoined(ChatSession session) {
+    if (enabled()) {
+      sendToAll(presence(session));
+    }
+  }
+
+  static void userLeft(String username) {
+    if (enabled()) {
+      sendToAll(encode(ABSENCE, username));
+    }
+  }
+
+  /**
+   * Entrega uma mensagem já formatada aos membros da sala nos outros nós.
+   *
+   * @param chat true para mensagens de chat, que entram no histórico da sala
+   *             nos outros nós; false para avisos do servidor.
+   */
+  static void sendToRoom(String room, String line, boolean chat) {
+    if (enabled()) {
+      sendToAll(encode(ROOM_MESSAGE, room, line, chat));
+    }
+  }
+
+  /**
+   * Entrega uma mensagem de texto a um usuário de outro nó.
+   *
+   * @return false se o usuário não está em nenhum outro nó.
+   */
+  static boolean sendToUser(String username, String message) {
+    return sendTo(username, encode(USER_MESSAGE, username, message));
+  }
+
+  static boolean sendIncomingFile(String recipient, String sender, String fileName, long fileSize) {
+    return sendTo(recipient, encode(INCOMING_FILE, recipient, sender, fileName, fileSize));
+  }
+
+  static boolean sendTransferReady(String username, String host, int port, String token, String peer,
+      String fileName, boolean deflate) {
+    return sendTo(username, encode(TRANSFER_READY, username, host, port, token, peer, fileName, deflate));
+  }
+
+  /**
+   * Indica se o usuário está conectado em outro nó.
+   */
+  static boolean isRemote(String username) {
+    return directory.containsKey(username);
+  }
+
+  /**
+   * Recursos negociados por um usuário de outro nó. Por enquanto só
+   * file-deflate é divulgado, pois é o que o envio privado precisa saber.
+   */
+  static boolean remoteSupports(String username, String feature) {
+    RemoteUser user = directory.get(username);
+    return user != null && Compression.FILE_DEFLATE.equals(feature) && user.fileDeflate;
+  }
+
+  static int remoteUsers() {
+    return directory.size();
+  }
+
+  static int connectedPeers() {
+    int connected = 0;
+    for (PeerLink link : links.values()) {
+      if (link.isConnected()) {
+        connected++;
+      }
+    }
+    return connected;
+  }
+
+  /**
+   * Mensagens esperando envio em todas as conexões de saída.
+   */
+  static int queuedFrames() {
+    int queued = 0;
+    for (PeerLink link : links.values()) {
+      queued += link.queued();
+    }
+    return queued;
+  }
+
+  private static boolean sendTo(String username, byte[] frame) {
+    RemoteUser user = directory.get(username);
+    PeerLink link = user == null ? null : links.get(user.node);
+    return link != null && link.offer(frame);
+  }
+
+  private static void sendToAll(byte[] frame) {
+    for (PeerLink link : links.values()) {
+      link.offer(frame);
+    }
+  }
+
+  // ---- Recebimento ----
+
+  private static void acceptLoop(ServerSocket serverSocket) {
+    while (true) {
+      try {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        Server.execute(() -> readLoop(socket));
+      } catch (IOException e) {
+        ServerLog.warn("Erro na porta do cluster", e);
+      }
+    }
+  }
+
+  /**
+   * Lê as mensagens enviadas por um nó até a conexão cair. Quando ela cai,
+   * os usuários daquele nó saem do diretório.
+   */
+  private static void readLoop(Socket socket) {
+    String node = null;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+      String hello = handshake(socket, in);
+      if (hello == null) {
+        return;
+      }
+      node = hello;
+      Socket previous = inbound.put(node, socket);
+      if (previous != null) {
+        previous.close();
+      }
+      // Um nó que conectou aqui também precisa receber deste.
+      connectTo(node);
+
+      while (true) {
+        dispatch(node, readFrame(in));
+      }
+    } catch (EOFException e) {
+      // O outro nó encerrou a conexão.
+    } catch (ProtocolException e) {
+      ServerLog.warn("Cluster: quadro inválido do nó " + node + "; conexão encerrada", e);
+    } catch (IOException e) {
+      if (node == null) {
+        ServerLog.warn("Cluster: handshake não concluído com " + socket.getRemoteSocketAddress(), e);
+      } else {
+        ServerLog.warn("Cluster: conexão do nó " + node + " perdida", e);
+      }
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+      }
+      if (node != null && inbound.remove(node, socket)) {
+        String lost = node;
+        directory.values().removeIf(user -> user.node.equals(lost));
+        ServerLog.info("Cluster: nó " + node + " desconectado.");
+      }
+    }
+  }
+
+  /**
+   * Envia o desafio e confere o HELLO do nó que conectou.
+   *
+   * @return O nome do nó, ou null se ele não provou conhecer o segredo.
+   */
+  private static String handshake(Socket socket, DataInputStream in) throws IOException {
+    byte[] nonce = new byte[NONCE_SIZE];
+    random.nextBytes(nonce);
+    socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+    OutputStream out = socket.getOutputStream();
+    out.write(nonce);
+    out.flush();
+
+    ByteBuffer frame = readFrame(in);
+    try {
+      if ((frame.get() & 0xFF) != HELLO) {
+        ServerLog.warn("Cluster: conexão sem HELLO de " + socket.getRemoteSocketAddress());
+        return null;
+      }
+      String node = string(frame);
+      byte[] mac = bytes(frame);
+      if (!MessageDigest.isEqual(mac, mac(nonce, node))) {
+        ServerLog.warn("Cluster: HELLO com segredo inválido de " + socket.getRemoteSocketAddress());
+        return null;
+      }
+      if (!validNode(node)) {
+        throw new ProtocolException("Nome de nó inválido: " + node);
+      }
+      socket.setSoTimeout(0);
+      return node;
+    } catch (BufferUnderflowException e) {
+      throw new ProtocolException("HELLO truncado");
+    }
+  }
+
+  /**
+   * HMAC-SHA256 do desafio e do nome do nó, com o segredo do cluster.
+   */
+  private static byte[] mac(byte[] nonce, String node) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+      mac.update(nonce);
+      return mac.doFinal(node.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void dispatch(String node, ByteBuffer frame) throws IOException {
+    int type = frame.get() & 0xFF;
+    try {
+      dispatch(node, type, frame);
+    } catch (BufferUnderflowException e) {
+      throw new ProtocolException("Quadro truncado, tipo " + type);
+    }
+  }
+
+  private static void dispatch(String node, int type, ByteBuffer frame) throws IOException {
+    switch (type) {
+      case PING_TYPE:
+        break;
+      case PEER: {
+        String peer = string(frame);
+        if (!validNode(peer)) {
+          throw new ProtocolException("Nome de nó inválido: " + peer);
+        }
+        connectTo(peer);
+        break;
+      }
+      case PRESENCE:
+        directory.put(string(frame), new RemoteUser(node, frame.get() != 0));
+        break;
+      case ABSENCE: {
+        // Só apaga se o usuário ainda estiver registrado naquele nó; ele pode
+        // já ter entrado por outro.
+        String username = string(frame);
+        directory.computeIfPresent(username, (name, user) -> user.node.equals(node) ? null : user);
+        break;
+      }
+      case ROOM_MESSAGE: {
+        String name = string(frame);
+        String line = string(frame);
+        Room room = Rooms.find(name);
+        Metrics.Message.REMOTE.count();
+        if (room != null) {
+          Server.deliverToRoom(room, line, null);
+        }
+        if (frame.get() != 0) {
+          History.record(name, System.currentTimeMillis(), line);
+        }
+        break;
+      }
+      case USER_MESSAGE: {
+        ChatSession session = Server.session(string(frame));
+        String message = string(frame);
+        Metrics.Message.REMOTE.count();
+        if (session != null) {
+          session.sendMessage(message);
+        }
+        break;
+      }
+      case INCOMING_FILE: {
+        ChatSession session = Server.session(string(frame));
+        String sender = string(frame);
+        String fileName = string(frame);
+        long fileSize = frame.getLong();
+        if (session != null) {
+          Server.offerFile(session, sender, fileName, fileSize);
+        }
+        break;
+      }
+      case TRANSFER_READY: {
+        ChatSession session = Server.session(string(frame));
+        String host = string(frame);
+        int port = frame.getInt();
+        String token = string(frame);
+        String peer = string(frame);
+        String fileName = string(frame);
+        boolean deflate = frame.get() != 0;
+        if (session != null) {
+          session.sendFrame(session.codec().transferReady(host, port, token, peer, fileName, deflate));
+        }
+        break;
+      }
+      default:
+        throw new ProtocolException("Tipo de mensagem desconhecido: " + type);
+    }
+  }
+
+  // ---- Formato dos quadros ----
+
+  private static ByteBuffer readFrame(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length <= 0 || length > MAX_FRAME_SIZE) {
+      throw new IOException("Tamanho de quadro inválido: " + length);
+    }
+    byte[] frame = new byte[length];
+    in.readFully(frame);
+    return ByteBuffer.wrap(frame);
+  }
+
+  private static String string(ByteBuffer frame) throws ProtocolException {
+    return new String(bytes(frame), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] bytes(ByteBuffer frame) throws ProtocolException {
+    int length = frame.getInt();
+    if (length < 0 || length > frame.remaining()) {
+      throw new ProtocolException("Campo com tamanho inválido: " + length);
+    }
+    byte[] bytes = new byte[length];
+    frame.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Codifica um quadro. Os campos podem ser String, byte[], Integer, Long ou
+   * Boolean; String e byte[] levam o tamanho na frente.
+   */
+  private static byte[] encode(int type, Object... fields) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(0);
+      out.writeByte(type);
+      for (Object field : fields) {
+        if (field instanceof String) {
+          byte[] text = ((String) field).getBytes(StandardCharsets.UTF_8);
+          out.writeInt(text.length);
+          out.write(text);
+        } else if (field instanceof byte[]) {
+          out.writeInt(((byte[]) field).length);
+          out.write((byte[]) field);
+        } else if (field instanceof Integer) {
+          out.writeInt((Integer) field);
+        } else if (field instanceof Long) {
+          out.writeLong((Long) field);
+        } else {
+          out.writeBoolean((Boolean) field);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] frame = bytes.toByteArray();
+    ByteBuffer.wrap(frame).putInt(frame.length - 4);
+    return frame;
+  }
+}
@@ -0,0 +1,126 @@
+package servidor;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import protocolo.BinaryCodec;
+import protocolo.ServerBound;
+import protocolo.TextCodec;
+
+/**
+ * Recebe os comandos de um cliente já identificado, decodificados pelo
+ * protocolo que ele negociou, e encaminha cada um para a operação
+ * correspondente do Server.
+ * É compartilhado pelo ClientHandler (modo bloqueante) e pelo NioServer;
+ * cada sessão tem o seu.
+ */
+final class CommandDispatcher implements ServerBound {
+  private final ChatSession session;
+
+  CommandDispatcher(ChatSession session) {
+    this.session = session;
+  }
+
+  /**
+   * Processa uma linha do protocolo de texto.
+   *
+   * @param clientMessage A linha recebida.
+   * @return false se o cliente pediu para sair, true caso contrário.
+   */
+  boolean dispatch(String clientMessage) {
+    return TextCodec.decodeServerBound(clientMessage, this);
+  }
+
+  /**
+   * Processa um quadro do protocolo binário.
+   *
+   * @param frame O quadro, do opcode ao fim dos campos.
+   * @return false se o cliente pediu para sair, true caso contrário.
+   */
+  boolean dispatch(ByteBuffer frame) throws ProtocolException {
+    return BinaryCodec.decodeServerBound(frame, this);
+  }
+
+  @Override
+  public void chat(String message) {
+    if (tooLong(message)) {
+      return;
+    }
+    Server.broadcastMessage(session.getUsername(), message);
+  }
+
+  @Override
+  public void privateMessage(String recipient, String message) {
+    if (tooLong(message)) {
+      return;
+    }
+    Server.sendPrivateMessage(session.getUsername(), recipient, message);
+  }
+
+  /**
+   * Recusa uma mensagem que, com o horário e o nome do remetente, não caberia
+   * num quadro binário para quem a recebe.
+   */
+  private boolean tooLong(String message) {
+    if (Server.fitsUtf8(message, Server.MAX_MESSAGE_BYTES)) {
+      return false;
+    }
+    session.sendMessage("Servidor: Mensagem muito longa. O limite é de " + Server.MAX_MESSAGE_BYTES + " bytes.");
+    return true;
+  }
+
+  @Override
+  public void sendFileRequest(String recipient, String fileName, long fileSize) {
+    if (!Server.fitsUtf8(fileName, Server.MAX_FILE_NAME_BYTES)) {
+      session.sendMessage("Servidor: Nome de arquivo muito longo. O limite é de " + Server.MAX_FILE_NAME_BYTES
+          + " bytes.");
+      return;
+    }
+    if (!Server.validFileName(fileName)) {
+      session.sendMessage("Servidor: Nome de arquivo inválido. Não use espaços, barras nem caracteres de controle.");
+      return;
+    }
+    // O servidor não acessa o arquivo, apenas repassa a intenção
+    // A lógica de ler o arquivo fica no próprio Cliente.
+    if ("@all".equalsIgnoreCase(recipient)) {
+      Server.initiateBroadcastUpload(session.getUsername(), fileName, fileSize);
+    } else {
+      Server.requestFileTransfer(session.getUsername(), recipient, fileName, fileSize);
+    }
+  }
+
+  @Override
+  public void acceptFile(String sender) {
+    Server.prepareFileTransfer(sender, session.getUsername());
+  }
+
+  @Override
+  public void download(String fileName) {
+    Server.handleDownloadRequest(session.getUsername(), fileName);
+  }
+
+  @Override
+  public void autoReceive(boolean enabled) {
+    Server.setAutoReceive(session.getUsername(), enabled);
+  }
+
+  @Override
+  public void join(String room) {
+    Server.joinRoom(session.getUsername(), room);
+  }
+
+  @Override
+  public void leave() {
+    Server.leaveRoom(session.getUsername());
+  }
+
+  @Override
+  public void history(String query) {
+    History.query(session, query);
+  }
+
+  @Override
+  public void invalid(String usage) {
+    session.sendMessage("Servidor: Formato inválido. Use " + usage);
+  }
+}
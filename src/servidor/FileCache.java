@@ -0,0 +1,168 @@
+package servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache dos arquivos compartilhados mais pedidos, mapeados em memória. Logo
+ * depois de um BROADCAST_FILE, quase todos da sala pedem o mesmo arquivo; com
+ * o cache, os downloads simultâneos leem do mesmo MappedByteBuffer em vez de
+ * cada um abrir e ler o arquivo do disco.
+ *
+ * O total mapeado é limitado por server.cache.maxBytes; quando passa do
+ * limite, os arquivos pedidos há mais tempo saem do cache. Arquivos maiores
+ * que um quarto do limite não entram, para não expulsar todo o resto.
+ *
+ * O mapeamento acontece fora de qualquer lock: o primeiro pedido de um
+ * arquivo mapeia, e os pedidos do mesmo arquivo que chegam enquanto isso
+ * esperam por ele; os de outros arquivos seguem. O lock só protege a ordem
+ * de uso e a conta dos bytes mapeados.
+ */
+final class FileCache {
+  private static final long MAX_BYTES = ServerConfig.getLong("server.cache.maxBytes", 256L * 1024 * 1024);
+  // Um MappedByteBuffer tem no máximo 2 GB; arquivos maiores nunca entram no
+  // cache e são enviados por zeroCopy ou buffer.
+  private static final long MAX_FILE_BYTES = Math.min(MAX_BYTES / 4, Integer.MAX_VALUE);
+
+  // Chave: SHA-256 do conteúdo. Completado com null se o mapeamento falhou.
+  private static final Map<String, CompletableFuture<MappedByteBuffer>> mapped = new ConcurrentHashMap<>();
+  private static final Object lock = new Object();
+  // Tamanho de cada conteúdo em mapped, em ordem de acesso: o primeiro é o
+  // usado há mais tempo. Só acessado com o lock, como mappedBytes.
+  private static final LinkedHashMap<String, Long> lru = new LinkedHashMap<>(16, 0.75f, true);
+  private static long mappedBytes;
+
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+
+  private FileCache() {
+  }
+
+  /**
+   * Devolve o conteúdo do arquivo mapeado em memória, mapeando-o se ainda não
+   * estiver no cache. Cada chamada recebe uma cópia independente do buffer
+   * (mesma memória, posição própria).
+   *
+   * @return O buffer, ou null se o arquivo não cabe no cache.
+   */
+  static ByteBuffer get(SharedFile file) {
+    if (file.size == 0 || file.size > MAX_FILE_BYTES) {
+      return null;
+    }
+    CompletableFuture<MappedByteBuffer> entry = mapped.get(file.digest);
+    if (entry == null) {
+      CompletableFuture<MappedByteBuffer> created = new CompletableFuture<>();
+      entry = mapped.putIfAbsent(file.digest, created);
+      if (entry == null) {
+        return map(file, created);
+      }
+    }
+    hits.increment();
+    // Se outro pedido ainda está mapeando o arquivo, espera por ele.
+    MappedByteBuffer buffer = entry.join();
+    if (buffer == null) {
+      return null;
+    }
+    synchronized (lock) {
+      lru.get(file.digest);
+    }
+    return buffer.duplicate();
+  }
+
+  /**
+   * Mapeia o arquivo para quem criou a entrada, sem lock, e só então entra na
+   * conta do cache.
+   */
+  private static ByteBuffer map(SharedFile file, CompletableFuture<MappedByteBuffer> entry) {
+    misses.increment();
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+      // O mapeamento continua válido depois que o canal é fechado.
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.size);
+    } catch (IOException e) {
+      ServerLog.warn("Erro ao mapear " + file.name, e);
+      mapped.remove(file.digest, entry);
+      entry.complete(null);
+      return null;
+    }
+    entry.complete(buffer);
+    synchronized (lock) {
+      // Um invalidate durante o mapeamento já tirou a entrada: o buffer serve
+      // só para este download.
+      if (mapped.get(file.digest) == entry) {
+        lru.put(file.digest, file.size);
+        mappedBytes += file.size;
+        evict();
+      }
+    }
+    return buffer.duplicate();
+  }
+
+  /**
+   * Tira um conteúdo do cache, por exemplo quando o FileStore o apaga. A
+   * memória só é devolvida quando os downloads que ainda usam o buffer
+   * terminam e o coletor de lixo o recolhe.
+   */
+  static void invalidate(String digest) {
+    mapped.remove(digest);
+    synchronized (lock) {
+      Long size = lru.remove(digest);
+      if (size != null) {
+        mappedBytes -= size;
+      }
+    }
+  }
+
+  /**
+   * Tira os conteúdos usados há mais tempo até voltar ao limite. Chamado com
+   * o lock.
+   */
+  private static void evict() {
+    Iterator<Map.Entry<String, Long>> eldest = lru.entrySet().iterator();
+    while (mappedBytes > MAX_BYTES && eldest.hasNext()) {
+      Map.Entry<String, Long> entry = eldest.next();
+      mappedBytes -= entry.getValue();
+      mapped.remove(entry.getKey());
+      eldest.remove();
+    }
+  }
+
+  static long hits() {
+    return hits.sum();
+  }
+
+  static long misses() {
+    return misses.sum();
+  }
+
+  static long mappedBytes() {
+    synchronized (lock) {
+      return mappedBytes;
+    }
+  }
+
+  static int size() {
+    synchronized (lock) {
+      return lru.size();
+    }
+  }
+
+  /**
+   * Resumo legível dos contadores.
+   */
+  static String summary() {
+    long h = hits();
+    long m = misses();
+    return String.format("Cache de arquivos: %d acertos, %d faltas (%.1f%% de acerto), %d arquivos, %.2f MB mapeados%n",
+        h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), size(), mappedBytes() / (1024.0 * 1024.0));
+  }
+}
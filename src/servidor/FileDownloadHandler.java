@@ -1,42 +1,232 @@
 package servidor;
 
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.File;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class FileDownloadHandler implements Runnable {
-  private final ServerSocket serverSocket;
-  private final String filePathOnServer;
+import protocolo.Compression;
 
-  public FileDownloadHandler(ServerSocket serverSocket, String filePathOnServer) {
-    this.serverSocket = serverSocket;
-    this.filePathOnServer = filePathOnServer;
+/**
+ * Serve um arquivo compartilhado. O mesmo token aceita várias conexões, e
+ * cada uma pede um trecho (offset e tamanho) do arquivo, o que permite
+ * retomar downloads interrompidos.
+ *
+ * Protocolo, depois do token:
+ * cliente -> servidor: long offset, long tamanho (-1 para ir até o fim);
+ * servidor -> cliente: long com quantos bytes serão enviados, seguido dos bytes.
+ *
+ * Se o cliente negociou file-deflate, o servidor envia depois do long um byte
+ * com o codec: CODEC_RAW (bytes como acima) ou CODEC_CHUNKS (blocos de
+ * Compression.ChunkWriter até completar o tamanho). Arquivos que já são
+ * comprimidos vão como CODEC_RAW, pelo caminho sem cópia.
+ *
+ * Um cliente pode abrir várias conexões ao mesmo tempo, cada uma com uma faixa
+ * do arquivo. Todas leem do mesmo FileChannel, com leituras posicionais, ou
+ * do buffer mapeado pelo FileCache, quando o arquivo está no cache.
+ *
+ * O arquivo fica reservado no FileStore enquanto o token for válido, para não
+ * ser apagado no meio de um download.
+ */
+public class FileDownloadHandler implements TransferPort.Route {
+  // Envia o arquivo com FileChannel.transferTo, que no Linux vira sendfile e
+  // evita copiar os bytes para a memória da JVM.
+  private static final boolean ZERO_COPY = ServerConfig.getBoolean("server.download.zeroCopy", true);
+  // Timeout para operações de I/O (30 segundos)
+  private static final int IO_TIMEOUT = 30000;
+
+  final long id = TransferPort.nextTransferId();
+  private final SharedFile sharedFile;
+  private final boolean negotiated;
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  // Aberto na primeira conexão e fechado quando o token expira.
+  private FileChannel file;
+  private boolean tokenExpired;
+
+  /**
+   * @param sharedFile Arquivo já reservado com FileStore.acquire; a reserva é
+   *                   liberada quando o token expira.
+   * @param negotiated Se o cliente negociou file-deflate.
+   */
+  public FileDownloadHandler(SharedFile sharedFile, boolean negotiated) {
+    this.sharedFile = sharedFile;
+    this.negotiated = negotiated;
   }
 
   @Override
-  public void run() {
-    try (Socket clientSocket = serverSocket.accept();
-        FileInputStream fis = new FileInputStream(new File(filePathOnServer));
-        OutputStream out = clientSocket.getOutputStream()) {
+  public void connected(Socket clientSocket) {
+    activeConnections.incrementAndGet();
+    Metrics.Transfer.DOWNLOAD.started();
+    try (Socket socket = clientSocket) {
+      socket.setSoTimeout(IO_TIMEOUT);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16));
+      long offset = in.readLong();
+      long length = in.readLong();
 
-      System.out.println("Cliente conectado para download de " + filePathOnServer);
-      byte[] buffer = new byte[8192];
-      int bytesRead;
-      while ((bytesRead = fis.read(buffer)) != -1) {
-        out.write(buffer, 0, bytesRead);
+      long size = sharedFile.size;
+      if (offset < 0 || offset > size) {
+        throw new IOException("Offset fora do arquivo: " + offset);
       }
-      System.out.println("Download de " + filePathOnServer + " servido com sucesso.");
+      long count = length < 0 ? size - offset : Math.min(length, size - offset);
+
+      boolean compress = negotiated && !Compression.isPrecompressed(sharedFile.name);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeLong(count);
+      if (negotiated) {
+        out.writeByte(compress ? Compression.CODEC_CHUNKS : Compression.CODEC_RAW);
+      }
+      out.flush();
+
+      if (ServerLog.enabled(ServerLog.Level.INFO)) {
+        ServerLog.transfer(ServerLog.Level.INFO, "Download iniciado (bytes " + offset + "-" + (offset + count)
+            + (compress ? ", comprimido" : "") + ")", id, null, sharedFile.name, count);
+      }
+      SocketChannel channel = socket.getChannel();
+      ByteBuffer cached = channel != null && !compress ? FileCache.get(sharedFile) : null;
+      if (compress) {
+        sendCompressed(openFile(), offset, count, socket.getOutputStream());
+      } else if (cached != null) {
+        sendFromCache(cached, offset, count, channel);
+      } else if (ZERO_COPY && channel != null) {
+        sendZeroCopy(openFile(), offset, count, channel);
+      } else {
+        // Sockets sem canal associado (ou zeroCopy desligado) usam a cópia comum.
+        sendWithBuffer(openFile(), offset, count, socket.getOutputStream());
+      }
+      ServerLog.transfer(ServerLog.Level.INFO, "Download concluído", id, null, sharedFile.name, count);
 
     } catch (Exception e) {
-      e.printStackTrace();
+      ServerLog.log(ServerLog.Level.WARN, "Download interrompido", null, sharedFile.name, id, -1, e);
     } finally {
+      Metrics.Transfer.DOWNLOAD.finished();
+      // Uma conexão que chegou junto com a expiração do token fecha o arquivo ao sair.
+      if (activeConnections.decrementAndGet() == 0) {
+        synchronized (this) {
+          if (tokenExpired) {
+            closeFile();
+          }
+        }
+      }
+    }
+  }
+
+  private synchronized FileChannel openFile() throws IOException {
+    if (file == null) {
+      file = FileChannel.open(sharedFile.path, StandardOpenOption.READ);
+    }
+    return file;
+  }
+
+  /**
+   * Mantém o token válido enquanto houver download em andamento.
+   */
+  @Override
+  public synchronized boolean expired() {
+    if (activeConnections.get() > 0) {
+      return false;
+    }
+    if (!tokenExpired) {
+      tokenExpired = true;
+      FileStore.release(sharedFile);
+    }
+    closeFile();
+    return true;
+  }
+
+  private void closeFile() {
+    if (file != null) {
       try {
-        serverSocket.close();
-      } catch (Exception e) {
-        e.printStackTrace();
+        file.close();
+      } catch (IOException ignored) {
+      }
+      file = null;
+    }
+  }
+
+  /**
+   * Envia o trecho em blocos comprimidos. Blocos que não diminuem vão sem
+   * compressão (ver Compression.ChunkWriter).
+   */
+  static void sendCompressed(FileChannel file, long offset, long count, OutputStream socketOut)
+      throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socketOut, 64 * 1024));
+    Compression.ChunkWriter writer = new Compression.ChunkWriter(Handshake.LEVEL);
+    try {
+      byte[] chunk = new byte[Compression.CHUNK_SIZE];
+      ByteBuffer wrapper = ByteBuffer.wrap(chunk);
+      long position = offset;
+      long end = offset + count;
+      while (position < end) {
+        wrapper.clear();
+        wrapper.limit((int) Math.min(chunk.length, end - position));
+        while (wrapper.hasRemaining()) {
+          if (file.read(wrapper, position + wrapper.position()) == -1) {
+            throw new IOException("Arquivo menor que o esperado");
+          }
+        }
+        writer.writeChunk(out, chunk, 0, wrapper.limit());
+        position += wrapper.limit();
+        Metrics.Transfer.DOWNLOAD.bytes(wrapper.limit());
+      }
+      out.flush();
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Envia o trecho direto do arquivo mapeado pelo FileCache. O cache só guarda
+   * arquivos menores que 2 GB, então as posições cabem em um int.
+   */
+  static void sendFromCache(ByteBuffer cached, long offset, long count, SocketChannel channel)
+      throws IOException {
+    cached.limit((int) (offset + count));
+    cached.position((int) offset);
+    while (cached.hasRemaining()) {
+      Metrics.Transfer.DOWNLOAD.bytes(channel.write(cached));
+    }
+  }
+
+  static void sendZeroCopy(FileChannel file, long offset, long count, SocketChannel channel)
+      throws IOException {
+    long position = offset;
+    long end = offset + count;
+    while (position < end) {
+      // transferTo pode enviar menos do que o pedido; continua de onde parou.
+      long sent = file.transferTo(position, end - position, channel);
+      if (sent <= 0) {
+        break;
+      }
+      position += sent;
+      Metrics.Transfer.DOWNLOAD.bytes(sent);
+    }
+  }
+
+  static void sendWithBuffer(FileChannel file, long offset, long count, OutputStream out)
+      throws IOException {
+    byte[] buffer = new byte[8192];
+    ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+    long position = offset;
+    long end = offset + count;
+    while (position < end) {
+      wrapper.clear();
+      wrapper.limit((int) Math.min(buffer.length, end - position));
+      int bytesRead = file.read(wrapper, position);
+      if (bytesRead == -1) {
+        break;
       }
+      out.write(buffer, 0, bytesRead);
+      position += bytesRead;
+      Metrics.Transfer.DOWNLOAD.bytes(bytesRead);
     }
+    out.flush();
   }
 }
@@ -0,0 +1,194 @@
+package servidor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import protocolo.Compression;
+
+/**
+ * Envia um arquivo de broadcast para um usuário com recebimento automático
+ * ligado, enquanto o upload ainda está em andamento. Cada bloco é repassado
+ * assim que o FileUploadHandler o grava, então a sala recebe o arquivo quase
+ * ao mesmo tempo que o servidor.
+ *
+ * Cada destinatário lê o arquivo em disco no seu próprio ritmo: um cliente
+ * lento só atrasa a si mesmo, e não o upload nem os outros destinatários.
+ *
+ * O protocolo é o mesmo do FileDownloadHandler (offset e tamanho pedidos pelo
+ * cliente, e o byte de codec se houver file-deflate), então uma conexão que
+ * cair é retomada com o mesmo token.
+ */
+public class FilePushHandler implements TransferPort.Route {
+  // Tempo máximo esperando o próximo bloco do upload ou o cliente ler (30 segundos)
+  private static final int IO_TIMEOUT = 30000;
+
+  final long id = TransferPort.nextTransferId();
+  private final FileUploadHandler upload;
+  private final String fileName;
+  private final long fileSize;
+  private final boolean negotiated;
+  private final AtomicInteger activeConnections = new AtomicInteger();
+
+  /**
+   * @param upload   O upload que está sendo repassado.
+   * @param fileName Nome anunciado pelo remetente.
+   * @param fileSize Tamanho anunciado pelo remetente.
+   * @param negotiated Se o destinatário negociou file-deflate.
+   */
+  public FilePushHandler(FileUploadHandler upload, String fileName, long fileSize, boolean negotiated) {
+    this.upload = upload;
+    this.fileName = fileName;
+    this.fileSize = fileSize;
+    this.negotiated = negotiated;
+  }
+
+  @Override
+  public void connected(Socket clientSocket) {
+    activeConnections.incrementAndGet();
+    Metrics.Transfer.PUSH.started();
+    try (Socket socket = clientSocket) {
+      socket.setSoTimeout(IO_TIMEOUT);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16));
+      long offset = in.readLong();
+      long length = in.readLong();
+
+      if (offset < 0 || offset > fileSize) {
+        throw new IOException("Offset fora do arquivo: " + offset);
+      }
+      long count = length < 0 ? fileSize - offset : Math.min(length, fileSize - offset);
+
+      boolean compress = negotiated && !Compression.isPrecompressed(fileName);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+      out.writeLong(count);
+      if (negotiated) {
+        out.writeByte(compress ? Compression.CODEC_CHUNKS : Compression.CODEC_RAW);
+      }
+      out.flush();
+
+      SocketChannel channel = socket.getChannel();
+      if (channel == null) {
+        throw new IOException("Conexão sem canal associado");
+      }
+      stream(offset, offset + count, channel, compress ? out : null);
+      ServerLog.transfer(ServerLog.Level.INFO, "Envio automático concluído", id, null, fileName, count);
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      ServerLog.log(ServerLog.Level.WARN, "Envio automático interrompido", null, fileName, id, -1, e);
+    } finally {
+      Metrics.Transfer.PUSH.finished();
+      activeConnections.decrementAndGet();
+    }
+  }
+
+  /**
+   * Envia os bytes de position até end, esperando o upload quando alcança o
+   * que já foi gravado.
+   *
+   * @param compressed Saída dos blocos comprimidos, ou null para enviar os
+   *                   bytes diretamente com transferTo.
+   */
+  private void stream(long position, long end, SocketChannel channel, DataOutputStream compressed)
+      throws IOException, InterruptedException {
+    FileChannel file = null;
+    SharedFile pinned = null;
+    Compression.ChunkWriter writer = compressed == null ? null : new Compression.ChunkWriter(Handshake.LEVEL);
+    byte[] chunk = compressed == null ? null : new byte[Compression.CHUNK_SIZE];
+    try {
+      while (position < end) {
+        long available = Math.min(upload.awaitCommitted(position, IO_TIMEOUT), end);
+        if (available <= position) {
+          if (upload.isAbandoned()) {
+            throw new IOException("upload cancelado pelo remetente");
+          }
+          if (upload.isComplete()) {
+            throw new IOException("upload terminou antes do tamanho anunciado");
+          }
+          throw new IOException("upload parado há mais de " + IO_TIMEOUT / 1000 + " s");
+        }
+
+        if (file == null) {
+          try {
+            file = FileChannel.open(Paths.get(upload.stagingPath()), StandardOpenOption.READ);
+          } catch (NoSuchFileException e) {
+            // O upload já terminou e o arquivo foi movido para o FileStore.
+            SharedFile stored = upload.awaitStored(IO_TIMEOUT);
+            pinned = stored == null ? null : FileStore.acquire(stored.name);
+            if (pinned == null) {
+              throw new IOException("arquivo não está mais disponível");
+            }
+            file = FileChannel.open(pinned.path, StandardOpenOption.READ);
+          }
+        }
+
+        if (writer != null) {
+          position = sendChunks(file, position, available, writer, chunk, compressed);
+          continue;
+        }
+        while (position < available) {
+          long sent = file.transferTo(position, available - position, channel);
+          if (sent <= 0) {
+            throw new IOException("Conexão encerrada pelo cliente");
+          }
+          position += sent;
+          Metrics.Transfer.PUSH.bytes(sent);
+        }
+      }
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+      if (file != null) {
+        file.close();
+      }
+      if (pinned != null) {
+        FileStore.release(pinned);
+      }
+    }
+  }
+
+  /**
+   * Comprime e envia o que já foi gravado, até available. O flush no fim
+   * entrega os blocos antes de voltar a esperar pelo upload.
+   *
+   * @return A nova posição.
+   */
+  private static long sendChunks(FileChannel file, long position, long available, Compression.ChunkWriter writer,
+      byte[] chunk, DataOutputStream out) throws IOException {
+    ByteBuffer wrapper = ByteBuffer.wrap(chunk);
+    while (position < available) {
+      wrapper.clear();
+      wrapper.limit((int) Math.min(chunk.length, available - position));
+      while (wrapper.hasRemaining()) {
+        if (file.read(wrapper, position + wrapper.position()) == -1) {
+          throw new IOException("Arquivo menor que o gravado");
+        }
+      }
+      writer.writeChunk(out, chunk, 0, wrapper.limit());
+      position += wrapper.limit();
+      Metrics.Transfer.PUSH.bytes(wrapper.limit());
+    }
+    out.flush();
+    return position;
+  }
+
+  /**
+   * Mantém o token válido enquanto o cliente estiver recebendo.
+   */
+  @Override
+  public boolean expired() {
+    return activeConnections.get() == 0;
+  }
+}
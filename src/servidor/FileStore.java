@@ -0,0 +1,293 @@
+package servidor;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Armazena os arquivos compartilhados com a sala. O conteúdo é endereçado pelo
+ * SHA-256: o mesmo arquivo enviado por várias pessoas ocupa o disco uma vez
+ * só, e cada nome anunciado é apenas uma referência para ele.
+ *
+ * O espaço usado é limitado por server.store.maxBytes e server.store.maxFiles.
+ * Os uploads em andamento também contam: cada um reserva o tamanho declarado
+ * antes de começar (reserve) e devolve a reserva ao terminar. Quando um
+ * limite é ultrapassado, os nomes usados há mais tempo saem do
+ * índice (LRU); nomes sem download há mais de server.store.ttlMinutes também
+ * expiram. O conteúdo é apagado quando não sobra nenhum nome nem download
+ * em andamento apontando para ele.
+ *
+ * O índice e as contas ficam sob o lock da classe, mas o disco não: o upload
+ * é movido para o diretório antes do lock, e o conteúdo que sai é apagado
+ * depois, na thread do sweeper.
+ */
+final class FileStore {
+  private static final Path DIR = Paths.get(ServerConfig.get("server.store.dir", "file_store"));
+  static final long MAX_BYTES = ServerConfig.getLong("server.store.maxBytes", 1024L * 1024 * 1024);
+  private static final int MAX_FILES = ServerConfig.getInt("server.store.maxFiles", 10000);
+  private static final long TTL_MS = TimeUnit.MINUTES.toMillis(ServerConfig.getLong("server.store.ttlMinutes", 1440));
+
+  /**
+   * Conteúdo guardado em disco, com os nomes que apontam para ele e os
+   * downloads em andamento.
+   */
+  private static final class Blob {
+    final String digest;
+    final Path path;
+    final long size;
+    int names;
+    int downloads;
+
+    Blob(String digest, Path path, long size) {
+      this.digest = digest;
+      this.path = path;
+      this.size = size;
+    }
+  }
+
+  private static final Map<String, Blob> blobs = new HashMap<>();
+  // Em ordem de acesso: o primeiro é o nome usado há mais tempo.
+  private static final LinkedHashMap<String, SharedFile> byName = new LinkedHashMap<>(16, 0.75f, true);
+  private static long usedBytes;
+  // Reservado pelos uploads em andamento, ainda em temp_uploads.
+  private static long stagingBytes;
+  // Expira os nomes parados e apaga o conteúdo que saiu do índice.
+  private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "file-store-sweeper");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private FileStore() {
+  }
+
+  /**
+   * Prepara o diretório e agenda a expiração dos arquivos. O índice só existe
+   * em memória, então o conteúdo deixado por uma execução anterior é apagado.
+   */
+  static void start() throws IOException {
+    Files.createDirectories(DIR);
+    try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(DIR)) {
+      for (Path leftover : leftovers) {
+        Files.deleteIfExists(leftover);
+      }
+    }
+
+    sweeper.scheduleWithFixedDelay(FileStore::expireIdle, 1, 1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Reserva espaço para um upload que vai começar. Se faltar espaço, os nomes
+   * usados há mais tempo saem do índice, como na chegada de um arquivo.
+   *
+   * @return false se nem assim o arquivo cabe, por exemplo porque o espaço
+   *         está reservado por outros uploads.
+   */
+  static synchronized boolean reserve(long bytes) {
+    if (bytes > MAX_BYTES - stagingBytes) {
+      return false;
+    }
+    stagingBytes += bytes;
+    evictOverQuota(null);
+    if (usedBytes + stagingBytes > MAX_BYTES) {
+      stagingBytes -= bytes;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Devolve uma reserva de um upload que não chegou ao commit.
+   */
+  static synchronized void unreserve(long bytes) {
+    stagingBytes -= bytes;
+  }
+
+  /**
+   * Guarda um upload concluído. Se já existe conteúdo com o mesmo hash, o
+   * arquivo recebido é descartado e o nome passa a apontar para a cópia
+   * existente. Um nome já usado por outro conteúdo recebe um sufixo
+   * (relatorio_2.pdf).
+   *
+   * @param staging  Arquivo recebido do cliente; é movido ou apagado.
+   * @param reserved Reserva feita para o upload, devolvida aqui mesmo se o
+   *                 commit falhar.
+   * @return O arquivo compartilhado, com o nome que deve ser anunciado.
+   */
+  static SharedFile commit(Path staging, String digest, long size, long reserved, String sender, String name)
+      throws IOException {
+    if (size > MAX_BYTES) {
+      unreserve(reserved);
+      Files.deleteIfExists(staging);
+      throw new IOException("arquivo maior que o limite de armazenamento");
+    }
+    // O arquivo entra no diretório antes do lock: mover pode ser uma cópia,
+    // se temp_uploads estiver em outro sistema de arquivos. O nome é único
+    // para não colidir com outro upload do mesmo conteúdo.
+    Path path = DIR.resolve(digest + "-" + UUID.randomUUID());
+    try {
+      Files.move(staging, path, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      unreserve(reserved);
+      Files.deleteIfExists(staging);
+      throw e;
+    }
+
+    SharedFile file;
+    boolean duplicate;
+    synchronized (FileStore.class) {
+      stagingBytes -= reserved;
+      Blob blob = blobs.get(digest);
+      duplicate = blob != null;
+      if (blob == null) {
+        blob = new Blob(digest, path, size);
+        blobs.put(digest, blob);
+        usedBytes += size;
+      }
+
+      SharedFile existing = byName.get(name);
+      if (existing != null && existing.digest.equals(digest)) {
+        // Mesmo nome e mesmo conteúdo: só renova o acesso.
+        existing.lastAccess = System.currentTimeMillis();
+        file = existing;
+      } else {
+        file = new SharedFile(uniqueName(name), sender, size, digest, blob.path);
+        blob.names++;
+        byName.put(file.name, file);
+        evictOverQuota(file);
+      }
+    }
+    if (duplicate) {
+      ServerLog.debug("Arquivo " + name + " já está armazenado (" + digest.substring(0, 12) + "...).");
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        ServerLog.warn("Erro ao apagar " + path, e);
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Procura um arquivo pelo nome e o reserva para download: o conteúdo não é
+   * apagado até a chamada correspondente de release, mesmo que o nome expire.
+   *
+   * @return O arquivo, ou null se não existe.
+   */
+  static synchronized SharedFile acquire(String name) {
+    SharedFile file = byName.get(name);
+    if (file == null) {
+      return null;
+    }
+    file.lastAccess = System.currentTimeMillis();
+    blobs.get(file.digest).downloads++;
+    return file;
+  }
+
+  /**
+   * Libera a reserva feita por acquire.
+   */
+  static synchronized void release(SharedFile file) {
+    Blob blob = blobs.get(file.digest);
+    if (blob != null) {
+      blob.downloads--;
+      dropIfUnused(blob);
+    }
+  }
+
+  static synchronized long usedBytes() {
+    return usedBytes;
+  }
+
+  static synchronized long stagingBytes() {
+    return stagingBytes;
+  }
+
+  static synchronized int fileCount() {
+    return byName.size();
+  }
+
+  private static String uniqueName(String name) {
+    if (!byName.containsKey(name)) {
+      return name;
+    }
+    int dot = name.lastIndexOf('.');
+    String base = dot > 0 ? name.substring(0, dot) : name;
+    String extension = dot > 0 ? name.substring(dot) : "";
+    int counter = 2;
+    while (byName.containsKey(base + "_" + counter + extension)) {
+      counter++;
+    }
+    return base + "_" + counter + extension;
+  }
+
+  /**
+   * Remove os nomes usados há mais tempo até voltar aos limites, contando as
+   * reservas. Conteúdo com download em andamento não seria apagado agora,
+   * então seus nomes ficam.
+   *
+   * @param added Arquivo que acabou de entrar e não deve sair, ou null.
+   */
+  private static void evictOverQuota(SharedFile added) {
+    Iterator<SharedFile> eldest = byName.values().iterator();
+    while ((usedBytes + stagingBytes > MAX_BYTES || byName.size() > MAX_FILES) && eldest.hasNext()) {
+      SharedFile file = eldest.next();
+      if (file == added || blobs.get(file.digest).downloads > 0) {
+        continue;
+      }
+      eldest.remove();
+      ServerLog.info("Arquivo " + file.name + " removido para liberar espaço.");
+      unref(file);
+    }
+  }
+
+  private static synchronized void expireIdle() {
+    long now = System.currentTimeMillis();
+    Iterator<SharedFile> eldest = byName.values().iterator();
+    while (eldest.hasNext()) {
+      SharedFile file = eldest.next();
+      if (now - file.lastAccess < TTL_MS) {
+        // Os seguintes foram acessados depois deste.
+        break;
+      }
+      eldest.remove();
+      ServerLog.info("Arquivo " + file.name + " expirou.");
+      unref(file);
+    }
+  }
+
+  private static void unref(SharedFile file) {
+    Blob blob = blobs.get(file.digest);
+    blob.names--;
+    dropIfUnused(blob);
+  }
+
+  private static void dropIfUnused(Blob blob) {
+    if (blob.names > 0 || blob.downloads > 0) {
+      return;
+    }
+    blobs.remove(blob.digest);
+    FileCache.invalidate(blob.digest);
+    usedBytes -= blob.size;
+    // Chamado com o lock: o arquivo é apagado fora dele.
+    Path path = blob.path;
+    sweeper.execute(() -> {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        ServerLog.warn("Erro ao apagar " + path, e);
+      }
+    });
+  }
+}
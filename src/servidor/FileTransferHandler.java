@@ -3,60 +3,109 @@ package servidor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Uma classe Runnable dedicada a gerenciar uma única transferência de arquivo.
- * Ela abre um ServerSocket temporário, espera que o remetente e o destinatário
- * se conectem,
- * e então transfere os bytes de um para o outro.
+ * O remetente e o destinatário conectam na porta de transferência, cada um com
+ * o seu token; quando os dois chegam, os bytes são repassados de um para o outro.
  */
 public class FileTransferHandler implements Runnable {
 
-  private final ServerSocket fileSocket;
   private final String sender;
   private final String recipient;
 
-  // Timeout para conexões (60 segundos)
-  private static final int CONNECTION_TIMEOUT = 60000;
   // Timeout para operações de I/O (30 segundos)
   private static final int IO_TIMEOUT = 30000;
+  // Repasse com canais NIO e buffer direto; false usa a cópia com byte[] no heap.
+  private static final boolean DIRECT_RELAY = ServerConfig.getBoolean("server.transfer.directRelay", true);
+  // Limites do buffer do repasse, que acompanha o SO_RCVBUF do remetente.
+  private static final int MIN_RELAY_BUFFER = 64 * 1024;
+  private static final int MAX_RELAY_BUFFER = 4 * 1024 * 1024;
 
-  public FileTransferHandler(ServerSocket fileSocket, String senderUsername, String recipientUsername) {
-    this.fileSocket = fileSocket;
+  // Sockets de cada lado, preenchidos à medida que os clientes conectam.
+  private Socket senderSocket;
+  private Socket recipientSocket;
+  private boolean finished;
+
+  // Identifica a transferência no log do servidor.
+  final long id = TransferPort.nextTransferId();
+
+  public FileTransferHandler(String senderUsername, String recipientUsername) {
     this.sender = senderUsername;
     this.recipient = recipientUsername;
+  }
 
-    try {
-      // Define timeout para aceitar conexões
-      this.fileSocket.setSoTimeout(CONNECTION_TIMEOUT);
-    } catch (Exception e) {
-      System.err.println("Erro ao configurar timeout do socket: " + e.getMessage());
+  /**
+   * Rota do token do remetente na porta de transferência.
+   */
+  void attachSender(Socket socket) {
+    attach(socket, true);
+  }
+
+  /**
+   * Rota do token do destinatário na porta de transferência.
+   */
+  void attachRecipient(Socket socket) {
+    attach(socket, false);
+  }
+
+  private void attach(Socket socket, boolean isSender) {
+    boolean ready;
+    synchronized (this) {
+      if (finished) {
+        closeQuietly(socket);
+        return;
+      }
+      if (isSender) {
+        senderSocket = socket;
+      } else {
+        recipientSocket = socket;
+      }
+      ready = senderSocket != null && recipientSocket != null;
+    }
+    // Quem chega por último faz o repasse na sua própria thread.
+    if (ready) {
+      run();
     }
   }
 
+  /**
+   * Um dos tokens expirou sem conexão: desiste da transferência e fecha o
+   * lado que já estava esperando.
+   */
+  void expire() {
+    synchronized (this) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+    }
+    ServerLog.transfer(ServerLog.Level.WARN, "Transferência privada para " + recipient
+        + " expirou sem os dois lados conectados", id, sender, null, -1);
+    closeQuietly(senderSocket);
+    closeQuietly(recipientSocket);
+  }
+
   @Override
   public void run() {
-    System.out
-        .println("Handler de transferência de arquivo iniciado. Aguardando conexão do remetente e destinatário...");
-
-    Socket senderSocket = null;
-    Socket recipientSocket = null;
+    synchronized (this) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+    }
 
+    Metrics.Transfer.RELAY.started();
     try {
-      // Espera conexão do primeiro cliente (pode ser remetente ou destinatário)
-      Socket firstSocket = fileSocket.accept();
-      Socket secondSocket = fileSocket.accept();
-
-      // Determina qual é qual baseado na ordem de conexão
-      // Na prática, ambos tentam conectar quase simultaneamente
-      senderSocket = firstSocket;
-      recipientSocket = secondSocket;
-
-      System.out.println(
-          "Remetente (" + sender + ") e destinatário (" + recipient + ") conectados para transferência de arquivo.");
+      ServerLog.transfer(ServerLog.Level.INFO, "Remetente e destinatário (" + recipient
+          + ") conectados; repassando o arquivo", id, sender, null, -1);
 
       // Configura timeouts para os sockets de transferência
       senderSocket.setSoTimeout(IO_TIMEOUT);
@@ -64,64 +113,134 @@ public class FileTransferHandler implements Runnable {
 
       this.transferBytes(senderSocket, recipientSocket);
     } catch (SocketTimeoutException e) {
-      System.err.println("Timeout na transferência de arquivo entre " + sender + " e " + recipient);
+      ServerLog.transfer(ServerLog.Level.WARN, "Timeout na transferência privada para " + recipient, id, sender,
+          null, -1);
+    } catch (IOException e) {
+      ServerLog.log(ServerLog.Level.WARN, "Transferência privada para " + recipient + " interrompida", sender,
+          null, id, -1, e);
     } catch (Exception e) {
-      e.printStackTrace();
+      ServerLog.error("Erro na transferência privada " + id, e);
     } finally {
-      try {
-        if (senderSocket != null)
-          senderSocket.close();
-        if (recipientSocket != null)
-          recipientSocket.close();
-        if (this.fileSocket != null)
-          this.fileSocket.close();
-
-        System.out.println("Transferência de arquivo finalizada");
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
+      Metrics.Transfer.RELAY.finished();
+      closeQuietly(senderSocket);
+      closeQuietly(recipientSocket);
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    if (socket == null) {
+      return;
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      ServerLog.warn("Erro ao fechar conexão de transferência", e);
     }
   }
 
   private void transferBytes(Socket senderSocket, Socket recipientSocket) throws IOException {
-    System.out.println("Copiando bytes...");
+    SocketChannel senderChannel = senderSocket.getChannel();
+    SocketChannel recipientChannel = recipientSocket.getChannel();
+    long totalBytes;
+    if (DIRECT_RELAY && senderChannel != null && recipientChannel != null) {
+      totalBytes = relayChannels(senderChannel, recipientChannel, senderSocket.getReceiveBufferSize());
+    } else {
+      totalBytes = relayStreams(senderSocket, recipientSocket);
+    }
+    ServerLog.transfer(ServerLog.Level.INFO, "Transferência privada para " + recipient + " concluída", id, sender,
+        null, totalBytes);
+  }
+
+  /**
+   * Repassa os bytes usando canais NIO e um ByteBuffer direto: os dados vão
+   * do socket do remetente para o do destinatário sem passar pelo heap.
+   * O buffer acompanha o tamanho do buffer de recepção do socket, para que
+   * cada leitura esvazie o que o kernel já recebeu.
+   */
+  long relayChannels(SocketChannel senderChannel, SocketChannel recipientChannel, int receiveBufferSize)
+      throws IOException {
+    int bufferSize = Math.max(MIN_RELAY_BUFFER, Math.min(receiveBufferSize, MAX_RELAY_BUFFER));
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+
+    // Canais em modo bloqueante ignoram o SO_TIMEOUT. A leitura do remetente
+    // passa a ser não bloqueante e o timeout é feito com um Selector.
+    senderChannel.configureBlocking(false);
+    try (Selector selector = Selector.open()) {
+      senderChannel.register(selector, SelectionKey.OP_READ);
+
+      ProgressReporter progress = new ProgressReporter();
+      while (true) {
+        int bytesRead = senderChannel.read(buffer);
+        if (bytesRead == -1) {
+          break;
+        }
+        if (bytesRead == 0) {
+          if (selector.select(IO_TIMEOUT) == 0) {
+            throw new SocketTimeoutException("Remetente sem enviar dados por " + IO_TIMEOUT + " ms");
+          }
+          selector.selectedKeys().clear();
+          continue;
+        }
 
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          recipientChannel.write(buffer);
+        }
+        buffer.clear();
+        progress.add(bytesRead);
+      }
+      return progress.totalBytes;
+    }
+  }
+
+  /**
+   * Cópia com buffer no heap, usada quando os sockets não têm canal associado
+   * ou quando server.transfer.directRelay=false.
+   */
+  long relayStreams(Socket senderSocket, Socket recipientSocket) throws IOException {
     try (InputStream senderStream = senderSocket.getInputStream();
         OutputStream recipientStream = recipientSocket.getOutputStream()) {
 
       byte[] buffer = new byte[8192];
       int bytesRead;
-      long totalBytes = 0;
-      long lastProgressReport = System.currentTimeMillis();
+      ProgressReporter progress = new ProgressReporter();
 
       // If no byte is available because the stream is at the end of the file,
       // the value `-1` is returned;
       while ((bytesRead = senderStream.read(buffer)) != -1) {
         // write (byte[] b, int off, int len)
         recipientStream.write(buffer, 0, bytesRead);
-        totalBytes += bytesRead;
-
-        // Relatório de progresso a cada 5 segundos
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastProgressReport > 5000) {
-          System.out.printf("Transferência em progresso: %.2f MB transferidos%n",
-              totalBytes / (1024.0 * 1024.0));
-          lastProgressReport = currentTime;
-        }
+        progress.add(bytesRead);
       }
 
       recipientStream.flush();
+      return progress.totalBytes;
+    }
+  }
 
-      System.out.printf("Transferência de arquivo concluída. Total: %.2f MB%n",
-          totalBytes / (1024.0 * 1024.0));
-
-      System.out.println("Cópia de bytes concluída.");
-    } catch (SocketTimeoutException e) {
-      System.err.println("Timeout durante transferência de bytes.");
-      throw e;
-    } catch (IOException e) {
-      System.err.println("Erro de I/O durante transferência: " + e.getMessage());
-      throw e;
+  /**
+   * Relatório de progresso a cada 5 segundos. O relógio só é consultado a
+   * cada PROGRESS_CHECK_INTERVAL blocos, e não a cada leitura.
+   */
+  private final class ProgressReporter {
+    private static final int PROGRESS_CHECK_INTERVAL = 64;
+
+    private long totalBytes;
+    private int chunks;
+    private long lastProgressReport = System.nanoTime();
+
+    void add(int bytes) {
+      totalBytes += bytes;
+      Metrics.Transfer.RELAY.bytes(bytes);
+      if (++chunks % PROGRESS_CHECK_INTERVAL != 0) {
+        return;
+      }
+      long currentTime = System.nanoTime();
+      if (currentTime - lastProgressReport > TimeUnit.SECONDS.toNanos(5)) {
+        ServerLog.transfer(ServerLog.Level.INFO, "Transferência privada em progresso", id, sender, null,
+            totalBytes);
+        lastProgressReport = currentTime;
+      }
     }
   }
 }
@@ -1,57 +1,338 @@
 package servidor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.net.ServerSocket;
+import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import protocolo.Compression;
 import servidor.Server;
 
-public class FileUploadHandler implements Runnable {
-  private final ServerSocket serverSocket;
+/**
+ * Recebe o upload de um arquivo de broadcast em blocos. O mesmo token pode ser
+ * usado em várias conexões: se a conexão cair, o cliente reconecta e o
+ * servidor informa quantos bytes já tem gravados, para que o envio continue
+ * do último bloco completo.
+ *
+ * Protocolo, depois do token:
+ * servidor -> cliente: long com o offset já gravado;
+ * cliente -> servidor: blocos [int tamanho][bytes], terminados por um int 0
+ *   (com file-deflate, um tamanho negativo indica um bloco comprimido, ver
+ *   protocolo.Compression.ChunkWriter);
+ * servidor -> cliente: long com o total recebido, confirmando o fim.
+ *
+ * O upload não pode passar do tamanho declarado no /sendfile, que é o espaço
+ * reservado no FileStore; um bloco além dele cancela o upload.
+ *
+ * O SHA-256 é calculado enquanto os blocos chegam, então ao final o arquivo
+ * vai direto para o FileStore sem ser lido de novo.
+ *
+ * Os FilePushHandler dos usuários com recebimento automático acompanham o
+ * upload pelos métodos await*, enviando cada bloco assim que ele é gravado.
+ * A espera usa um ReentrantLock com Condition, e não wait/notifyAll: com
+ * virtual threads, esperar dentro de um synchronized prende a thread de
+ * plataforma que a carrega.
+ */
+public class FileUploadHandler implements TransferPort.Route {
+  // Maior bloco aceito, já descomprimido. O bloco é lido inteiro antes de ser
+  // gravado, então o arquivo nunca fica com um bloco pela metade.
+  static final int MAX_CHUNK_SIZE = 1024 * 1024;
+  // Timeout para operações de I/O (30 segundos)
+  private static final int IO_TIMEOUT = 30000;
+
+  final long id = TransferPort.nextTransferId();
   private final String filePathOnServer;
   private final String senderUsername;
   private final String originalFileName;
+  private final long fileSize;
+
+  // Estado compartilhado entre as conexões do mesmo upload, protegido por lock.
+  private final ReentrantLock lock = new ReentrantLock();
+  // Sinalizada a cada mudança do estado abaixo.
+  private final Condition changed = lock.newCondition();
+  private long committed;
+  private boolean active;
+  private boolean complete;
+  // O upload foi descartado (token expirado, tamanho excedido ou falha ao armazenar).
+  private boolean abandoned;
+  // Espaço reservado no FileStore, ainda não devolvido.
+  private long reserved;
+  // Arquivo no FileStore, depois que o upload terminou e foi armazenado.
+  private SharedFile stored;
+  // Hash dos bytes até committed; só é atualizado depois que o bloco foi gravado.
+  private final MessageDigest digest;
 
-  public FileUploadHandler(ServerSocket serverSocket, String filePathOnServer, String sender, String originalFileName) {
-    this.serverSocket = serverSocket;
+  /**
+   * @param fileSize Tamanho declarado pelo remetente, já reservado com
+   *                 FileStore.reserve. A reserva passa a ser deste handler.
+   */
+  public FileUploadHandler(String filePathOnServer, String sender, String originalFileName, long fileSize) {
     this.filePathOnServer = filePathOnServer;
     this.senderUsername = sender;
     this.originalFileName = originalFileName;
+    this.fileSize = fileSize;
+    this.reserved = fileSize;
+    try {
+      this.digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Toda JVM é obrigada a oferecer SHA-256.
+      throw new IllegalStateException(e);
+    }
   }
 
   @Override
-  public void run() {
+  public void connected(Socket clientSocket) throws IOException {
+    long offset;
+    lock.lock();
     try {
-      // Cria o diretório de uploads se não existir
-      new File("temp_uploads").mkdir();
+      if (active || complete || abandoned) {
+        // Só uma conexão por vez grava o arquivo.
+        clientSocket.close();
+        return;
+      }
+      active = true;
+      offset = committed;
+    } finally {
+      lock.unlock();
+    }
+    Metrics.Transfer.UPLOAD.started();
 
-      try (Socket clientSocket = serverSocket.accept();
-          InputStream in = clientSocket.getInputStream();
-          FileOutputStream fos = new FileOutputStream(filePathOnServer)) {
+    // Cria o diretório de uploads se não existir
+    new File("temp_uploads").mkdir();
 
-        System.out.println("Cliente " + senderUsername + " conectado para upload.");
-        byte[] buffer = new byte[8192];
-        int bytesRead;
-        while ((bytesRead = in.read(buffer)) != -1) {
-          fos.write(buffer, 0, bytesRead);
-        }
-        System.out.println("Upload de " + originalFileName + " concluído.");
+    boolean finished = false;
+    boolean oversized = false;
+    Compression.ChunkReader reader = new Compression.ChunkReader();
+    try (Socket socket = clientSocket;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        FileChannel file = FileChannel.open(Paths.get(filePathOnServer),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+      socket.setSoTimeout(IO_TIMEOUT);
+      ServerLog.transfer(ServerLog.Level.INFO, offset == 0 ? "Upload iniciado" : "Upload retomado", id,
+          senderUsername, originalFileName, offset);
 
-        // Avisa o servidor principal para notificar a todos
-        long fileSize = new File(filePathOnServer).length();
-        Server.notifyFileBroadcast(senderUsername, originalFileName, filePathOnServer, fileSize);
+      out.writeLong(offset);
+      out.flush();
+
+      byte[] chunk = new byte[MAX_CHUNK_SIZE];
+      int length;
+      while ((length = reader.readChunk(in, chunk)) != 0) {
+        if (length > fileSize - offset) {
+          oversized = true;
+          break;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+        while (buffer.hasRemaining()) {
+          file.write(buffer, offset + (length - buffer.remaining()));
+        }
+        offset += length;
+        Metrics.Transfer.UPLOAD.bytes(length);
+        digest.update(chunk, 0, length);
+        lock.lock();
+        try {
+          committed = offset;
+          changed.signalAll();
+        } finally {
+          lock.unlock();
+        }
       }
-    } catch (Exception e) {
-      e.printStackTrace();
+      if (oversized) {
+        ServerLog.transfer(ServerLog.Level.WARN, "Upload passou do tamanho declarado (" + fileSize + " bytes)", id,
+            senderUsername, originalFileName, offset + length);
+      } else {
+        lock.lock();
+        try {
+          complete = true;
+          changed.signalAll();
+        } finally {
+          lock.unlock();
+        }
+        finished = true;
+        out.writeLong(offset);
+        out.flush();
+        ServerLog.transfer(ServerLog.Level.INFO, "Upload concluído", id, senderUsername, originalFileName, offset);
+      }
+    } catch (IOException e) {
+      ServerLog.transfer(ServerLog.Level.WARN, "Upload interrompido. Aguardando retomada.", id, senderUsername,
+          originalFileName, offset);
     } finally {
+      reader.close();
+      Metrics.Transfer.UPLOAD.finished();
+      lock.lock();
+      try {
+        active = false;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    if (oversized) {
+      discard();
+      Server.sendServerMessage(senderUsername, "Envio de '" + originalFileName
+          + "' cancelado: o arquivo passou do tamanho informado.");
+      return;
+    }
+    if (finished) {
+      SharedFile shared;
       try {
-        serverSocket.close();
-      } catch (Exception e) {
-        e.printStackTrace();
+        shared = FileStore.commit(Paths.get(filePathOnServer), toHex(digest.digest()), offset, takeReservation(),
+            senderUsername, originalFileName);
+      } catch (IOException e) {
+        ServerLog.log(ServerLog.Level.ERROR, "Erro ao armazenar o upload", senderUsername, originalFileName, id, offset,
+            e);
+        Server.sendServerMessage(senderUsername, "Não foi possível compartilhar '" + originalFileName + "': "
+            + e.getMessage() + ".");
+        lock.lock();
+        try {
+          abandoned = true;
+          changed.signalAll();
+        } finally {
+          lock.unlock();
+        }
+        return;
       }
+      lock.lock();
+      try {
+        stored = shared;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      // Avisa o servidor principal para notificar a todos
+      Server.notifyFileBroadcast(senderUsername, shared);
     }
   }
 
+  String stagingPath() {
+    return filePathOnServer;
+  }
+
+  /**
+   * A reserva ainda não devolvida, zerada para não ser devolvida duas vezes.
+   */
+  private long takeReservation() {
+    lock.lock();
+    try {
+      long bytes = reserved;
+      reserved = 0;
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Descarta o upload: avisa quem acompanha, apaga o arquivo parcial e
+   * devolve a reserva.
+   */
+  private void discard() {
+    lock.lock();
+    try {
+      abandoned = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    new File(filePathOnServer).delete();
+    FileStore.unreserve(takeReservation());
+  }
+
+  /**
+   * Espera até haver bytes gravados além de position, o upload acabar ou o
+   * tempo esgotar.
+   *
+   * @return Quantos bytes do início do arquivo já estão gravados.
+   */
+  long awaitCommitted(long position, long timeoutMillis) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      while (committed <= position && !complete && !abandoned && remaining > 0) {
+        remaining = changed.awaitNanos(remaining);
+      }
+      return committed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Espera o arquivo concluído ser movido para o FileStore.
+   *
+   * @return O arquivo armazenado, ou null se o upload foi descartado ou o
+   *         tempo esgotou.
+   */
+  SharedFile awaitStored(long timeoutMillis) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    lock.lock();
+    try {
+      while (stored == null && !abandoned && remaining > 0) {
+        remaining = changed.awaitNanos(remaining);
+      }
+      return stored;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isComplete() {
+    lock.lock();
+    try {
+      return complete;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isAbandoned() {
+    lock.lock();
+    try {
+      return abandoned;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * O token expirou: se o upload não foi concluído, descarta o arquivo parcial.
+   * Enquanto uma conexão estiver gravando, o token continua válido.
+   */
+  @Override
+  public boolean expired() {
+    lock.lock();
+    try {
+      if (active) {
+        return false;
+      }
+      if (complete || abandoned) {
+        return true;
+      }
+    } finally {
+      lock.unlock();
+    }
+    ServerLog.transfer(ServerLog.Level.INFO, "Upload abandonado", id, senderUsername, originalFileName, -1);
+    discard();
+    return true;
+  }
 }
@@ -0,0 +1,73 @@
+package servidor;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import protocolo.BinaryCodec;
+import protocolo.Compression;
+
+/**
+ * Negociação de recursos no início da conexão de chat (ver protocolo.Compression).
+ * O servidor oferece os recursos habilitados na configuração e aceita o
+ * subconjunto pedido pelo cliente.
+ */
+final class Handshake {
+  // Compressão dos blocos de arquivo para clientes que a pedirem.
+  private static final boolean FILE_COMPRESSION = ServerConfig.getBoolean("server.compression.files", true);
+  // Compressão da conexão de chat. Desligada por padrão: cada conexão
+  // comprimida mantém um Deflater e um Inflater próprios.
+  private static final boolean CHAT_COMPRESSION = ServerConfig.getBoolean("server.compression.chat", false);
+  static final int LEVEL = ServerConfig.getInt("server.compression.level", 6);
+  // Protocolo binário da conexão de chat (ver protocolo.BinaryCodec).
+  private static final boolean BINARY_PROTOCOL = ServerConfig.getBoolean("server.protocol.binary", true);
+
+  private Handshake() {
+  }
+
+  /**
+   * Linha HELLO enviada assim que o cliente conecta.
+   */
+  static String helloLine() {
+    StringBuilder line = new StringBuilder(Compression.HELLO);
+    if (FILE_COMPRESSION) {
+      line.append(' ').append(Compression.FILE_DEFLATE);
+    }
+    if (CHAT_COMPRESSION) {
+      line.append(' ').append(Compression.CHAT_DEFLATE);
+    }
+    if (BINARY_PROTOCOL) {
+      line.append(' ').append(BinaryCodec.FEATURE);
+    }
+    return line.toString();
+  }
+
+  static boolean isHello(String line) {
+    return line.equals(Compression.HELLO) || line.startsWith(Compression.HELLO + " ");
+  }
+
+  /**
+   * Recursos pedidos pelo cliente que o servidor oferece.
+   */
+  static Set<String> agree(String clientHello) {
+    Set<String> agreed = new LinkedHashSet<>();
+    Set<String> requested = Compression.features(clientHello);
+    if (FILE_COMPRESSION && requested.contains(Compression.FILE_DEFLATE)) {
+      agreed.add(Compression.FILE_DEFLATE);
+    }
+    if (CHAT_COMPRESSION && requested.contains(Compression.CHAT_DEFLATE)) {
+      agreed.add(Compression.CHAT_DEFLATE);
+    }
+    if (BINARY_PROTOCOL && requested.contains(BinaryCodec.FEATURE)) {
+      agreed.add(BinaryCodec.FEATURE);
+    }
+    return agreed;
+  }
+
+  static String helloOkLine(Set<String> agreed) {
+    StringBuilder line = new StringBuilder(Compression.HELLO_OK);
+    for (String feature : agreed) {
+      line.append(' ').append(feature);
+    }
+    return line.toString();
+  }
+}
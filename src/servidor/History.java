@@ -0,0 +1,424 @@
+package servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import protocolo.Codec;
+
+/**
+ * Histórico das conversas (/history). As últimas server.history.memory
+ * mensagens de cada sala ficam em um buffer circular em memória, ordenado
+ * pelo horário; o pedido comum ("as últimas 50") é respondido dali, sem
+ * disco, e a resposta já codificada é reaproveitada enquanto a sala não tiver
+ * mensagens novas. Assim, muitos usuários entrando juntos e pedindo o
+ * histórico da mesma sala custam uma codificação só.
+ *
+ * O que não está na memória (mensagens mais antigas e conversas privadas)
+ * vem do MessageLog, quando ele está ligado, localizado pelo índice de
+ * horário. Essas consultas rodam no pool do servidor e a resposta é enviada
+ * em páginas, à medida que as mensagens são lidas. Para o disco não ser
+ * varrido à toa:
+ * - uma sala que nunca teve mensagens registradas é respondida sem ler o
+ *   log (depois de reiniciar, são conhecidas as salas do segmento mais
+ *   recente);
+ * - um pedido sem horário lê no máximo server.history.scanSegments
+ *   segmentos, do mais novo para o mais antigo;
+ * - no máximo server.history.logQueries consultas ao log rodam ao mesmo
+ *   tempo; as outras recebem um aviso para tentar de novo.
+ */
+final class History {
+  private static final int MEMORY = ServerConfig.getInt("server.history.memory", 200);
+  private static final int MAX_LIMIT = ServerConfig.getInt("server.history.maxLimit", 500);
+  // Salas com histórico em memória; acima disso, sai a sala parada há mais tempo.
+  private static final int MAX_ROOMS = ServerConfig.getInt("server.history.rooms", 1000);
+  // Nomes das salas com mensagens registradas, mesmo sem buffer em memória.
+  private static final int MAX_KNOWN_ROOMS = ServerConfig.getInt("server.history.knownRooms", 100000);
+  private static final int SCAN_SEGMENTS = ServerConfig.getInt("server.history.scanSegments", 8);
+  private static final Semaphore logQueries = new Semaphore(ServerConfig.getInt("server.history.logQueries", 4));
+  private static final int DEFAULT_LIMIT = 50;
+  private static final int PAGE_SIZE = 50;
+  // "30m", "2h", "1d": até 999999 unidades, para a conta em milissegundos
+  // não estourar.
+  private static final int MAX_RELATIVE_DIGITS = 6;
+  static final String USAGE = "/history [#sala|@usuário] [HH:mm|30m|2h|1d] [quantidade]";
+
+  private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm")
+      .withZone(ZoneId.systemDefault());
+
+  /**
+   * Buffer circular com as últimas mensagens de uma sala.
+   */
+  private static final class Ring {
+    final long[] times = new long[MEMORY];
+    final String[] lines = new String[MEMORY];
+    int head;
+    int size;
+    // Mensagens já registradas; muda a cada nova mensagem e invalida o cache.
+    long version;
+    long lastActivity;
+    // Resposta já codificada do pedido padrão, por protocolo.
+    final byte[][] cached = new byte[2][];
+    final long[] cachedVersion = { -1, -1 };
+
+    synchronized void add(long time, String line) {
+      int tail = (head + size) % MEMORY;
+      if (size == MEMORY) {
+        head = (head + 1) % MEMORY;
+      } else {
+        size++;
+      }
+      // Horários nunca diminuem dentro do buffer, para a busca binária.
+      times[tail] = size > 1 ? Math.max(time, times[(tail + MEMORY - 1) % MEMORY]) : time;
+      lines[tail] = line;
+      version++;
+      lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Indica se todas as mensagens a partir de since estão no buffer.
+     */
+    synchronized boolean covers(long since) {
+      return size > 0 && times[head] <= since;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized List<String> last(int limit) {
+      int count = Math.min(limit, size);
+      return copy(size - count, count);
+    }
+
+    /**
+     * Mensagens a partir de since; a primeira é achada por busca binária.
+     */
+    synchronized List<String> since(long since, int limit) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (times[(head + mid) % MEMORY] < since) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return copy(low, Math.min(limit, size - low));
+    }
+
+    private List<String> copy(int from, int count) {
+      List<String> result = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        result.add(lines[(head + from + i) % MEMORY]);
+      }
+      return result;
+    }
+
+    /**
+     * A resposta do pedido padrão, codificada uma vez por versão e protocolo.
+     */
+    synchronized byte[] defaultResponse(Codec codec, String room) {
+      int slot = codec == Codec.BINARY ? 1 : 0;
+      if (cachedVersion[slot] != version) {
+        Pager pager = new Pager(codec, room);
+        for (String line : last(DEFAULT_LIMIT)) {
+          pager.add(line);
+        }
+        cached[slot] = pager.finish();
+        cachedVersion[slot] = version;
+      }
+      return cached[slot];
+    }
+  }
+
+  /**
+   * Monta a resposta em páginas de PAGE_SIZE mensagens. Cada página é uma
+   * única escrita; com uma sessão, é enviada assim que fica cheia.
+   */
+  private static final class Pager {
+    final Codec codec;
+    final ChatSession session;
+    final ByteArrayOutputStream page = new ByteArrayOutputStream();
+    int inPage;
+    int total;
+
+    Pager(Codec codec, String title) {
+      this(codec, null, title);
+    }
+
+    Pager(ChatSession session, String title) {
+      this(session.codec(), session, title);
+    }
+
+    private Pager(Codec codec, ChatSession session, String title) {
+      this.codec = codec;
+      this.session = session;
+      page.writeBytes(codec.message("Servidor: Histórico de " + title + ":"));
+    }
+
+    void add(String line) {
+      page.writeBytes(codec.message(line));
+      inPage++;
+      total++;
+      if (session != null && inPage == PAGE_SIZE) {
+        session.sendFrame(page.toByteArray());
+        page.reset();
+        inPage = 0;
+      }
+    }
+
+    byte[] finish() {
+      page.writeBytes(codec.message(total == 0 ? "Servidor: Nenhuma mensagem encontrada."
+          : "Servidor: Fim do histórico (" + total + " mensagens)."));
+      return page.toByteArray();
+    }
+
+    void send() {
+      session.sendFrame(finish());
+    }
+  }
+
+  private static final Map<String, Ring> rings = new ConcurrentHashMap<>();
+  // Em ordem de criação do buffer; acima de MAX_KNOWN_ROOMS sai a mais antiga.
+  private static final Map<String, Boolean> knownRooms = Collections.synchronizedMap(
+      new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_KNOWN_ROOMS;
+        }
+      });
+
+  private History() {
+  }
+
+  /**
+   * Registra uma mensagem de sala, já formatada como foi entregue.
+   */
+  static void record(String room, long timestamp, String line) {
+    Ring ring = rings.get(room);
+    if (ring == null) {
+      if (rings.size() >= MAX_ROOMS) {
+        evictIdlest();
+      }
+      ring = rings.computeIfAbsent(room, name -> new Ring());
+      knownRooms.put(room, Boolean.TRUE);
+    }
+    ring.add(timestamp, line);
+  }
+
+  private static void evictIdlest() {
+    String idlest = null;
+    long oldest = Long.MAX_VALUE;
+    for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+      long activity = entry.getValue().lastActivity;
+      if (activity < oldest) {
+        oldest = activity;
+        idlest = entry.getKey();
+      }
+    }
+    if (idlest != null) {
+      rings.remove(idlest);
+    }
+  }
+
+  /**
+   * Preenche os buffers com as mensagens de sala do segmento mais recente do
+   * log, para que o histórico continue em memória depois de reiniciar.
+   */
+  static void warmUp() {
+    try {
+      MessageLog.recent(entry -> {
+        if (entry.type == MessageLog.ROOM) {
+          record(entry.target, entry.timestamp, format(entry));
+        }
+        return true;
+      });
+    } catch (IOException e) {
+      ServerLog.warn("Erro ao carregar o histórico do log", e);
+    }
+  }
+
+  private static String format(MessageLog.Entry entry) {
+    String time = TIME.format(Instant.ofEpochMilli(entry.timestamp));
+    if (entry.type == MessageLog.PRIVATE) {
+      return String.format("[%s] (privado) %s: %s", time, entry.sender, entry.text);
+    }
+    return String.format("[%s] %s: %s", time, entry.sender, entry.text);
+  }
+
+  /**
+   * Atende um /history. Sem argumentos, as últimas 50 mensagens da sala atual.
+   */
+  static void query(ChatSession session, String args) {
+    Metrics.Message.HISTORY.count();
+    String username = session.getUsername();
+    String room = null;
+    String peer = null;
+    long since = -1;
+    int limit = DEFAULT_LIMIT;
+
+    for (String arg : args.trim().split("\\s+")) {
+      if (arg.isEmpty()) {
+        continue;
+      }
+      if (arg.startsWith("@")) {
+        peer = arg.substring(1);
+        if (!Server.validUsername(peer)) {
+          session.sendMessage("Servidor: Formato inválido. Use " + USAGE);
+          return;
+        }
+      } else if (arg.matches("\\d+")) {
+        // Mais de 9 dígitos não cabe num int e passa de qualquer limite.
+        limit = arg.length() > 9 ? MAX_LIMIT : Math.min(Integer.parseInt(arg), MAX_LIMIT);
+      } else if (arg.matches("\\d+[mhd]") && arg.length() > MAX_RELATIVE_DIGITS + 1) {
+        session.sendMessage("Servidor: Formato inválido. Use " + USAGE);
+        return;
+      } else if (since < 0 && parseSince(arg) >= 0) {
+        since = parseSince(arg);
+      } else {
+        room = Rooms.normalize(arg.startsWith("#") ? arg.substring(1) : arg);
+        if (room == null) {
+          session.sendMessage("Servidor: Formato inválido. Use " + USAGE);
+          return;
+        }
+      }
+    }
+    if (limit == 0) {
+      session.sendMessage("Servidor: Formato inválido. Use " + USAGE);
+      return;
+    }
+
+    if (peer != null) {
+      queryPrivate(session, username, peer, since, limit);
+      return;
+    }
+    if (room == null) {
+      Room current = Rooms.roomOf(username);
+      room = current != null ? current.name : Rooms.DEFAULT;
+    }
+
+    Ring ring = rings.get(room);
+    boolean inMemory = ring != null
+        && (!MessageLog.ENABLED || (since < 0 ? ring.size() >= limit : ring.covers(since)));
+    if (ring == null && (!MessageLog.ENABLED || !knownRooms.containsKey(room))) {
+      // Nada registrado para a sala: não há o que procurar no log.
+      session.sendFrame(new Pager(session.codec(), "#" + room).finish());
+    } else if (inMemory && since < 0 && limit == DEFAULT_LIMIT) {
+      session.sendFrame(ring.defaultResponse(session.codec(), "#" + room));
+    } else if (inMemory) {
+      Pager pager = new Pager(session, "#" + room);
+      for (String line : since < 0 ? ring.last(limit) : ring.since(since, limit)) {
+        pager.add(line);
+      }
+      pager.send();
+    } else {
+      String name = room;
+      queryLog(session, "#" + name, entry -> entry.type == MessageLog.ROOM && entry.target.equals(name), since,
+          limit);
+    }
+  }
+
+  private static void queryPrivate(ChatSession session, String username, String peer, long since, int limit) {
+    if (!MessageLog.ENABLED) {
+      session.sendMessage("Servidor: O histórico de mensagens privadas requer o log de mensagens"
+          + " (server.log.enabled).");
+      return;
+    }
+    queryLog(session, "@" + peer,
+        entry -> entry.type == MessageLog.PRIVATE
+            && (entry.sender.equals(username) && entry.target.equals(peer)
+                || entry.sender.equals(peer) && entry.target.equals(username)),
+        since, limit);
+  }
+
+  /**
+   * Agenda a consulta ao log no pool do servidor, se há vaga entre as
+   * server.history.logQueries consultas simultâneas.
+   */
+  private static void queryLog(ChatSession session, String title,
+      Predicate<MessageLog.Entry> filter, long since, int limit) {
+    if (!logQueries.tryAcquire()) {
+      session.sendMessage("Servidor: Muitas consultas ao histórico em andamento. Tente de novo em instantes.");
+      return;
+    }
+    Server.execute(() -> {
+      try {
+        readLog(session, title, filter, since, limit);
+      } finally {
+        logQueries.release();
+      }
+    });
+  }
+
+  /**
+   * Consulta o log. Com since, a leitura começa no índice de horário e cada
+   * página é enviada assim que fica cheia; sem since, busca as últimas
+   * mensagens do fim para o começo do log, em até SCAN_SEGMENTS segmentos.
+   */
+  private static void readLog(ChatSession session, String title,
+      Predicate<MessageLog.Entry> filter, long since, int limit) {
+    Pager pager = new Pager(session, title);
+    try {
+      if (since >= 0) {
+        MessageLog.replay(since, entry -> {
+          if (filter.test(entry)) {
+            pager.add(format(entry));
+          }
+          return pager.total < limit;
+        });
+      } else {
+        for (MessageLog.Entry entry : MessageLog.latest(filter, limit, SCAN_SEGMENTS)) {
+          pager.add(format(entry));
+        }
+      }
+    } catch (IOException e) {
+      ServerLog.warn("Erro ao ler o histórico", e);
+    }
+    pager.send();
+  }
+
+  /**
+   * Interpreta o início do intervalo: "HH:mm" (hoje, ou ontem se ainda não
+   * chegou) ou relativo, "30m", "2h", "1d".
+   *
+   * @return O horário em milissegundos, ou -1 se arg não é um horário.
+   */
+  private static long parseSince(String arg) {
+    if (arg.matches("\\d{1," + MAX_RELATIVE_DIGITS + "}[mhd]")) {
+      long amount = Long.parseLong(arg.substring(0, arg.length() - 1));
+      TimeUnit unit = arg.endsWith("m") ? TimeUnit.MINUTES : arg.endsWith("h") ? TimeUnit.HOURS : TimeUnit.DAYS;
+      // Antes de 1970 é o mesmo que desde o começo do log.
+      return Math.max(0, System.currentTimeMillis() - unit.toMillis(amount));
+    }
+    if (arg.matches("\\d{1,2}:\\d{2}")) {
+      try {
+        LocalTime time = LocalTime.parse(arg.length() == 4 ? "0" + arg : arg);
+        LocalDateTime at = LocalDateTime.of(LocalDate.now(), time);
+        if (at.isAfter(LocalDateTime.now())) {
+          at = at.minusDays(1);
+        }
+        return at.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+      } catch (DateTimeParseException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,99 @@
+package servidor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latências em nanossegundos, sem lock. Cada potência de 2 é
+ * dividida em 8 faixas, então o valor informado de um percentil erra no
+ * máximo 12,5% para cima; abaixo de 8 ns as faixas são exatas. Registrar um
+ * valor é só um cálculo de índice e um LongAdder.increment.
+ *
+ * Valores acima de 2^40 ns (cerca de 18 minutos) caem na última faixa.
+ *
+ * Público porque o gerador de carga (carga.LoadGenerator) mede as latências
+ * do lado do cliente com ele.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 3;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int MAX_EXPONENT = 40;
+  public static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+  private final LongAdder[] counts = new LongAdder[BUCKETS];
+  private final LongAdder sum = new LongAdder();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    counts[index(nanos)].increment();
+    sum.add(nanos);
+  }
+
+  private static int index(long value) {
+    if (value < SUB_COUNT) {
+      return (int) Math.max(value, 0);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+    return Math.min((exponent - SUB_BITS + 1) * SUB_COUNT + sub, BUCKETS - 1);
+  }
+
+  /**
+   * Maior valor que cai na faixa de índice i.
+   */
+  public static long upperBound(int i) {
+    if (i < SUB_COUNT) {
+      return i;
+    }
+    int shift = i / SUB_COUNT - 1;
+    long low = (long) (SUB_COUNT + i % SUB_COUNT) << shift;
+    return low + (1L << shift) - 1;
+  }
+
+  /**
+   * Contagem atual de cada faixa. Comparando duas cópias tiradas em momentos
+   * diferentes, obtém-se a distribuição do intervalo entre elas.
+   */
+  public long[] snapshot() {
+    long[] copy = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts[i].sum();
+    }
+    return copy;
+  }
+
+  public long sum() {
+    return sum.sum();
+  }
+
+  public static long count(long[] buckets) {
+    long total = 0;
+    for (long count : buckets) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * O percentil q (0 a 1) da distribuição, ou 0 se ela está vazia.
+   */
+  public static long quantile(long[] buckets, double q) {
+    long total = count(buckets);
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(q * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i];
+      if (seen >= rank) {
+        return upperBound(i);
+      }
+    }
+    return upperBound(BUCKETS - 1);
+  }
+}
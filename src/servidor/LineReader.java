@@ -0,0 +1,78 @@
+package servidor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lê as linhas do protocolo de texto no modo blocking, com o mesmo limite de
+ * tamanho que o NioClientSession aplica. O BufferedReader não tem limite: um
+ * cliente que nunca envia '\n' faria a linha crescer até acabar a memória.
+ */
+final class LineReader implements Closeable {
+  private final InputStream in;
+  private final int maxLength;
+  private final byte[] buffer = new byte[8 * 1024];
+  private int position;
+  private int limit;
+  private byte[] line = new byte[256];
+
+  /**
+   * @param maxLength Tamanho máximo de uma linha, em bytes, sem o '\n'.
+   */
+  LineReader(InputStream in, int maxLength) {
+    this.in = in;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * @return A linha sem o '\n' (e sem o '\r' antes dele), ou null no fim do
+   *         fluxo.
+   * @throws IOException Também quando a linha passa de maxLength bytes.
+   */
+  String readLine() throws IOException {
+    int length = 0;
+    while (true) {
+      if (position == limit) {
+        limit = in.read(buffer);
+        position = 0;
+        if (limit == -1) {
+          limit = 0;
+          return length == 0 ? null : decode(length);
+        }
+      }
+      int start = position;
+      while (position < limit && buffer[position] != '\n') {
+        position++;
+      }
+      int count = position - start;
+      if (length + count > maxLength) {
+        throw new IOException("Linha excede o tamanho máximo permitido");
+      }
+      if (length + count > line.length) {
+        line = Arrays.copyOf(line, Math.min(Math.max(length + count, line.length * 2), maxLength));
+      }
+      System.arraycopy(buffer, start, line, length, count);
+      length += count;
+      if (position < limit) {
+        // Pula o '\n'.
+        position++;
+        return decode(length);
+      }
+    }
+  }
+
+  private String decode(int length) {
+    if (length > 0 && line[length - 1] == '\r') {
+      length--;
+    }
+    return new String(line, 0, length, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
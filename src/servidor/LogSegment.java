@@ -0,0 +1,326 @@
+package servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Um segmento do MessageLog: um arquivo de registros e o seu índice esparso,
+ * nomeados pelo offset da primeira mensagem (00000000000000001234.log e .index).
+ *
+ * O arquivo de registros tem tamanho fixo e é mapeado em memória; cada
+ * registro é:
+ *
+ * [int tamanho][int crc32][long offset][long timestamp][byte tipo][texto alvo][texto remetente][texto mensagem]
+ *
+ * onde texto é [int tamanho][UTF-8] e o CRC cobre do offset ao fim. Um
+ * tamanho 0 marca o fim dos registros. O índice recebe uma entrada
+ * [long offset][long timestamp][int posição] a cada indexInterval bytes de
+ * registros, o que basta para achar um offset ou um horário com uma busca
+ * binária e uma leitura curta.
+ *
+ * Só a thread de escrita do MessageLog escreve no segmento. Leitores usam
+ * apenas a parte publicada (size e indexEntries), atualizada a cada lote.
+ */
+final class LogSegment {
+  private static final int HEADER = 8;
+  private static final int INDEX_ENTRY = 20;
+
+  final long baseOffset;
+  private final Path logPath;
+  private final Path indexPath;
+  private final int indexInterval;
+
+  // Só existem enquanto o segmento é o ativo.
+  private FileChannel logChannel;
+  private FileChannel indexChannel;
+  private MappedByteBuffer log;
+  private MappedByteBuffer index;
+  private final CRC32 crc = new CRC32();
+
+  // Fim dos registros escritos pela thread de escrita, e a parte já
+  // publicada aos leitores.
+  private int writePosition;
+  private volatile int size;
+  private volatile int indexEntries;
+  private volatile long firstTimestamp = -1;
+  private long nextOffset;
+  private long lastTimestamp;
+  private int sinceIndex;
+
+  private LogSegment(Path dir, long baseOffset, int indexInterval) {
+    this.baseOffset = baseOffset;
+    this.logPath = dir.resolve(String.format("%020d.log", baseOffset));
+    this.indexPath = dir.resolve(String.format("%020d.index", baseOffset));
+    this.indexInterval = indexInterval;
+    this.nextOffset = baseOffset;
+  }
+
+  /**
+   * Abre (ou cria) o segmento para escrita. Se o arquivo já existe, os
+   * registros são verificados até o primeiro inválido, que vira o fim do
+   * segmento; o índice é refeito a partir deles.
+   */
+  static LogSegment openActive(Path dir, long baseOffset, int capacity, int indexInterval) throws IOException {
+    LogSegment segment = new LogSegment(dir, baseOffset, indexInterval);
+    segment.logChannel = FileChannel.open(segment.logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    segment.indexChannel = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    int logSize = (int) Math.max(capacity, segment.logChannel.size());
+    segment.log = segment.logChannel.map(FileChannel.MapMode.READ_WRITE, 0, logSize);
+    segment.index = segment.indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+        (long) (logSize / indexInterval + 2) * INDEX_ENTRY);
+    segment.recover();
+    return segment;
+  }
+
+  /**
+   * Carrega um segmento antigo, já fechado, apenas para leitura.
+   */
+  static LogSegment openSealed(Path dir, long baseOffset, int indexInterval) throws IOException {
+    LogSegment segment = new LogSegment(dir, baseOffset, indexInterval);
+    segment.size = (int) Files.size(segment.logPath);
+    try (FileChannel channel = FileChannel.open(segment.indexPath, StandardOpenOption.READ)) {
+      ByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int count = 0;
+      // O índice é zerado depois da última entrada; a primeira sempre aponta
+      // para a posição 0.
+      while ((count + 1) * INDEX_ENTRY <= entries.limit()
+          && (count == 0 || entries.getInt(count * INDEX_ENTRY + 16) != 0)) {
+        count++;
+      }
+      if (count > 0 && entries.getLong(0) == baseOffset) {
+        segment.indexEntries = count;
+        segment.firstTimestamp = entries.getLong(8);
+      }
+    }
+    return segment;
+  }
+
+  private void recover() {
+    int position = 0;
+    for (Record record; (record = decode(log, position, log.limit(), nextOffset)) != null;) {
+      position = addToIndex(record, position, record.length);
+    }
+    writePosition = position;
+    size = position;
+    // Entradas antigas depois do ponto de recuperação não valem mais.
+    for (int i = indexEntries * INDEX_ENTRY; i < index.limit(); i++) {
+      index.put(i, (byte) 0);
+    }
+  }
+
+  /**
+   * Acrescenta uma mensagem ao segmento.
+   *
+   * @return O offset atribuído, ou -1 se a mensagem não cabe e é hora de
+   *         começar outro segmento.
+   */
+  long append(long timestamp, byte type, byte[] target, byte[] sender, byte[] text) {
+    int bodyLength = 8 + 8 + 1 + 12 + target.length + sender.length + text.length;
+    int position = writePosition;
+    if (position + HEADER + bodyLength > log.limit()) {
+      return -1;
+    }
+    // O relógio pode voltar alguns milissegundos entre threads; no log os
+    // horários nunca diminuem, para a busca por horário no índice.
+    timestamp = Math.max(timestamp, lastTimestamp);
+
+    ByteBuffer out = log.duplicate();
+    out.position(position + HEADER);
+    out.putLong(nextOffset).putLong(timestamp).put(type);
+    putText(out, target);
+    putText(out, sender);
+    putText(out, text);
+
+    ByteBuffer body = log.duplicate();
+    body.position(position + HEADER).limit(position + HEADER + bodyLength);
+    crc.reset();
+    crc.update(body);
+    log.putInt(position + 4, (int) crc.getValue());
+    log.putInt(position, bodyLength);
+
+    long offset = nextOffset;
+    Record record = new Record(offset, timestamp, type, null, null, null, HEADER + bodyLength);
+    writePosition = addToIndex(record, position, record.length);
+    return offset;
+  }
+
+  private int addToIndex(Record record, int position, int length) {
+    if (indexEntries == 0 || sinceIndex >= indexInterval) {
+      int at = indexEntries * INDEX_ENTRY;
+      index.putLong(at, record.offset).putLong(at + 8, record.timestamp).putInt(at + 16, position);
+      indexEntries++;
+      sinceIndex = 0;
+    }
+    if (firstTimestamp < 0) {
+      firstTimestamp = record.timestamp;
+    }
+    sinceIndex += length;
+    nextOffset = record.offset + 1;
+    lastTimestamp = record.timestamp;
+    return position + length;
+  }
+
+  /**
+   * Torna visível aos leitores o que foi escrito até aqui.
+   */
+  void publish() {
+    size = writePosition;
+  }
+
+  private static void putText(ByteBuffer out, byte[] text) {
+    out.putInt(text.length).put(text);
+  }
+
+  /**
+   * Grava no disco (msync) as páginas modificadas do segmento.
+   */
+  void force() {
+    log.force();
+    index.force();
+  }
+
+  /**
+   * Fecha o segmento para escrita. O mapeamento é liberado pelo GC.
+   */
+  void seal() throws IOException {
+    force();
+    logChannel.close();
+    indexChannel.close();
+    log = null;
+    index = null;
+  }
+
+  long nextOffset() {
+    return nextOffset;
+  }
+
+  long firstTimestamp() {
+    return firstTimestamp;
+  }
+
+  long bytesOnDisk() throws IOException {
+    return Files.size(logPath) + Files.size(indexPath);
+  }
+
+  void delete() throws IOException {
+    Files.deleteIfExists(logPath);
+    Files.deleteIfExists(indexPath);
+  }
+
+  /**
+   * Entrega, em ordem, as mensagens do segmento com horário a partir de
+   * fromTimestamp. O índice indica onde começar a leitura.
+   *
+   * @param consumer Recebe cada mensagem; devolve false para parar a leitura.
+   * @return false se o consumer parou a leitura.
+   */
+  boolean read(long fromTimestamp, Predicate<MessageLog.Entry> consumer) throws IOException {
+    int limit = size;
+    int entries = indexEntries;
+    if (limit == 0 || entries == 0) {
+      return true;
+    }
+    try (FileChannel logIn = FileChannel.open(logPath, StandardOpenOption.READ);
+        FileChannel indexIn = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      ByteBuffer idx = indexIn.map(FileChannel.MapMode.READ_ONLY, 0, (long) entries * INDEX_ENTRY);
+      // Última entrada com horário anterior a fromTimestamp: tudo antes dela
+      // é mais antigo e pode ser pulado.
+      int low = 0;
+      int high = entries - 1;
+      int start = 0;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (idx.getLong(mid * INDEX_ENTRY + 8) < fromTimestamp) {
+          start = idx.getInt(mid * INDEX_ENTRY + 16);
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+
+      ByteBuffer records = logIn.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+      int position = start;
+      for (Record record; (record = decode(records, position, limit, -1)) != null;) {
+        if (record.timestamp >= fromTimestamp && !consumer.test(new MessageLog.Entry(record.offset,
+            record.timestamp, record.type, record.target, record.sender, record.text))) {
+          return false;
+        }
+        position += record.length;
+      }
+    } catch (NoSuchFileException e) {
+      // Segmento removido pela retenção durante a leitura.
+    }
+    return true;
+  }
+
+  /**
+   * Um registro lido do arquivo.
+   */
+  private static final class Record {
+    final long offset;
+    final long timestamp;
+    final byte type;
+    final String target;
+    final String sender;
+    final String text;
+    final int length;
+
+    Record(long offset, long timestamp, byte type, String target, String sender, String text, int length) {
+      this.offset = offset;
+      this.timestamp = timestamp;
+      this.type = type;
+      this.target = target;
+      this.sender = sender;
+      this.text = text;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Lê o registro na posição, conferindo o CRC.
+   *
+   * @param expectedOffset O offset que o registro deve ter, ou -1 para aceitar qualquer um.
+   * @return O registro, ou null no fim dos registros válidos.
+   */
+  private Record decode(ByteBuffer buffer, int position, int limit, long expectedOffset) {
+    if (position + HEADER > limit) {
+      return null;
+    }
+    int bodyLength = buffer.getInt(position);
+    if (bodyLength < 29 || position + HEADER + bodyLength > limit) {
+      return null;
+    }
+    ByteBuffer body = buffer.duplicate();
+    body.position(position + HEADER).limit(position + HEADER + bodyLength);
+    CRC32 check = new CRC32();
+    check.update(body);
+    if ((int) check.getValue() != buffer.getInt(position + 4)) {
+      return null;
+    }
+    body.position(position + HEADER);
+    long offset = body.getLong();
+    if (expectedOffset >= 0 && offset != expectedOffset) {
+      return null;
+    }
+    long timestamp = body.getLong();
+    byte type = body.get();
+    return new Record(offset, timestamp, type, text(body), text(body), text(body), HEADER + bodyLength);
+  }
+
+  private static String text(ByteBuffer body) {
+    byte[] bytes = new byte[body.getInt()];
+    body.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
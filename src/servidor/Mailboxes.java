@@ -0,0 +1,312 @@
+package servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import protocolo.Codec;
+
+/**
+ * Caixas de entrada dos usuários offline. Uma mensagem privada ou oferta de
+ * arquivo para quem já entrou no chat alguma vez, mas não está conectado,
+ * fica guardada e é entregue, de uma vez, quando o usuário volta.
+ *
+ * Cada caixa é um arquivo em server.mailbox.dir, só com acréscimos no fim:
+ *
+ * [int tamanho][byte tipo][long horário][texto remetente][texto][long tamanho do arquivo]
+ *
+ * com texto em [int tamanho][UTF-8] (a mensagem, ou o nome do arquivo na
+ * oferta). Acima de maxMessages ou maxBytes as mais antigas são descartadas:
+ * o arquivo é reescrito com 3/4 do limite, para não reescrever a cada nova
+ * mensagem. O arquivo de quem nunca recebeu nada fica vazio e só marca que o
+ * usuário existe.
+ *
+ * A leitura e a escrita das caixas rodam nas threads de server.mailbox.writers,
+ * e não em quem chamou: o depósito e a entrega são chamados pelo despacho das
+ * mensagens (o reator NIO, ou a thread virtual da sessão), que não deve
+ * esperar o disco. Um depósito que termina com o destinatário já conectado
+ * (ele entrou depois de ser procurado) é entregue na hora, para não ficar na
+ * caixa até a próxima entrada.
+ */
+final class Mailboxes {
+  static final boolean ENABLED = ServerConfig.getBoolean("server.mailbox.enabled", true);
+  private static final Path DIR = Paths.get(ServerConfig.get("server.mailbox.dir", "mailboxes"));
+  private static final int MAX_MESSAGES = ServerConfig.getInt("server.mailbox.maxMessages", 100);
+  private static final int MAX_BYTES = ServerConfig.getInt("server.mailbox.maxBytes", 64 * 1024);
+  private static final int WRITERS = Math.max(1, ServerConfig.getInt("server.mailbox.writers", 1));
+  private static final String EXTENSION = ".mbox";
+  // Mensagens guardadas podem ser de outro dia.
+  private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("dd/MM HH:mm")
+      .withZone(ZoneId.systemDefault());
+
+  private static final byte MESSAGE = 1;
+  private static final byte FILE_OFFER = 2;
+
+  /**
+   * A caixa de um usuário. Os contadores são carregados do arquivo no
+   * primeiro uso. O lock protege o arquivo e os contadores entre as threads
+   * de escrita.
+   */
+  private static final class Mailbox {
+    final Path path;
+    final ReentrantLock lock = new ReentrantLock();
+    int count = -1;
+    int bytes;
+
+    Mailbox(Path path) {
+      this.path = path;
+    }
+  }
+
+  private static final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+  private static final ExecutorService writers = Executors.newFixedThreadPool(WRITERS, r -> {
+    Thread thread = new Thread(r, "mailbox-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private Mailboxes() {
+  }
+
+  /**
+   * Carrega a lista de usuários conhecidos (um arquivo de caixa por usuário).
+   */
+  static void start() throws IOException {
+    Files.createDirectories(DIR);
+    try (Stream<Path> files = Files.list(DIR)) {
+      files.forEach(path -> {
+        String name = path.getFileName().toString();
+        if (name.endsWith(EXTENSION)) {
+          String username = URLDecoder.decode(name.substring(0, name.length() - EXTENSION.length()),
+              StandardCharsets.UTF_8);
+          mailboxes.put(username, new Mailbox(path));
+        }
+      });
+    }
+    ServerLog.info("Caixas de entrada offline: " + mailboxes.size() + " usuários conhecidos.");
+  }
+
+  /**
+   * Guarda uma mensagem privada para um usuário offline. A gravação termina
+   * depois da chamada; um erro nela só vai para o log.
+   *
+   * @return false se o usuário nunca entrou no chat (não tem caixa).
+   */
+  static boolean depositMessage(String recipient, String sender, String message) {
+    return deposit(recipient, MESSAGE, sender, message, 0);
+  }
+
+  /**
+   * Guarda uma oferta de arquivo (/sendfile) para um usuário offline.
+   *
+   * @return false se o usuário nunca entrou no chat (não tem caixa).
+   */
+  static boolean depositFileOffer(String recipient, String sender, String fileName, long fileSize) {
+    return deposit(recipient, FILE_OFFER, sender, fileName, fileSize);
+  }
+
+  private static boolean deposit(String recipient, byte type, String sender, String text, long fileSize) {
+    Mailbox mailbox = ENABLED ? mailboxes.get(recipient) : null;
+    if (mailbox == null) {
+      return false;
+    }
+    byte[] record = encode(type, System.currentTimeMillis(), sender, text, fileSize);
+    writers.execute(() -> {
+      mailbox.lock.lock();
+      try {
+        load(mailbox);
+        try (OutputStream out = Files.newOutputStream(mailbox.path, StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND)) {
+          out.write(record);
+        }
+        mailbox.count++;
+        mailbox.bytes += record.length;
+        if (mailbox.count > MAX_MESSAGES || mailbox.bytes > MAX_BYTES) {
+          compact(mailbox);
+        }
+      } catch (IOException e) {
+        ServerLog.log(ServerLog.Level.WARN, "Erro ao guardar mensagem offline", recipient, null, -1, -1, e);
+        return;
+      } finally {
+        mailbox.lock.unlock();
+      }
+      // O destinatário pode ter entrado entre a busca de quem chamou e a
+      // gravação, e a entrega do login já ter esvaziado a caixa.
+      ChatSession online = UserRegistry.get(recipient);
+      if (online != null) {
+        deliverNow(online, mailbox);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Entrega a caixa ao usuário que acabou de entrar, em uma única escrita, e
+   * a esvazia. Na primeira entrada do usuário, cria a caixa dele.
+   */
+  static void deliver(ChatSession session) {
+    if (!ENABLED) {
+      return;
+    }
+    Mailbox mailbox = mailboxes.computeIfAbsent(session.getUsername(), name -> new Mailbox(fileFor(name)));
+    writers.execute(() -> deliverNow(session, mailbox));
+  }
+
+  /**
+   * Esvazia a caixa para a sessão, se ela ainda é a do usuário. Roda nas
+   * threads de escrita.
+   */
+  private static void deliverNow(ChatSession session, Mailbox mailbox) {
+    String username = session.getUsername();
+    List<ByteBuffer> records;
+    mailbox.lock.lock();
+    try {
+      // Quem saiu antes da entrega recebe tudo na próxima entrada.
+      if (UserRegistry.get(username) != session) {
+        return;
+      }
+      records = read(mailbox.path);
+      if (!records.isEmpty() || !Files.exists(mailbox.path)) {
+        // Truncar em vez de apagar: o arquivo marca que o usuário existe.
+        Files.write(mailbox.path, new byte[0]);
+        mailbox.count = 0;
+        mailbox.bytes = 0;
+      }
+    } catch (IOException e) {
+      ServerLog.log(ServerLog.Level.WARN, "Erro ao ler a caixa de entrada", username, null, -1, -1, e);
+      return;
+    } finally {
+      mailbox.lock.unlock();
+    }
+    if (records.isEmpty()) {
+      return;
+    }
+
+    Codec codec = session.codec();
+    ByteArrayOutputStream burst = new ByteArrayOutputStream();
+    burst.writeBytes(codec.message("Servidor: " + records.size() + " mensagem(ns) recebida(s) enquanto você estava offline:"));
+    for (ByteBuffer record : records) {
+      byte type = record.get();
+      String time = FORMATTER.format(Instant.ofEpochMilli(record.getLong()));
+      String sender = string(record);
+      String text = string(record);
+      long fileSize = record.getLong();
+      if (type == FILE_OFFER) {
+        burst.writeBytes(codec.message(String.format("[%s] %s ofereceu um arquivo enquanto você estava offline:", time, sender)));
+        Server.recordOffer(username, sender, text);
+        burst.writeBytes(codec.incomingFile(sender, text, fileSize));
+      } else {
+        burst.writeBytes(codec.message(String.format("[%s] (privado) %s: %s", time, sender, text)));
+      }
+    }
+    session.sendFrame(burst.toByteArray());
+  }
+
+  private static Path fileFor(String username) {
+    return DIR.resolve(URLEncoder.encode(username, StandardCharsets.UTF_8) + EXTENSION);
+  }
+
+  private static void load(Mailbox mailbox) throws IOException {
+    if (mailbox.count >= 0) {
+      return;
+    }
+    List<ByteBuffer> records = read(mailbox.path);
+    mailbox.count = records.size();
+    mailbox.bytes = Files.exists(mailbox.path) ? (int) Files.size(mailbox.path) : 0;
+  }
+
+  /**
+   * Reescreve a caixa só com as mensagens mais recentes, até 3/4 dos limites.
+   */
+  private static void compact(Mailbox mailbox) throws IOException {
+    List<ByteBuffer> records = read(mailbox.path);
+    int keepMessages = MAX_MESSAGES * 3 / 4;
+    int keepBytes = MAX_BYTES * 3 / 4;
+    int first = records.size();
+    int bytes = 0;
+    while (first > 0 && records.size() - first < keepMessages
+        && bytes + 4 + records.get(first - 1).remaining() <= keepBytes) {
+      first--;
+      bytes += 4 + records.get(first).remaining();
+    }
+
+    Path temp = mailbox.path.resolveSibling(mailbox.path.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      for (ByteBuffer record : records.subList(first, records.size())) {
+        byte[] length = ByteBuffer.allocate(4).putInt(record.remaining()).array();
+        out.write(length);
+        out.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+      }
+    }
+    Files.move(temp, mailbox.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    mailbox.count = records.size() - first;
+    mailbox.bytes = bytes;
+  }
+
+  /**
+   * Lê os registros da caixa, sem o prefixo de tamanho. Um registro cortado
+   * no fim (queda durante a escrita) é ignorado.
+   */
+  private static List<ByteBuffer> read(Path path) throws IOException {
+    List<ByteBuffer> records = new ArrayList<>();
+    if (!Files.exists(path)) {
+      return records;
+    }
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+    while (data.remaining() >= 4) {
+      int length = data.getInt();
+      if (length <= 0 || length > data.remaining()) {
+        break;
+      }
+      records.add(data.slice().limit(length));
+      data.position(data.position() + length);
+    }
+    return records;
+  }
+
+  private static byte[] encode(byte type, long timestamp, String sender, String text, long fileSize) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      byte[] from = sender.getBytes(StandardCharsets.UTF_8);
+      byte[] body = text.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(1 + 8 + 4 + from.length + 4 + body.length + 8);
+      out.writeByte(type);
+      out.writeLong(timestamp);
+      out.writeInt(from.length);
+      out.write(from);
+      out.writeInt(body.length);
+      out.write(body);
+      out.writeLong(fileSize);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static String string(ByteBuffer record) {
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
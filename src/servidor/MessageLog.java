@@ -0,0 +1,333 @@
+package servidor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Log persistente das mensagens de chat entregues (server.log.enabled). Cada
+ * mensagem de sala ou privada recebe um offset sequencial e é acrescentada ao
+ * fim do log, dividido em segmentos de tamanho fixo mapeados em memória
+ * (LogSegment), cada um com o seu índice esparso por offset e horário.
+ *
+ * Quem entrega a mensagem apenas a enfileira em uma fila sem lock: nada de
+ * disco nem de espera no caminho da entrega. Uma única thread escreve tudo o
+ * que estiver pendente de uma vez (group commit) e, conforme server.log.fsync,
+ * força a gravação no disco:
+ *
+ * always   - um msync por lote; nada confirmado se perde, nem com queda de energia
+ * interval - no máximo um msync a cada server.log.fsyncIntervalMs (padrão)
+ * never    - o sistema operacional decide quando gravar as páginas
+ *
+ * Se a fila enche (disco mais lento que o chat), a mensagem é entregue mas não
+ * entra no log, e o descarte é contado. Ao iniciar, o último segmento é
+ * verificado e o log continua do último registro íntegro.
+ */
+final class MessageLog {
+  static final boolean ENABLED = ServerConfig.getBoolean("server.log.enabled", false);
+  private static final Path DIR = Paths.get(ServerConfig.get("server.log.dir", "message_log"));
+  private static final int SEGMENT_BYTES = ServerConfig.getInt("server.log.segmentBytes", 64 * 1024 * 1024);
+  private static final int INDEX_INTERVAL = ServerConfig.getInt("server.log.indexIntervalBytes", 4096);
+  private static final FsyncPolicy FSYNC = FsyncPolicy
+      .valueOf(ServerConfig.get("server.log.fsync", "interval").toUpperCase());
+  private static final long FSYNC_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+      .toNanos(ServerConfig.getLong("server.log.fsyncIntervalMs", 1000));
+  private static final int QUEUE_CAPACITY = ServerConfig.getInt("server.log.queueCapacity", 65536);
+  // Acima disso, os segmentos mais antigos são apagados.
+  private static final long MAX_BYTES = ServerConfig.getLong("server.log.maxBytes", 10L * 1024 * 1024 * 1024);
+  private static final int MAX_BATCH = 4096;
+
+  /** Mensagem para uma sala; o alvo é o nome da sala. */
+  static final byte ROOM = 1;
+  /** Mensagem privada; o alvo é o destinatário. */
+  static final byte PRIVATE = 2;
+
+  enum FsyncPolicy {
+    ALWAYS, INTERVAL, NEVER
+  }
+
+  /**
+   * Uma mensagem do log. Ao ser enfileirada ainda não tem offset (-1).
+   */
+  static final class Entry {
+    final long offset;
+    final long timestamp;
+    final byte type;
+    final String target;
+    final String sender;
+    final String text;
+
+    Entry(long offset, long timestamp, byte type, String target, String sender, String text) {
+      this.offset = offset;
+      this.timestamp = timestamp;
+      this.type = type;
+      this.target = target;
+      this.sender = sender;
+      this.text = text;
+    }
+  }
+
+  private static final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+  // Tamanho da fila, mantido à parte: ConcurrentLinkedQueue.size() percorre a fila.
+  private static final AtomicInteger pending = new AtomicInteger();
+  // A thread de escrita está parada esperando mensagens.
+  private static volatile boolean parked;
+  private static final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+  private static final LongAdder dropped = new LongAdder();
+  private static volatile long appended;
+  private static volatile long batches;
+  private static volatile long syncs;
+  private static volatile boolean closing;
+  private static LogSegment active;
+  private static Thread writer;
+
+  private MessageLog() {
+  }
+
+  /**
+   * Abre os segmentos existentes e inicia a thread de escrita.
+   */
+  static void start() throws IOException {
+    Files.createDirectories(DIR);
+    List<Long> bases = new ArrayList<>();
+    try (Stream<Path> files = Files.list(DIR)) {
+      files.map(path -> path.getFileName().toString())
+          .filter(name -> name.endsWith(".log"))
+          .forEach(name -> bases.add(Long.parseLong(name.substring(0, name.length() - 4))));
+    }
+    bases.sort(null);
+
+    for (int i = 0; i < bases.size() - 1; i++) {
+      segments.add(LogSegment.openSealed(DIR, bases.get(i), INDEX_INTERVAL));
+    }
+    active = LogSegment.openActive(DIR, bases.isEmpty() ? 0 : bases.get(bases.size() - 1), SEGMENT_BYTES,
+        INDEX_INTERVAL);
+    segments.add(active);
+
+    writer = new Thread(MessageLog::writeLoop, "message-log");
+    writer.setDaemon(true);
+    writer.start();
+    ServerLog.info("Log de mensagens em " + DIR.toAbsolutePath() + ", próximo offset " + active.nextOffset()
+        + ", fsync " + FSYNC.name().toLowerCase());
+  }
+
+  /**
+   * Enfileira uma mensagem entregue. Nunca bloqueia.
+   */
+  static void append(byte type, String target, String sender, String text) {
+    if (!ENABLED) {
+      return;
+    }
+    if (pending.incrementAndGet() > QUEUE_CAPACITY) {
+      pending.decrementAndGet();
+      dropped.increment();
+      return;
+    }
+    queue.offer(new Entry(-1, System.currentTimeMillis(), type, target, sender, text));
+    if (parked) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Grava o que estiver pendente e encerra a thread de escrita. Chamado ao
+   * desligar o servidor.
+   */
+  static void close() {
+    if (writer == null) {
+      return;
+    }
+    closing = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void writeLoop() {
+    List<Entry> batch = new ArrayList<>(MAX_BATCH);
+    long lastSync = System.nanoTime();
+    boolean dirty = false;
+    try {
+      while (true) {
+        for (Entry entry; batch.size() < MAX_BATCH && (entry = queue.poll()) != null;) {
+          batch.add(entry);
+        }
+        if (!batch.isEmpty()) {
+          pending.addAndGet(-batch.size());
+          for (Entry entry : batch) {
+            write(entry);
+          }
+          active.publish();
+          appended += batch.size();
+          batches++;
+          batch.clear();
+          dirty = true;
+        } else if (closing) {
+          break;
+        } else {
+          // Fila vazia: para até chegar uma mensagem (append acorda a thread)
+          // ou até a hora de um msync pendente.
+          parked = true;
+          if (queue.isEmpty() && !closing) {
+            LockSupport.parkNanos(dirty ? FSYNC_INTERVAL_NANOS : TimeUnit.MILLISECONDS.toNanos(100));
+          }
+          parked = false;
+        }
+
+        if (dirty && (FSYNC == FsyncPolicy.ALWAYS
+            || FSYNC == FsyncPolicy.INTERVAL && System.nanoTime() - lastSync >= FSYNC_INTERVAL_NANOS)) {
+          active.force();
+          syncs++;
+          lastSync = System.nanoTime();
+          dirty = false;
+        }
+      }
+      if (dirty && FSYNC != FsyncPolicy.NEVER) {
+        active.force();
+        syncs++;
+      }
+    } catch (IOException e) {
+      ServerLog.error("Erro no log de mensagens, gravação interrompida", e);
+    }
+  }
+
+  private static void write(Entry entry) throws IOException {
+    byte[] target = entry.target.getBytes(StandardCharsets.UTF_8);
+    byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+    byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+    if (active.append(entry.timestamp, entry.type, target, sender, text) >= 0) {
+      return;
+    }
+    roll();
+    if (active.append(entry.timestamp, entry.type, target, sender, text) < 0) {
+      ServerLog.warn("Mensagem maior que um segmento do log; descartada.");
+      dropped.increment();
+    }
+  }
+
+  /**
+   * Fecha o segmento ativo e começa outro a partir do próximo offset.
+   */
+  private static void roll() throws IOException {
+    active.publish();
+    active.seal();
+    syncs++;
+    active = LogSegment.openActive(DIR, active.nextOffset(), SEGMENT_BYTES, INDEX_INTERVAL);
+    segments.add(active);
+
+    long total = 0;
+    for (LogSegment segment : segments) {
+      total += segment.bytesOnDisk();
+    }
+    while (total > MAX_BYTES && segments.size() > 1) {
+      LogSegment oldest = segments.remove(0);
+      total -= oldest.bytesOnDisk();
+      oldest.delete();
+    }
+  }
+
+  /**
+   * Entrega, em ordem de offset, as mensagens gravadas a partir do horário
+   * informado (em milissegundos). Segmentos que terminam antes dele não são
+   * lidos.
+   *
+   * @param consumer Recebe cada mensagem; devolve false para parar a leitura.
+   */
+  static void replay(long fromTimestamp, Predicate<Entry> consumer) throws IOException {
+    List<LogSegment> snapshot = new ArrayList<>(segments);
+    for (int i = 0; i < snapshot.size(); i++) {
+      boolean endsBefore = i + 1 < snapshot.size() && snapshot.get(i + 1).firstTimestamp() >= 0
+          && snapshot.get(i + 1).firstTimestamp() < fromTimestamp;
+      if (!endsBefore && !snapshot.get(i).read(fromTimestamp, consumer)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * As últimas mensagens que atendem ao filtro, da mais antiga para a mais
+   * recente. Os segmentos são lidos do mais novo para o mais antigo, e a
+   * leitura para assim que as limit mensagens foram encontradas ou depois de
+   * maxSegments segmentos: um filtro que quase nada atende não lê o log todo.
+   */
+  static List<Entry> latest(Predicate<Entry> filter, int limit, int maxSegments) throws IOException {
+    ArrayDeque<Entry> found = new ArrayDeque<>(limit);
+    List<LogSegment> snapshot = new ArrayList<>(segments);
+    int oldest = Math.max(0, snapshot.size() - maxSegments);
+    for (int i = snapshot.size() - 1; i >= oldest && found.size() < limit; i--) {
+      int wanted = limit - found.size();
+      ArrayDeque<Entry> inSegment = new ArrayDeque<>(wanted);
+      snapshot.get(i).read(Long.MIN_VALUE, entry -> {
+        if (filter.test(entry)) {
+          if (inSegment.size() == wanted) {
+            inSegment.pollFirst();
+          }
+          inSegment.addLast(entry);
+        }
+        return true;
+      });
+      while (!inSegment.isEmpty()) {
+        found.addFirst(inSegment.pollLast());
+      }
+    }
+    return new ArrayList<>(found);
+  }
+
+  /**
+   * Entrega as mensagens do segmento ativo, o mais recente. Usado para
+   * preencher o histórico em memória ao iniciar.
+   */
+  static void recent(Predicate<Entry> consumer) throws IOException {
+    if (active != null) {
+      active.read(Long.MIN_VALUE, consumer);
+    }
+  }
+
+  static long appended() {
+    return appended;
+  }
+
+  static long dropped() {
+    return dropped.sum();
+  }
+
+  static long batches() {
+    return batches;
+  }
+
+  static long syncs() {
+    return syncs;
+  }
+
+  static int pending() {
+    return pending.get();
+  }
+
+  /**
+   * Resumo legível dos contadores.
+   */
+  static String summary() {
+    if (!ENABLED) {
+      return "";
+    }
+    long b = batches;
+    return String.format("Log de mensagens: %d gravadas, %d descartadas, %d lotes (média %.1f mensagens/lote), %d msync%n",
+        appended, dropped(), b, b == 0 ? 0.0 : (double) appended / b, syncs);
+  }
+}
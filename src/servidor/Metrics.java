@@ -0,0 +1,549 @@
+package servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Métricas do servidor. Quem registra um evento só incrementa um LongAdder
+ * (ou registra uma latência no LatencyHistogram): alguns nanossegundos, sem
+ * lock e sem E/S no caminho da mensagem. Uma thread, uma vez por segundo,
+ * guarda os totais para calcular as taxas e os percentis dos últimos
+ * server.metrics.windowSeconds segundos.
+ *
+ * As métricas ficam disponíveis de duas formas:
+ *
+ * JMX  - o MBean servidor:type=Metrics, com um atributo por métrica
+ * texto - com server.metrics.port, uma porta local que responde no formato
+ *         de texto do Prometheus, a um GET HTTP ou a uma linha qualquer
+ *
+ * Os valores instantâneos (usuários, filas, memória) são lidos só quando
+ * alguém consulta.
+ */
+final class Metrics {
+  // Primeiro: os contadores abaixo dependem da janela.
+  private static final int WINDOW = Math.max(1, ServerConfig.getInt("server.metrics.windowSeconds", 10));
+  private static final int SLOTS = WINDOW + 1;
+  static final int PORT = ServerConfig.getInt("server.metrics.port", 0);
+  // A porta só aceita conexões locais, a não ser que outro endereço seja configurado.
+  private static final String HOST = ServerConfig.get("server.metrics.host", "127.0.0.1");
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  /**
+   * Contador com a taxa por segundo na janela.
+   */
+  static final class Counter {
+    private final LongAdder total = new LongAdder();
+    private final long[] history = new long[SLOTS];
+
+    void increment() {
+      total.increment();
+    }
+
+    void add(long amount) {
+      total.add(amount);
+    }
+
+    long total() {
+      return total.sum();
+    }
+
+    private void tick(int slot) {
+      history[slot] = total.sum();
+    }
+
+    double rate() {
+      long t = ticks;
+      if (t < 2) {
+        return 0;
+      }
+      int span = (int) Math.min(t - 1, WINDOW);
+      return (double) (history[(int) ((t - 1) % SLOTS)] - history[(int) ((t - 1 - span) % SLOTS)]) / span;
+    }
+  }
+
+  /**
+   * Mensagens de chat, por tipo.
+   */
+  enum Message {
+    /** Mensagem de sala enviada por um usuário deste nó. */
+    ROOM,
+    /** Mensagem privada entregue (aqui ou em outro nó). */
+    PRIVATE,
+    /** Mensagem privada guardada na caixa de um usuário offline. */
+    OFFLINE,
+    /** Aviso do servidor a uma sala (entradas e saídas). */
+    NOTICE,
+    /** Mensagem recebida de outro nó do cluster. */
+    REMOTE,
+    /** Pedido de /history. */
+    HISTORY;
+
+    final Counter counter = new Counter();
+
+    void count() {
+      counter.increment();
+    }
+  }
+
+  /**
+   * Transferências de arquivo, por handler.
+   */
+  enum Transfer {
+    /** FileUploadHandler: arquivo enviado para @all. */
+    UPLOAD,
+    /** FileDownloadHandler: /download de um arquivo compartilhado. */
+    DOWNLOAD,
+    /** FilePushHandler: recebimento automático durante o upload. */
+    PUSH,
+    /** FileTransferHandler: repasse do envio privado. */
+    RELAY;
+
+    final Counter transferred = new Counter();
+    final LongAdder starts = new LongAdder();
+    final LongAdder active = new LongAdder();
+
+    void started() {
+      starts.increment();
+      active.increment();
+    }
+
+    void bytes(long amount) {
+      transferred.add(amount);
+    }
+
+    void finished() {
+      active.decrement();
+    }
+  }
+
+  /**
+   * Conexões recusadas ou perdidas na porta de transferência.
+   */
+  enum TransferFailure {
+    /** Token desconhecido, já usado ou mal formado. */
+    INVALID_TOKEN,
+    /** O cliente conectou, mas não enviou o token a tempo. */
+    TIMEOUT,
+    /** Token de uso único expirou sem que ninguém conectasse. */
+    EXPIRED,
+    /** Erro ao aceitar a conexão. */
+    ACCEPT;
+
+    final LongAdder failures = new LongAdder();
+
+    void count() {
+      failures.increment();
+    }
+  }
+
+  private static final LatencyHistogram fanout = new LatencyHistogram();
+  private static final long[][] fanoutHistory = new long[SLOTS][];
+  private static final LongAdder broadcastRecipients = new LongAdder();
+  private static final LongAdder outboundDrops = new LongAdder();
+  private static final LongAdder slowConsumerDisconnects = new LongAdder();
+  // Segundos já registrados pela thread das métricas.
+  private static volatile long ticks;
+
+  private Metrics() {
+  }
+
+  /**
+   * Inicia a thread que calcula as janelas, registra o MBean e, se
+   * configurada, abre a porta de métricas.
+   */
+  static void start() {
+    ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "metrics");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ticker.scheduleAtFixedRate(Metrics::tick, 0, 1, TimeUnit.SECONDS);
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("servidor:type=Metrics"));
+    } catch (JMException e) {
+      ServerLog.warn("Erro ao registrar as métricas no JMX", e);
+    }
+
+    if (PORT > 0) {
+      try {
+        ServerSocket serverSocket = new ServerSocket(PORT, 16, InetAddress.getByName(HOST));
+        Thread acceptor = new Thread(() -> serve(serverSocket), "metrics-port");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ServerLog.info("Métricas em " + HOST + ":" + PORT);
+      } catch (IOException e) {
+        ServerLog.error("Erro ao abrir a porta de métricas " + PORT, e);
+      }
+    }
+  }
+
+  // ---- Registro (caminho quente) ----
+
+  /**
+   * Registra um broadcast: o tempo para enfileirar a mensagem para todos os
+   * membros da sala e quantos eram.
+   */
+  static void broadcast(long nanos, int recipients) {
+    fanout.record(nanos);
+    broadcastRecipients.add(recipients);
+  }
+
+  /** Mensagem descartada de uma fila de saída cheia (drop_oldest). */
+  static void outboundDropped() {
+    outboundDrops.increment();
+  }
+
+  /** Cliente desconectado por não consumir as mensagens. */
+  static void slowConsumer() {
+    slowConsumerDisconnects.increment();
+  }
+
+  private static void tick() {
+    long t = ticks;
+    int slot = (int) (t % SLOTS);
+    for (Message message : Message.values()) {
+      message.counter.tick(slot);
+    }
+    for (Transfer transfer : Transfer.values()) {
+      transfer.transferred.tick(slot);
+    }
+    fanoutHistory[slot] = fanout.snapshot();
+    ticks = t + 1;
+  }
+
+  /**
+   * Distribuição dos broadcasts na janela (desde o início, antes de a janela
+   * ter dois segundos registrados).
+   */
+  private static long[] fanoutWindow() {
+    long t = ticks;
+    long[] now = fanout.snapshot();
+    if (t < 2) {
+      return now;
+    }
+    long[] start = fanoutHistory[(int) ((t - 1 - Math.min(t - 1, WINDOW)) % SLOTS)];
+    for (int i = 0; i < now.length; i++) {
+      now[i] -= start[i];
+    }
+    return now;
+  }
+
+  // ---- Leitura ----
+
+  /**
+   * Recebe as métricas lidas por collect.
+   */
+  private interface Sink {
+    void family(String name, String type, String help);
+
+    /**
+     * @param label Os rótulos no formato do Prometheus (tipo="room"), ou null.
+     */
+    void sample(String name, String label, Number value);
+  }
+
+  private static void collect(Sink sink) {
+    sink.family("chat_users_connected", "gauge", "Usuários conectados neste nó.");
+    sink.sample("chat_users_connected", null, Server.sessions().length);
+    sink.family("chat_users_remote", "gauge", "Usuários conectados nos outros nós do cluster.");
+    sink.sample("chat_users_remote", null, Cluster.remoteUsers());
+    sink.family("chat_rooms", "gauge", "Salas existentes neste nó.");
+    sink.sample("chat_rooms", null, Rooms.count());
+
+    sink.family("chat_messages_total", "counter", "Mensagens de chat, por tipo.");
+    for (Message message : Message.values()) {
+      sink.sample("chat_messages_total", label("type", message), message.counter.total());
+    }
+    sink.family("chat_messages_per_second", "gauge", "Mensagens por segundo na janela, por tipo.");
+    for (Message message : Message.values()) {
+      sink.sample("chat_messages_per_second", label("type", message), message.counter.rate());
+    }
+
+    long[] window = fanoutWindow();
+    sink.family("chat_broadcast_fanout_seconds", "summary",
+        "Tempo para enfileirar uma mensagem de sala para todos os membros; percentis na janela.");
+    for (double q : QUANTILES) {
+      sink.sample("chat_broadcast_fanout_seconds", "quantile=\"" + q + "\"",
+          LatencyHistogram.quantile(window, q) / 1e9);
+    }
+    sink.sample("chat_broadcast_fanout_seconds_sum", null, fanout.sum() / 1e9);
+    sink.sample("chat_broadcast_fanout_seconds_count", null, LatencyHistogram.count(fanout.snapshot()));
+    sink.family("chat_broadcast_recipients_total", "counter", "Entregas feitas pelos broadcasts de sala.");
+    sink.sample("chat_broadcast_recipients_total", null, broadcastRecipients.sum());
+
+    sink.family("chat_transfer_bytes_total", "counter", "Bytes transferidos, por handler.");
+    for (Transfer transfer : Transfer.values()) {
+      sink.sample("chat_transfer_bytes_total", label("handler", transfer), transfer.transferred.total());
+    }
+    sink.family("chat_transfer_bytes_per_second", "gauge", "Bytes por segundo na janela, por handler.");
+    for (Transfer transfer : Transfer.values()) {
+      sink.sample("chat_transfer_bytes_per_second", label("handler", transfer), transfer.transferred.rate());
+    }
+    sink.family("chat_transfers_total", "counter", "Transferências iniciadas, por handler.");
+    for (Transfer transfer : Transfer.values()) {
+      sink.sample("chat_transfers_total", label("handler", transfer), transfer.starts.sum());
+    }
+    sink.family("chat_transfers_active", "gauge", "Transferências em andamento, por handler.");
+    for (Transfer transfer : Transfer.values()) {
+      sink.sample("chat_transfers_active", label("handler", transfer), transfer.active.sum());
+    }
+    sink.family("chat_transfer_port_failures_total", "counter",
+        "Conexões recusadas ou perdidas na porta de transferência, por motivo.");
+    for (TransferFailure failure : TransferFailure.values()) {
+      sink.sample("chat_transfer_port_failures_total", label("reason", failure), failure.failures.sum());
+    }
+
+    int queued = 0;
+    int deepest = 0;
+    for (ChatSession session : Server.sessions()) {
+      int depth = session.queuedFrames();
+      queued += depth;
+      deepest = Math.max(deepest, depth);
+    }
+    sink.family("chat_outbound_queued_frames", "gauge", "Mensagens nas filas de saída dos clientes.");
+    sink.sample("chat_outbound_queued_frames", null, queued);
+    sink.family("chat_outbound_queue_max", "gauge", "Maior fila de saída de um cliente.");
+    sink.sample("chat_outbound_queue_max", null, deepest);
+    sink.family("chat_outbound_dropped_total", "counter", "Mensagens descartadas de filas de saída cheias.");
+    sink.sample("chat_outbound_dropped_total", null, outboundDrops.sum());
+    sink.family("chat_outbound_slow_consumers_total", "counter", "Clientes desconectados por fila de saída cheia.");
+    sink.sample("chat_outbound_slow_consumers_total", null, slowConsumerDisconnects.sum());
+    sink.family("chat_write_batches_total", "counter", "Escritas no socket das conexões de chat.");
+    sink.sample("chat_write_batches_total", null, BatchStats.batches());
+    sink.family("chat_write_frames_total", "counter", "Mensagens enviadas nessas escritas.");
+    sink.sample("chat_write_frames_total", null, BatchStats.frames());
+
+    sink.family("chat_cluster_peers_connected", "gauge", "Nós do cluster com conexão de saída ativa.");
+    sink.sample("chat_cluster_peers_connected", null, Cluster.connectedPeers());
+    sink.family("chat_cluster_queued_frames", "gauge", "Mensagens esperando envio para outros nós.");
+    sink.sample("chat_cluster_queued_frames", null, Cluster.queuedFrames());
+
+    sink.family("chat_log_appended_total", "counter", "Mensagens gravadas no log de mensagens.");
+    sink.sample("chat_log_appended_total", null, MessageLog.appended());
+    sink.family("chat_log_dropped_total", "counter", "Mensagens que não entraram no log (fila cheia).");
+    sink.sample("chat_log_dropped_total", null, MessageLog.dropped());
+    sink.family("chat_log_batches_total", "counter", "Lotes gravados no log.");
+    sink.sample("chat_log_batches_total", null, MessageLog.batches());
+    sink.family("chat_log_syncs_total", "counter", "msync do log.");
+    sink.sample("chat_log_syncs_total", null, MessageLog.syncs());
+    sink.family("chat_log_pending", "gauge", "Mensagens esperando gravação no log.");
+    sink.sample("chat_log_pending", null, MessageLog.pending());
+
+    sink.family("chat_server_log_written_total", "counter", "Eventos escritos pelo log do servidor.");
+    sink.sample("chat_server_log_written_total", null, ServerLog.written());
+    sink.family("chat_server_log_dropped_total", "counter", "Eventos descartados com o buffer do log cheio.");
+    sink.sample("chat_server_log_dropped_total", null, ServerLog.dropped());
+    sink.family("chat_server_log_sampled_total", "counter", "Eventos DEBUG e INFO descartados pela amostragem.");
+    sink.sample("chat_server_log_sampled_total", null, ServerLog.sampled());
+    sink.family("chat_server_log_pending", "gauge", "Eventos esperando escrita no log do servidor.");
+    sink.sample("chat_server_log_pending", null, ServerLog.pending());
+
+    sink.family("chat_file_cache_hits_total", "counter", "Downloads servidos do cache de arquivos.");
+    sink.sample("chat_file_cache_hits_total", null, FileCache.hits());
+    sink.family("chat_file_cache_misses_total", "counter", "Downloads que não estavam no cache.");
+    sink.sample("chat_file_cache_misses_total", null, FileCache.misses());
+    sink.family("chat_file_cache_mapped_bytes", "gauge", "Bytes mapeados pelo cache de arquivos.");
+    sink.sample("chat_file_cache_mapped_bytes", null, FileCache.mappedBytes());
+
+    sink.family("chat_file_store_used_bytes", "gauge", "Bytes dos arquivos compartilhados armazenados.");
+    sink.sample("chat_file_store_used_bytes", null, FileStore.usedBytes());
+    sink.family("chat_file_store_staging_bytes", "gauge", "Bytes reservados pelos uploads em andamento.");
+    sink.sample("chat_file_store_staging_bytes", null, FileStore.stagingBytes());
+
+    sink.family("jvm_threads", "gauge", "Threads da JVM (plataforma).");
+    sink.sample("jvm_threads", null, ManagementFactory.getThreadMXBean().getThreadCount());
+    sink.family("jvm_heap_used_bytes", "gauge", "Heap em uso.");
+    sink.sample("jvm_heap_used_bytes", null, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    long rss = residentBytes();
+    if (rss >= 0) {
+      sink.family("process_resident_memory_bytes", "gauge", "Memória residente do processo (RSS).");
+      sink.sample("process_resident_memory_bytes", null, rss);
+    }
+  }
+
+  private static String label(String name, Enum<?> value) {
+    return name + "=\"" + value.name().toLowerCase(Locale.ROOT) + "\"";
+  }
+
+  /**
+   * RSS do processo, lido de /proc; -1 fora do Linux.
+   */
+  private static long residentBytes() {
+    Path status = Paths.get("/proc/self/status");
+    try {
+      for (String line : Files.readAllLines(status)) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // Sem /proc: a métrica não é exibida.
+    }
+    return -1;
+  }
+
+  /**
+   * Todas as métricas no formato de texto do Prometheus.
+   */
+  static String render() {
+    StringBuilder out = new StringBuilder(8192);
+    collect(new Sink() {
+      @Override
+      public void family(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+      }
+
+      @Override
+      public void sample(String name, String label, Number value) {
+        out.append(name);
+        if (label != null) {
+          out.append('{').append(label).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+      }
+    });
+    return out.toString();
+  }
+
+  /**
+   * As métricas como atributos do JMX: o nome, seguido dos valores dos
+   * rótulos (chat_messages_total.room).
+   */
+  private static Map<String, Number> attributes() {
+    Map<String, Number> values = new LinkedHashMap<>();
+    collect(new Sink() {
+      @Override
+      public void family(String name, String type, String help) {
+      }
+
+      @Override
+      public void sample(String name, String label, Number value) {
+        values.put(label == null ? name : name + "." + label.replaceAll("^[^\"]*\"|\"$", ""), value);
+      }
+    });
+    return values;
+  }
+
+  // ---- Porta de métricas ----
+
+  private static void serve(ServerSocket serverSocket) {
+    while (true) {
+      try (Socket socket = serverSocket.accept()) {
+        socket.setSoTimeout(2000);
+        InputStream in = socket.getInputStream();
+        String request = readLine(in);
+        boolean http = request.startsWith("GET ");
+        if (http) {
+          // Os cabeçalhos do pedido são ignorados.
+          for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+            continue;
+          }
+        }
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        if (http) {
+          out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+              + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(body);
+        out.flush();
+      } catch (IOException e) {
+        ServerLog.warn("Erro na porta de métricas", e);
+      }
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    for (int b; (b = in.read()) != -1 && b != '\n' && line.size() < 8192;) {
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    return line.toString(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * O MBean servidor:type=Metrics. Os atributos são lidos a cada consulta.
+   */
+  private static final class Bean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+      Number value = attributes().get(name);
+      if (value == null) {
+        throw new AttributeNotFoundException(name);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+      Map<String, Number> values = attributes();
+      AttributeList list = new AttributeList();
+      for (String name : names) {
+        if (values.containsKey(name)) {
+          list.add(new Attribute(name, values.get(name)));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Métricas são somente leitura: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      Map<String, Number> values = attributes();
+      List<MBeanAttributeInfo> infos = new ArrayList<>(values.size());
+      for (Map.Entry<String, Number> entry : values.entrySet()) {
+        infos.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(),
+            true, false, false));
+      }
+      return new MBeanInfo(Metrics.class.getName(), "Métricas do servidor de chat",
+          infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+  }
+}
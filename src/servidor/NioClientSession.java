@@ -0,0 +1,492 @@
+package servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import protocolo.BinaryCodec;
+import protocolo.Codec;
+import protocolo.Compression;
+
+/**
+ * Sessão de chat de um cliente atendido pelo NioServer. Faz o enquadramento
+ * das linhas (ou dos quadros, no protocolo binário) recebidas e mantém uma
+ * fila de saída limitada que só é escrita
+ * pelo reactor dono da conexão. Todos os métodos on*() rodam na thread do reactor;
+ * sendMessage() pode ser chamado de qualquer thread.
+ *
+ * Com chat-deflate negociado, o que chega é descomprimido antes do
+ * enquadramento das linhas, e cada lote de saída é comprimido em um único
+ * buffer terminado com SYNC_FLUSH.
+ */
+final class NioClientSession implements ChatSession {
+  // Limite de tamanho de uma linha, para que um cliente não esgote a memória
+  // do servidor enviando dados sem '\n'.
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+  // Tamanho do cabeçalho de um quadro binário.
+  private static final int FRAME_HEADER = 4;
+
+  private final SocketChannel channel;
+  private final NioServer.Reactor reactor;
+  // Quem enfileira pode ser um reactor, que nunca deve bloquear.
+  private final OutboundQueue outbound = new OutboundQueue(false);
+  private final AtomicBoolean writeScheduled = new AtomicBoolean();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private volatile boolean slowConsumer;
+  // Instante em que a escrita foi pedida ao reactor, usado para limitar a
+  // espera da coalescência (server.write.lingerMicros).
+  private volatile long writeRequestedAt;
+  // Bytes que sobraram de uma escrita parcial. Ficam fora da fila para que a
+  // política DROP_OLDEST nunca descarte uma mensagem já parcialmente enviada.
+  private ByteBuffer current;
+  private SelectionKey key;
+  private volatile String username;
+
+  // Bytes de uma linha (ou quadro) ainda incompleta. Só é alocado quando necessário.
+  private byte[] partialLine;
+  private int partialLength;
+
+  private volatile Set<String> features = Collections.emptySet();
+  private volatile Codec codec = Codec.TEXT;
+  private final CommandDispatcher dispatcher = new CommandDispatcher(this);
+  // Compressão do chat. Só são usados pela thread do reactor.
+  private Inflater inflater;
+  private ByteBuffer inflated;
+  private Deflater deflater;
+  private byte[] deflated;
+  private int deflatedLength;
+  // A resposta HELLO_OK: vai sem compressão, e tudo depois dela comprimido.
+  private byte[] compressAfter;
+  // Mensagens no último lote montado por fillBatch, para o BatchStats.
+  private int batchFrames;
+
+  NioClientSession(SocketChannel channel, NioServer.Reactor reactor) {
+    this.channel = channel;
+    this.reactor = reactor;
+  }
+
+  void attach(SelectionKey key) {
+    this.key = key;
+  }
+
+  @Override
+  public String getUsername() {
+    return this.username;
+  }
+
+  @Override
+  public boolean supports(String feature) {
+    return features.contains(feature);
+  }
+
+  @Override
+  public Codec codec() {
+    return codec;
+  }
+
+  @Override
+  public int queuedFrames() {
+    return outbound.size();
+  }
+
+  @Override
+  public void sendFrame(byte[] frame) {
+    if (closed.get()) {
+      return;
+    }
+    if (!outbound.offer(frame)) {
+      // Cliente lento demais para a política configurada. O fechamento é feito
+      // pelo reactor, já que quem chama pode estar no meio de um broadcast.
+      if (!slowConsumer) {
+        slowConsumer = true;
+        reactor.requestWrite(this);
+      }
+      return;
+    }
+    if (writeScheduled.compareAndSet(false, true)) {
+      writeRequestedAt = System.nanoTime();
+      reactor.requestWrite(this);
+    }
+  }
+
+  long writeRequestedAt() {
+    return writeRequestedAt;
+  }
+
+  /**
+   * Lê o que estiver disponível no canal e processa cada linha ou quadro completo.
+   */
+  void onReadable(ByteBuffer readBuffer) throws IOException {
+    readBuffer.clear();
+    int read = channel.read(readBuffer);
+    if (read == -1) {
+      close();
+      return;
+    }
+    readBuffer.flip();
+
+    if (inflater == null) {
+      process(readBuffer);
+    }
+    // A negociação pode ter ligado a compressão no meio deste buffer.
+    if (inflater != null && readBuffer.hasRemaining() && !closed.get()) {
+      inflate(readBuffer);
+    }
+  }
+
+  private void inflate(ByteBuffer input) throws IOException {
+    inflater.setInput(input);
+    try {
+      while (!closed.get()) {
+        inflated.clear();
+        int count = inflater.inflate(inflated);
+        if (count == 0) {
+          if (inflater.needsInput()) {
+            return;
+          }
+          throw new IOException("Fluxo comprimido do chat encerrado ou inválido");
+        }
+        inflated.flip();
+        process(inflated);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Fluxo comprimido do chat inválido: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Processa cada linha ou quadro completo do buffer. Para se a compressão
+   * for ligada, deixando o restante no buffer; a troca para o protocolo
+   * binário vale já para os bytes seguintes.
+   */
+  private void process(ByteBuffer readBuffer) throws IOException {
+    boolean wasCompressed = inflater != null;
+    while (readBuffer.hasRemaining() && !closed.get() && (inflater != null) == wasCompressed) {
+      boolean complete = codec == Codec.BINARY ? nextFrame(readBuffer) : nextLine(readBuffer);
+      if (!complete) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Consome bytes do buffer até completar uma linha.
+   *
+   * @return false se o buffer acabou antes do '\n'.
+   */
+  private boolean nextLine(ByteBuffer readBuffer) throws IOException {
+    int start = readBuffer.position();
+    int newline = -1;
+    for (int i = start; i < readBuffer.limit(); i++) {
+      if (readBuffer.get(i) == '\n') {
+        newline = i;
+        break;
+      }
+    }
+
+    int end = newline == -1 ? readBuffer.limit() : newline;
+    appendPartial(readBuffer, end - start);
+    if (newline == -1) {
+      return false;
+    }
+    readBuffer.get(); // descarta o '\n'
+
+    int length = partialLength;
+    if (length > 0 && partialLine[length - 1] == '\r') {
+      length--;
+    }
+    String line = new String(partialLine, 0, length, StandardCharsets.UTF_8);
+    partialLine = null;
+    partialLength = 0;
+    onLine(line);
+    return true;
+  }
+
+  /**
+   * Consome bytes do buffer até completar um quadro binário. Um quadro que
+   * chegou inteiro é decodificado direto do buffer de leitura, sem cópia.
+   *
+   * @return false se o buffer acabou antes do fim do quadro.
+   */
+  private boolean nextFrame(ByteBuffer readBuffer) throws IOException {
+    if (partialLength == 0 && readBuffer.remaining() >= FRAME_HEADER) {
+      int length = readBuffer.getInt(readBuffer.position());
+      BinaryCodec.checkLength(length);
+      if (readBuffer.remaining() >= FRAME_HEADER + length) {
+        int limit = readBuffer.limit();
+        int end = readBuffer.position() + FRAME_HEADER + length;
+        readBuffer.position(readBuffer.position() + FRAME_HEADER);
+        readBuffer.limit(end);
+        try {
+          onFrame(readBuffer);
+        } finally {
+          readBuffer.limit(limit);
+          readBuffer.position(end);
+        }
+        return true;
+      }
+    }
+
+    // Quadro dividido entre leituras: junta os pedaços em partialLine.
+    if (partialLength < FRAME_HEADER) {
+      appendPartial(readBuffer, Math.min(FRAME_HEADER - partialLength, readBuffer.remaining()));
+      if (partialLength < FRAME_HEADER) {
+        return false;
+      }
+    }
+    int length = ByteBuffer.wrap(partialLine, 0, FRAME_HEADER).getInt();
+    BinaryCodec.checkLength(length);
+    int missing = FRAME_HEADER + length - partialLength;
+    appendPartial(readBuffer, Math.min(missing, readBuffer.remaining()));
+    if (partialLength < FRAME_HEADER + length) {
+      return false;
+    }
+    ByteBuffer frame = ByteBuffer.wrap(partialLine, FRAME_HEADER, length);
+    partialLine = null;
+    partialLength = 0;
+    onFrame(frame);
+    return true;
+  }
+
+  private void appendPartial(ByteBuffer buffer, int count) throws IOException {
+    if (partialLength + count > MAX_LINE_LENGTH + FRAME_HEADER) {
+      throw new IOException("Linha excede o tamanho máximo permitido");
+    }
+    if (partialLine == null) {
+      partialLine = new byte[Math.max(count, 128)];
+    } else if (partialLength + count > partialLine.length) {
+      partialLine = Arrays.copyOf(partialLine, Math.max(partialLength + count, partialLine.length * 2));
+    }
+    buffer.get(partialLine, partialLength, count);
+    partialLength += count;
+  }
+
+  private void onLine(String line) {
+    if (this.username == null && features.isEmpty() && compressAfter == null && Handshake.isHello(line)) {
+      // ---- NEGOCIAÇÃO ----
+      Set<String> agreed = Handshake.agree(line);
+      this.features = agreed;
+      byte[] helloOk = ChatSession.encodeLine(Handshake.helloOkLine(agreed));
+      if (agreed.contains(Compression.CHAT_DEFLATE)) {
+        // O cliente comprime tudo o que envia depois do HELLO.
+        inflater = new Inflater();
+        inflated = ByteBuffer.allocate(16 * 1024);
+        compressAfter = helloOk;
+      }
+      sendFrame(helloOk);
+      if (agreed.contains(BinaryCodec.FEATURE)) {
+        // O HELLO_OK já está na fila, em texto; o resto vai em quadros.
+        codec = Codec.BINARY;
+      }
+      return;
+    }
+
+    if (this.username == null) {
+      // A primeira linha recebida é o nome de usuário.
+      login(line);
+      return;
+    }
+
+    if (!dispatcher.dispatch(line)) {
+      close();
+    }
+  }
+
+  private void onFrame(ByteBuffer frame) throws IOException {
+    if (this.username == null) {
+      // O primeiro quadro depois da negociação é o de login.
+      login(BinaryCodec.decodeLogin(frame));
+      return;
+    }
+    if (!dispatcher.dispatch(frame)) {
+      close();
+    }
+  }
+
+  /**
+   * ---- LÓGICA DE "LOGIN" ----
+   */
+  private void login(String name) {
+    // Com o nome inválido ou em uso, username fica null e a próxima mensagem é
+    // tratada como outra tentativa de login.
+    if (!Server.validUsername(name)) {
+      sendMessage(Server.NAME_INVALID);
+      return;
+    }
+    this.username = name;
+    if (!Server.addClient(this.username, this)) {
+      this.username = null;
+      sendMessage(Server.NAME_IN_USE);
+      return;
+    }
+    sendMessage("Você entrou no chat. Digite 'sair' para se desconectar.");
+  }
+
+  /**
+   * Escreve o máximo possível da fila de saída sem bloquear. As mensagens
+   * pendentes são enviadas juntas em uma escrita com gathering. Se o socket
+   * não aceitar tudo, passa a observar OP_WRITE até a fila esvaziar.
+   *
+   * @param batch Array de trabalho do reactor, com server.write.maxBatch posições.
+   */
+  void onWritable(ByteBuffer[] batch) throws IOException {
+    if (closed.get()) {
+      return;
+    }
+    if (slowConsumer) {
+      ServerLog.log(ServerLog.Level.WARN, "Cliente não está consumindo mensagens. Desconectando.", this.username,
+          null, -1, -1, null);
+      close();
+      return;
+    }
+    while (true) {
+      int count = fillBatch(batch);
+      if (count == 0) {
+        key.interestOps(SelectionKey.OP_READ);
+        writeScheduled.set(false);
+        // Outra thread pode ter enfileirado algo entre o último poll() e o set(false).
+        if (outbound.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+          return;
+        }
+        continue;
+      }
+
+      channel.write(batch, 0, count);
+      BatchStats.record(batchFrames);
+
+      int unfinished = 0;
+      while (unfinished < count && !batch[unfinished].hasRemaining()) {
+        unfinished++;
+      }
+      if (unfinished < count) {
+        // Janela TCP cheia: guarda o que sobrou e continua quando o socket
+        // puder ser escrito.
+        current = remainder(batch, unfinished, count);
+        Arrays.fill(batch, 0, count, null);
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+      Arrays.fill(batch, 0, count, null);
+    }
+  }
+
+  /**
+   * Preenche o lote com a sobra da escrita anterior e as mensagens da fila.
+   */
+  private int fillBatch(ByteBuffer[] batch) {
+    int count = 0;
+    batchFrames = 0;
+    if (current != null) {
+      batch[count++] = current;
+      current = null;
+    }
+    if (deflater != null) {
+      return fillCompressedBatch(batch, count);
+    }
+    byte[] frame;
+    while (count < batch.length && (frame = outbound.poll()) != null) {
+      // O array pode ser o mesmo de outras sessões; o wrap só cria uma visão
+      // com posição própria sobre ele, sem copiar os bytes.
+      batch[count++] = ByteBuffer.wrap(frame);
+      batchFrames++;
+      if (frame == compressAfter) {
+        // As próximas mensagens já vão comprimidas, no próximo lote.
+        compressAfter = null;
+        deflater = new Deflater(Handshake.LEVEL);
+        deflated = new byte[4 * 1024];
+        break;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Comprime as mensagens pendentes em um único buffer, terminado com
+   * SYNC_FLUSH para que o cliente possa descomprimir tudo imediatamente.
+   */
+  private int fillCompressedBatch(ByteBuffer[] batch, int count) {
+    byte[] frame;
+    while (batchFrames < batch.length && (frame = outbound.poll()) != null) {
+      deflater.setInput(frame);
+      while (!deflater.needsInput()) {
+        deflateInto(Deflater.NO_FLUSH);
+      }
+      batchFrames++;
+    }
+    if (batchFrames == 0) {
+      return count;
+    }
+    do {
+      deflateInto(Deflater.SYNC_FLUSH);
+    } while (deflatedLength == deflated.length);
+    // Cópia própria: o buffer de trabalho é reutilizado no próximo lote, e
+    // este pode ficar pendente em current.
+    batch[count++] = ByteBuffer.wrap(Arrays.copyOf(deflated, deflatedLength));
+    deflatedLength = 0;
+    return count;
+  }
+
+  private void deflateInto(int flush) {
+    if (deflatedLength == deflated.length) {
+      deflated = Arrays.copyOf(deflated, deflated.length * 2);
+    }
+    deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength, flush);
+  }
+
+  /**
+   * Junta em um único buffer os bytes ainda não enviados do lote. Só acontece
+   * quando o cliente não está acompanhando o ritmo das mensagens.
+   */
+  private static ByteBuffer remainder(ByteBuffer[] batch, int from, int to) {
+    if (to - from == 1) {
+      return batch[from];
+    }
+    int size = 0;
+    for (int i = from; i < to; i++) {
+      size += batch[i].remaining();
+    }
+    ByteBuffer merged = ByteBuffer.allocate(size);
+    for (int i = from; i < to; i++) {
+      merged.put(batch[i]);
+    }
+    merged.flip();
+    return merged;
+  }
+
+  /**
+   * Fecha a conexão e, se o usuário já tinha feito login, o remove do chat.
+   */
+  void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (this.username != null) {
+      Server.removeClient(this.username, this);
+    }
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      ServerLog.warn("Erro ao fechar a conexão do cliente", e);
+    }
+    outbound.close();
+    current = null;
+    if (inflater != null) {
+      inflater.end();
+    }
+    if (deflater != null) {
+      deflater.end();
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package servidor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Modo não bloqueante do servidor de chat. Em vez de uma thread por cliente,
+ * um pequeno conjunto fixo de reactors (cada um com seu próprio Selector)
+ * atende todas as conexões, de forma que usuários ociosos não ocupam threads.
+ * A thread que chama run() apenas aceita conexões e as distribui entre os
+ * reactors em round-robin.
+ */
+final class NioServer {
+  private final int port;
+  private final Reactor[] reactors;
+
+  NioServer(int port, int reactorCount) throws IOException {
+    this.port = port;
+    this.reactors = new Reactor[reactorCount];
+    for (int i = 0; i < reactorCount; i++) {
+      reactors[i] = new Reactor();
+    }
+  }
+
+  /**
+   * Inicia os reactors e fica aceitando conexões. Só retorna em caso de erro.
+   */
+  void run() throws IOException {
+    for (int i = 0; i < reactors.length; i++) {
+      Thread thread = new Thread(reactors[i], "chat-reactor-" + i);
+      thread.start();
+    }
+
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.bind(new InetSocketAddress(port), 1024);
+      ServerLog.info("Servidor (NIO, " + reactors.length + " reactors) iniciando na porta " + port
+          + ". Aguardando clientes...");
+
+      int next = 0;
+      while (true) {
+        // accept() continua bloqueante aqui: esta thread não faz mais nada.
+        SocketChannel channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        // As escritas já são coalescidas pelas sessões; Nagle só acrescentaria atraso.
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        reactors[next].register(channel);
+        next = (next + 1) % reactors.length;
+      }
+    }
+  }
+
+  /**
+   * Um event loop: espera eventos de leitura/escrita no seu Selector e os
+   * repassa para as sessões registradas nele.
+   */
+  static final class Reactor implements Runnable {
+    // Buffer de leitura compartilhado por todas as sessões do reactor.
+    // Conexões ociosas não precisam manter nenhum buffer próprio.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<NioClientSession> pendingWrites = new ConcurrentLinkedQueue<>();
+    // Sessões aguardando o fim da janela de coalescência, em ordem de pedido
+    // (e portanto de deadline, já que a janela é a mesma para todas).
+    private final ArrayDeque<NioClientSession> lingering = new ArrayDeque<>();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[OutboundQueue.MAX_BATCH];
+
+    Reactor() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+      pendingChannels.add(channel);
+      selector.wakeup();
+    }
+
+    /**
+     * Pede ao reactor que passe a observar a escrita da sessão. Chamado por
+     * qualquer thread que enfileire uma mensagem para ela.
+     */
+    void requestWrite(NioClientSession session) {
+      pendingWrites.add(session);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          long timeoutMillis = lingerTimeoutMillis();
+          if (timeoutMillis > 0) {
+            selector.select(timeoutMillis);
+          } else {
+            selector.select();
+          }
+          registerPendingChannels();
+          flushPendingWrites();
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            NioClientSession session = (NioClientSession) key.attachment();
+            if (!key.isValid()) {
+              session.close();
+              continue;
+            }
+            try {
+              if (key.isReadable()) {
+                session.onReadable(readBuffer);
+              }
+              if (key.isValid() && key.isWritable()) {
+                session.onWritable(writeBatch);
+              }
+            } catch (IOException e) {
+              session.close();
+            }
+          }
+        } catch (Exception e) {
+          // Um erro inesperado não pode derrubar o reactor e todas as suas conexões.
+          ServerLog.error("Erro no reactor", e);
+        }
+      }
+    }
+
+    private void registerPendingChannels() {
+      SocketChannel channel;
+      while ((channel = pendingChannels.poll()) != null) {
+        try {
+          NioClientSession session = new NioClientSession(channel, this);
+          session.attach(channel.register(selector, SelectionKey.OP_READ, session));
+          ServerLog.info("Novo cliente conectado: " + channel.getRemoteAddress());
+          session.sendMessage(Handshake.helloLine());
+          session.sendMessage("Bem-vindo ao Chat! Por favor, digite seu nome de usuário:");
+        } catch (IOException e) {
+          try {
+            channel.close();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+    }
+
+    /**
+     * Escreve as sessões cuja janela de coalescência já terminou. As demais
+     * continuam esperando, acumulando mensagens para uma única escrita.
+     */
+    private void flushPendingWrites() {
+      NioClientSession session;
+      while ((session = pendingWrites.poll()) != null) {
+        lingering.add(session);
+      }
+
+      long now = System.nanoTime();
+      while ((session = lingering.peek()) != null
+          && now - session.writeRequestedAt() >= OutboundQueue.LINGER_NANOS) {
+        lingering.poll();
+        try {
+          session.onWritable(writeBatch);
+        } catch (IOException e) {
+          session.close();
+        }
+      }
+    }
+
+    /**
+     * Tempo até o fim da janela de coalescência mais antiga, ou 0 se nenhuma
+     * sessão está esperando (select sem timeout).
+     */
+    private long lingerTimeoutMillis() {
+      NioClientSession first = lingering.peek();
+      if (first == null) {
+        return 0;
+      }
+      long remaining = first.writeRequestedAt() + OutboundQueue.LINGER_NANOS - System.nanoTime();
+      return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999));
+    }
+  }
+}
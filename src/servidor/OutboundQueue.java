@@ -0,0 +1,132 @@
+package servidor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fila de saída limitada de uma sessão de chat. Quem envia uma mensagem apenas
+ * a enfileira; a escrita no socket fica por conta do writer da própria sessão
+ * (a thread de escrita do ClientHandler ou o reactor no modo nio). Assim, um
+ * cliente lento não trava quem está fazendo o broadcast.
+ *
+ * O que fazer quando a fila enche é definido por server.outbound.policy.
+ */
+final class OutboundQueue {
+
+  /**
+   * Política aplicada quando a fila de um cliente está cheia.
+   */
+  enum OverflowPolicy {
+    /** Descarta a mensagem mais antiga da fila para abrir espaço. */
+    DROP_OLDEST,
+    /** Desconecta o cliente lento. */
+    DISCONNECT,
+    /** Espera até server.outbound.blockTimeoutMs; se não houver espaço, desconecta. */
+    BLOCK
+  }
+
+  static final int CAPACITY = ServerConfig.getInt("server.outbound.capacity", 1024);
+  static final OverflowPolicy POLICY = OverflowPolicy
+      .valueOf(ServerConfig.get("server.outbound.policy", "drop_oldest").toUpperCase());
+  static final long BLOCK_TIMEOUT_MS = ServerConfig.getLong("server.outbound.blockTimeoutMs", 1000);
+
+  // Coalescência de escritas: o writer junta até MAX_BATCH mensagens pendentes
+  // e faz um único flush, esperando no máximo LINGER_NANOS por mensagens extras.
+  static final int MAX_BATCH = ServerConfig.getInt("server.write.maxBatch", 64);
+  static final long LINGER_NANOS = TimeUnit.MICROSECONDS
+      .toNanos(ServerConfig.getLong("server.write.lingerMicros", 1000));
+
+  // Marca o fim da fila para o writer da sessão.
+  static final byte[] CLOSE = new byte[0];
+
+  private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(CAPACITY);
+  private final boolean canBlock;
+
+  /**
+   * @param canBlock false quando quem enfileira pode ser uma thread de event
+   *                 loop, que nunca deve bloquear. Nesse caso a política BLOCK
+   *                 se comporta como DISCONNECT.
+   */
+  OutboundQueue(boolean canBlock) {
+    this.canBlock = canBlock;
+  }
+
+  /**
+   * Enfileira uma mensagem já codificada.
+   *
+   * @param frame Os bytes da mensagem, incluindo o '\n'.
+   * @return false se o cliente não está consumindo e deve ser desconectado.
+   */
+  boolean offer(byte[] frame) {
+    if (queue.offer(frame)) {
+      return true;
+    }
+
+    switch (POLICY) {
+      case DROP_OLDEST:
+        // Outras threads podem estar enfileirando ao mesmo tempo: tenta até conseguir.
+        do {
+          if (queue.poll() != null) {
+            Metrics.outboundDropped();
+          }
+        } while (!queue.offer(frame));
+        return true;
+      case BLOCK:
+        if (canBlock) {
+          try {
+            if (queue.offer(frame, BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+              return true;
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        Metrics.slowConsumer();
+        return false;
+      case DISCONNECT:
+      default:
+        Metrics.slowConsumer();
+        return false;
+    }
+  }
+
+  /**
+   * Retira a próxima mensagem, ou null se a fila está vazia.
+   */
+  byte[] poll() {
+    return queue.poll();
+  }
+
+  /**
+   * Retira a próxima mensagem, esperando até que exista uma.
+   */
+  byte[] take() throws InterruptedException {
+    return queue.take();
+  }
+
+  /**
+   * Retira a próxima mensagem, esperando no máximo o tempo informado.
+   *
+   * @return A mensagem, ou null se o tempo acabou.
+   */
+  byte[] poll(long timeoutNanos) throws InterruptedException {
+    return queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  boolean isEmpty() {
+    return queue.isEmpty();
+  }
+
+  int size() {
+    return queue.size();
+  }
+
+  /**
+   * Descarta o que estiver pendente e acorda o writer com a marca CLOSE.
+   */
+  void close() {
+    do {
+      queue.clear();
+    } while (!queue.offer(CLOSE));
+  }
+}
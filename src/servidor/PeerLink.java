@@ -0,0 +1,133 @@
+package servidor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conexão de saída deste nó para outro nó do cluster. Quem roteia uma
+ * mensagem apenas a enfileira; uma thread própria escreve as mensagens
+ * pendentes em lote, com um único flush, como o writer das sessões de chat.
+ * Mensagens para um mesmo nó, vindas de vários usuários, viajam juntas.
+ *
+ * Se a conexão cai, a thread tenta reconectar. Ao (re)conectar, lê o desafio
+ * do outro nó e envia o HELLO, assinado com o segredo do cluster, e a lista
+ * de usuários deste nó antes de qualquer outra mensagem. Enquanto
+ * o nó está fora do ar, as mensagens para ele são descartadas.
+ */
+final class PeerLink {
+  private static final int CAPACITY = ServerConfig.getInt("server.cluster.queueCapacity", 65536);
+  private static final int MAX_BATCH = 256;
+  private static final long RETRY_MS = 1000;
+  private static final long MAX_RETRY_MS = 10000;
+  private static final int CONNECT_TIMEOUT = 5000;
+
+  final String address;
+  private final String host;
+  private final int port;
+  private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(CAPACITY);
+  private volatile boolean connected;
+
+  PeerLink(String address) {
+    int colon = address.lastIndexOf(':');
+    this.address = address;
+    this.host = address.substring(0, colon);
+    this.port = Integer.parseInt(address.substring(colon + 1));
+  }
+
+  /**
+   * Inicia a thread de conexão e escrita.
+   */
+  void start() {
+    Thread writer = new Thread(this::run, "cluster-link-" + address);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Enfileira uma mensagem já codificada por Cluster.
+   *
+   * @return false se o nó está desconectado ou a fila está cheia.
+   */
+  boolean offer(byte[] frame) {
+    return connected && queue.offer(frame);
+  }
+
+  boolean isConnected() {
+    return connected;
+  }
+
+  int queued() {
+    return queue.size();
+  }
+
+  private void run() {
+    long retry = RETRY_MS;
+    while (true) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        byte[] nonce = new byte[Cluster.NONCE_SIZE];
+        socket.setSoTimeout(Cluster.HANDSHAKE_TIMEOUT);
+        new DataInputStream(socket.getInputStream()).readFully(nonce);
+        socket.setSoTimeout(0);
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+        // A partir daqui as mensagens são aceitas; a lista de usuários é
+        // montada depois, então nenhuma entrada ou saída se perde no meio.
+        connected = true;
+        ServerLog.info("Cluster: conectado ao nó " + address);
+        for (byte[] frame : Cluster.greeting(nonce)) {
+          out.write(frame);
+        }
+        out.flush();
+        retry = RETRY_MS;
+        writeLoop(out);
+      } catch (IOException e) {
+        if (connected) {
+          ServerLog.warn("Cluster: conexão com o nó " + address + " perdida", e);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      connected = false;
+      queue.clear();
+
+      try {
+        Thread.sleep(retry);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      retry = Math.min(retry * 2, MAX_RETRY_MS);
+    }
+  }
+
+  /**
+   * Escreve as mensagens pendentes em lotes de até MAX_BATCH, com um flush
+   * por lote. Não espera por mensagens extras: o que chegar enquanto o lote
+   * está sendo escrito vai no próximo.
+   */
+  private void writeLoop(OutputStream out) throws IOException, InterruptedException {
+    while (true) {
+      byte[] frame = queue.poll(30, TimeUnit.SECONDS);
+      if (frame == null) {
+        // Link ocioso: um quadro vazio mantém a conexão e detecta queda.
+        frame = Cluster.PING;
+      }
+      out.write(frame);
+      int batchSize = 1;
+      while (batchSize < MAX_BATCH && (frame = queue.poll()) != null) {
+        out.write(frame);
+        batchSize++;
+      }
+      out.flush();
+    }
+  }
+}
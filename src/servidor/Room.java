@@ -0,0 +1,67 @@
+package servidor;
+
+import java.util.Arrays;
+
+/**
+ * Uma sala de chat e as sessões que estão nela. As mensagens da sala só
+ * passam pelos seus membros, e não por todos os usuários do servidor.
+ *
+ * Os membros ficam em um array copiado a cada entrada ou saída (copy-on-write):
+ * o broadcast, bem mais frequente, percorre o array sem lock e sem iterator.
+ */
+final class Room {
+  final String name;
+  private volatile ChatSession[] members = new ChatSession[0];
+  // Uma sala vazia é fechada e sai do registro; quem chega depois cria outra.
+  private boolean closed;
+
+  Room(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Retrato dos membros no momento da chamada. Não deve ser modificado.
+   */
+  ChatSession[] members() {
+    return members;
+  }
+
+  /**
+   * @return false se a sala já foi fechada.
+   */
+  synchronized boolean add(ChatSession session) {
+    if (closed) {
+      return false;
+    }
+    ChatSession[] current = members;
+    for (ChatSession member : current) {
+      if (member == session) {
+        return true;
+      }
+    }
+    ChatSession[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = session;
+    members = updated;
+    return true;
+  }
+
+  /**
+   * @return true se a sala ficou vazia e foi fechada.
+   */
+  synchronized boolean remove(ChatSession session) {
+    ChatSession[] current = members;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == session) {
+        ChatSession[] updated = new ChatSession[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, i);
+        System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+        members = updated;
+        break;
+      }
+    }
+    if (members.length == 0 && !Rooms.DEFAULT.equals(name)) {
+      closed = true;
+    }
+    return closed;
+  }
+}
@@ -0,0 +1,97 @@
+package servidor;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro das salas e da sala atual de cada usuário. Todo usuário está em
+ * exatamente uma sala; ao entrar no chat, na sala padrão.
+ *
+ * A sala atual é guardada por sessão, e não por nome: numa reconexão, a
+ * sessão antiga pode sair depois que a nova entrou com o mesmo nome, e cada
+ * uma só mexe na própria entrada.
+ */
+final class Rooms {
+  static final String DEFAULT = "geral";
+  // Nomes curtos e sem espaços, para caberem no protocolo de texto.
+  private static final int MAX_NAME_LENGTH = 32;
+
+  private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+  private static final Map<ChatSession, Room> current = new ConcurrentHashMap<>();
+
+  private Rooms() {
+  }
+
+  /**
+   * Normaliza o nome pedido pelo usuário (sem '#', minúsculo).
+   *
+   * @return O nome, ou null se não for válido.
+   */
+  static String normalize(String roomName) {
+    String name = roomName.trim();
+    if (name.startsWith("#")) {
+      name = name.substring(1);
+    }
+    if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || name.indexOf(' ') >= 0) {
+      return null;
+    }
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Coloca a sessão na sala, tirando-a da sala em que estava.
+   *
+   * @return A sala anterior, ou null se a sessão não estava em nenhuma.
+   */
+  static Room join(ChatSession session, String roomName) {
+    Room room;
+    do {
+      room = rooms.computeIfAbsent(roomName, Room::new);
+    } while (!room.add(session));
+
+    Room previous = current.put(session, room);
+    if (previous != null && previous != room) {
+      removeFrom(previous, session);
+    }
+    return previous;
+  }
+
+  /**
+   * Tira a sessão da sala atual, quando o usuário sai do chat.
+   *
+   * @return A sala em que estava, ou null.
+   */
+  static Room leave(ChatSession session) {
+    Room room = current.remove(session);
+    if (room != null) {
+      removeFrom(room, session);
+    }
+    return room;
+  }
+
+  /**
+   * A sala atual do usuário, ou null se ele não está conectado.
+   */
+  static Room roomOf(String username) {
+    ChatSession session = UserRegistry.get(username);
+    return session == null ? null : current.get(session);
+  }
+
+  /**
+   * A sala com o nome informado, ou null se ela não existe neste servidor.
+   */
+  static Room find(String roomName) {
+    return rooms.get(roomName);
+  }
+
+  static int count() {
+    return rooms.size();
+  }
+
+  private static void removeFrom(Room room, ChatSession session) {
+    if (room.remove(session)) {
+      rooms.remove(room.name, room);
+    }
+  }
+}
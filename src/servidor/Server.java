@@ -1,38 +1,125 @@
 package servidor;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Function;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
+import protocolo.BinaryCodec;
+import protocolo.Codec;
+import protocolo.Compression;
+
 public class Server {
-  private static final int PORT = 12345;
+  private static final int PORT = ServerConfig.getInt("server.port", 12345);
+  // "blocking" (uma thread por cliente) ou "nio" (event loop com Selector)
+  private static final String MODE = ServerConfig.get("server.mode", "blocking");
 
   // Um pool de threads para gerenciar os clientes de forma eficiente.
   // Evita o custo de criar uma nova thread para cada cliente.
-  private static final ExecutorService pool = Executors.newCachedThreadPool();
-  private static final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+  // Com server.executor=virtual, cada tarefa roda em uma virtual thread (JDK 21+).
+  private static final ExecutorService pool = createPool(ServerConfig.get("server.executor", "cached"));
+  // Respostas a um login recusado. Terminam com LOGIN_RETRY, que o cliente
+  // usa para saber que deve enviar o nome de novo.
+  static final String LOGIN_RETRY = "Digite outro nome:";
+  static final String NAME_IN_USE = "Servidor: Esse nome de usuário já está em uso. " + LOGIN_RETRY;
+  static final int MAX_USERNAME_LENGTH = 32;
+  static final String NAME_INVALID = "Servidor: Nome de usuário inválido. Use de 1 a " + MAX_USERNAME_LENGTH
+      + " caracteres, sem espaços. " + LOGIN_RETRY;
+  // Mensagens de chat e privadas, em bytes UTF-8. Deixa espaço para o
+  // horário, o nome do remetente e o "(privado)" dentro de um quadro binário.
+  static final int MAX_MESSAGE_BYTES = BinaryCodec.MAX_FRAME_SIZE - 1024;
+  // Nomes de arquivo, em bytes UTF-8 (o limite comum dos sistemas de arquivos).
+  static final int MAX_FILE_NAME_BYTES = 255;
   private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("HH:mm");
-
-  private static final Map<String, Object[]> sharedFiles = new ConcurrentHashMap<>();
+  // Usuários que recebem automaticamente os arquivos enviados para @all.
+  private static final Set<String> autoReceivers = ConcurrentHashMap.newKeySet();
+  // Ofertas privadas entregues e ainda não aceitas: destinatário -> remetente
+  // -> nome do arquivo. Um /accept só prepara a transferência se a oferta está
+  // aqui, e o nome vai no TRANSFER_READY para o remetente conferir o arquivo.
+  private static final Map<String, Map<String, String>> pendingOffers = new ConcurrentHashMap<>();
 
   public static void main(String[] args) {
-    System.out.println("Iniciando servidor do chat...");
+    ServerLog.info("Iniciando servidor do chat...");
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      MessageLog.close();
+      // Os resumos vão direto para a saída, depois do que ainda estava no log.
+      ServerLog.close();
+      System.out.print(BatchStats.summary());
+      System.out.print(FileCache.summary());
+      System.out.print(MessageLog.summary());
+    }));
+    Metrics.start();
+
+    try {
+      FileStore.start();
+    } catch (IOException e) {
+      ServerLog.error("Erro ao preparar o armazenamento de arquivos", e);
+      return;
+    }
+
+    if (MessageLog.ENABLED) {
+      try {
+        MessageLog.start();
+      } catch (IOException e) {
+        ServerLog.error("Erro ao abrir o log de mensagens", e);
+        return;
+      }
+      History.warmUp();
+    }
+
+    if (Mailboxes.ENABLED) {
+      try {
+        Mailboxes.start();
+      } catch (IOException e) {
+        ServerLog.error("Erro ao abrir as caixas de entrada offline", e);
+        return;
+      }
+    }
+
+    try {
+      TransferPort.start();
+    } catch (IOException e) {
+      ServerLog.error("Erro ao abrir a porta de transferência " + TransferPort.PORT, e);
+      return;
+    }
+
+    if (Cluster.enabled()) {
+      try {
+        Cluster.start();
+      } catch (IOException e) {
+        ServerLog.error("Erro ao abrir a porta do cluster " + Cluster.PORT, e);
+        return;
+      }
+    }
+
+    if ("nio".equalsIgnoreCase(MODE)) {
+      try {
+        int reactors = ServerConfig.getInt("server.nio.reactors", Runtime.getRuntime().availableProcessors());
+        new NioServer(PORT, reactors).run();
+      } catch (IOException e) {
+        ServerLog.error("Erro no servidor", e);
+      }
+      return;
+    }
 
     try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-      System.out.println("Servidor iniciando na porta " + PORT + ". Aguardando clientes...");
+      ServerLog.info("Servidor iniciando na porta " + PORT + ". Aguardando clientes...");
 
       while (true) {
         // O método accept() é bloqueante: ele espera até que um cliente se conecte.
         Socket clientSocket = serverSocket.accept();
-        System.out.println("Novo cliente conectado: " + clientSocket.getRemoteSocketAddress());
+        ServerLog.info("Novo cliente conectado: " + clientSocket.getRemoteSocketAddress());
 
         // Cria um novo handler para o cliente e o submete ao pool de threads.
         // O servidor principal não fica bloqueado e pode aceitar outros clientes.
@@ -40,49 +127,248 @@ public class Server {
         pool.execute(clientHandler);
       }
     } catch (IOException e) {
-      System.err.println("Erro no servidor: " + e.getMessage());
-      e.printStackTrace();
+      ServerLog.error("Erro no servidor", e);
+    }
+  }
+
+  /**
+   * Cria o executor usado pelos handlers de chat e de transferência de arquivos.
+   * O executor de virtual threads é obtido por reflexão para que o projeto
+   * continue compilando e rodando em JDKs anteriores ao 21.
+   */
+  private static ExecutorService createPool(String executor) {
+    if ("virtual".equalsIgnoreCase(executor)) {
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) factory.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        ServerLog.warn("Virtual threads não disponíveis nesta JVM (requer JDK 21+). Usando pool de threads comum.");
+      }
+    }
+    return Executors.newCachedThreadPool();
+  }
+
+  /**
+   * Executa uma tarefa no pool de threads do servidor.
+   */
+  static void execute(Runnable task) {
+    pool.execute(task);
+  }
+
+  /**
+   * A sessão de um usuário conectado neste servidor, ou null.
+   */
+  static ChatSession session(String username) {
+    return UserRegistry.get(username);
+  }
+
+  /**
+   * Retrato das sessões dos usuários conectados neste servidor. Não deve ser
+   * modificado.
+   */
+  static ChatSession[] sessions() {
+    return UserRegistry.snapshot();
+  }
+
+  /**
+   * Indica se o nome pode ser usado no login. O nome vai em todas as
+   * mensagens do usuário, então o tamanho é limitado, e é um campo dos
+   * comandos de texto (@nome), então não tem espaços nem caracteres de
+   * controle.
+   */
+  static boolean validUsername(String username) {
+    if (username.isEmpty() || username.length() > MAX_USERNAME_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < username.length(); i++) {
+      char c = username.charAt(i);
+      if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+        return false;
+      }
     }
+    return true;
+  }
+
+  /**
+   * Indica se o nome de arquivo pode ser anunciado. Ele vai como um campo
+   * dos comandos de texto (INCOMING_FILE, PUSH_READY...), então não tem
+   * espaços nem caracteres de controle. Os clientes e o diretório de uploads
+   * usam o nome num caminho, então ele também não tem separadores de
+   * diretório e não é "." nem "..".
+   */
+  static boolean validFileName(String fileName) {
+    if (fileName.isEmpty() || ".".equals(fileName) || "..".equals(fileName)) {
+      return false;
+    }
+    for (int i = 0; i < fileName.length(); i++) {
+      char c = fileName.charAt(i);
+      if (Character.isWhitespace(c) || Character.isISOControl(c) || c == '/' || c == '\\') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Tamanho do texto em UTF-8, calculado só quando pode passar de max.
+   */
+  static boolean fitsUtf8(String text, int max) {
+    return text.length() * 3 <= max || text.getBytes(StandardCharsets.UTF_8).length <= max;
   }
 
   /**
    * Adiciona um cliente à lista de clientes conectados.
-   * Este método é chamado pelo ClientHandler após o usuário se identificar.
+   * Este método é chamado pela sessão do cliente após o usuário se identificar.
    * 
    * @param username O nome de usuário.
-   * @param handler  A instância do ClientHandler associada.
+   * @param handler  A sessão associada (ClientHandler ou NioClientSession).
+   * @return false se o nome já está em uso, neste nó ou em outro do cluster;
+   *         nesse caso nada muda e a sessão deve pedir outro nome.
    */
-  public static void addClient(String username, ClientHandler handler) {
-    clients.put(username, handler);
-    System.out.println("Usuário " + username + " entrou no chat");
+  public static boolean addClient(String username, ChatSession handler) {
+    // O diretório do cluster é atualizado de forma assíncrona: entre nós, a
+    // verificação é só a melhor possível.
+    if (Cluster.isRemote(username) || !UserRegistry.add(username, handler)) {
+      ServerLog.info("Login recusado: nome em uso", username);
+      return false;
+    }
+    Rooms.join(handler, Rooms.DEFAULT);
+    Cluster.userJoined(handler);
+    ServerLog.info("Usuário entrou no chat", username);
+    announce(Rooms.roomOf(username), username + " entrou no chat");
+    // O que chegou enquanto ele estava offline vai em uma única escrita.
+    Mailboxes.deliver(handler);
+    return true;
   }
 
   /**
-   * Remove um cliente da lista quando ele se desconecta.
+   * Remove um cliente da lista quando ele se desconecta e avisa a sala em
+   * que ele estava.
    * 
    * @param username O nome de usuário a ser removido.
+   * @param handler  A sessão que está saindo. Se o nome estiver registrado
+   *                 com outra sessão, nada é removido.
+   */
+  public static void removeClient(String username, ChatSession handler) {
+    if (!UserRegistry.remove(username, handler)) {
+      return;
+    }
+    autoReceivers.remove(username);
+    pendingOffers.remove(username);
+    ServerLog.info("Usuário saiu do chat", username);
+    Cluster.userLeft(username);
+    announce(Rooms.leave(handler), username + " saiu do chat.");
+  }
+
+  /**
+   * Muda o usuário de sala (/join). A sala é criada se ainda não existir.
    */
-  public static void removeClient(String username) {
-    clients.remove(username);
-    System.out.println("Usuário " + username + " saiu do chat.");
+  static void joinRoom(String username, String roomName) {
+    ChatSession handler = UserRegistry.get(username);
+    String name = Rooms.normalize(roomName);
+    if (handler == null) {
+      return;
+    }
+    if (name == null) {
+      handler.sendMessage("Servidor: Nome de sala inválido. Use até 32 caracteres, sem espaços.");
+      return;
+    }
+    Room previous = Rooms.roomOf(username);
+    if (previous != null && previous.name.equals(name)) {
+      handler.sendMessage("Servidor: Você já está na sala #" + name + ".");
+      return;
+    }
+    previous = Rooms.join(handler, name);
+    if (previous != null) {
+      announce(previous, username + " saiu da sala.");
+    }
+    Room room = Rooms.roomOf(username);
+    announce(room, username + " entrou na sala #" + name + ".");
+    handler.sendMessage("Servidor: Você está na sala #" + name + " (" + room.members().length + " usuário(s)).");
   }
 
   /**
-   * Envia uma mensagem para todos os clientes conectados, exceto para o
-   * remetente.
+   * Volta o usuário para a sala padrão (/leave).
+   */
+  static void leaveRoom(String username) {
+    Room room = Rooms.roomOf(username);
+    if (room != null && room.name.equals(Rooms.DEFAULT)) {
+      sendServerMessage(username, "Você já está na sala #" + Rooms.DEFAULT + ".");
+      return;
+    }
+    joinRoom(username, Rooms.DEFAULT);
+  }
+
+  /**
+   * Envia um aviso do servidor para todos os membros da sala, inclusive os
+   * conectados em outros nós do cluster.
+   */
+  private static void announce(Room room, String message) {
+    if (room == null) {
+      return;
+    }
+    String line = String.format("[%s] Servidor: %s", LocalDateTime.now().format(FORMATTER), message);
+    Metrics.Message.NOTICE.count();
+    deliverToRoom(room, line, null);
+    Cluster.sendToRoom(room.name, line, false);
+  }
+
+  /**
+   * Entrega uma mensagem já formatada aos membros da sala neste servidor.
+   *
+   * @param exceptUsername Quem não deve receber (o remetente), ou null.
+   */
+  static void deliverToRoom(Room room, String line, String exceptUsername) {
+    // A mensagem é codificada uma única vez por protocolo; todos os
+    // destinatários do mesmo protocolo recebem o mesmo array de bytes.
+    long start = System.nanoTime();
+    byte[][] encoded = new byte[2][];
+    ChatSession[] members = room.members();
+    for (ChatSession member : members) {
+      if (!member.getUsername().equals(exceptUsername)) {
+        member.sendFrame(encodeOnce(member, encoded, codec -> codec.message(line)));
+      }
+    }
+    Metrics.broadcast(System.nanoTime() - start, members.length);
+  }
+
+  /**
+   * Envia uma mensagem para todos os membros da sala do remetente, exceto
+   * para o próprio remetente. Só a sala é percorrida, e não todos os
+   * usuários conectados. No cluster, cada outro nó recebe a mensagem uma
+   * vez e a entrega aos membros da sala que estão nele.
    * 
    * @param senderUsername O nome do remetente.
    * @param message        O conteúdo da mensagem.
    */
   public static void broadcastMessage(String senderUsername, String message) {
+    Room room = Rooms.roomOf(senderUsername);
+    if (room == null) {
+      return;
+    }
     String timestamp = LocalDateTime.now().format(FORMATTER);
+    String line = String.format("[%s] %s: %s", timestamp, senderUsername, message);
+    Metrics.Message.ROOM.count();
 
-    for (ClientHandler handler : clients.values()) {
+    deliverToRoom(room, line, senderUsername);
+    Cluster.sendToRoom(room.name, line, true);
+    History.record(room.name, System.currentTimeMillis(), line);
+    MessageLog.append(MessageLog.ROOM, room.name, senderUsername, message);
+  }
 
-      if (!handler.getUsername().equals(senderUsername)) {
-        handler.sendMessage(String.format("[%s] %s: %s", timestamp, senderUsername, message));
-      }
+  /**
+   * Codifica uma mensagem de broadcast no protocolo da sessão, reaproveitando
+   * a codificação já feita para outra sessão com o mesmo protocolo.
+   *
+   * @param encoded Uma posição por protocolo, preenchida na primeira vez.
+   */
+  private static byte[] encodeOnce(ChatSession session, byte[][] encoded, Function<Codec, byte[]> encoder) {
+    Codec codec = session.codec();
+    int slot = codec == Codec.BINARY ? 1 : 0;
+    if (encoded[slot] == null) {
+      encoded[slot] = encoder.apply(codec);
     }
+    return encoded[slot];
   }
 
   /**
@@ -95,57 +381,165 @@ public class Server {
   public static void sendPrivateMessage(String senderUsername, String recipientUsername, String message) {
     String timestamp = LocalDateTime.now().format(FORMATTER);
 
-    ClientHandler recipientHandler = clients.get(recipientUsername);
+    ChatSession recipientHandler = UserRegistry.get(recipientUsername);
+    String formattedMessage = String.format("[%s] (privado) %s: %s", timestamp, senderUsername, message);
 
     if (recipientHandler != null) {
       // Se o destinatário for encontrado, envia a mensagem para ele.
-      String formattedMessage = String.format("[%s] (privado) %s: %s", timestamp, senderUsername, message);
       recipientHandler.sendMessage(formattedMessage);
+      Metrics.Message.PRIVATE.count();
+      MessageLog.append(MessageLog.PRIVATE, recipientUsername, senderUsername, message);
+    } else if (Cluster.sendToUser(recipientUsername, formattedMessage)) {
+      Metrics.Message.PRIVATE.count();
+      MessageLog.append(MessageLog.PRIVATE, recipientUsername, senderUsername, message);
+    } else if (Mailboxes.depositMessage(recipientUsername, senderUsername, message)) {
+      Metrics.Message.OFFLINE.count();
+      // Usuário conhecido, mas offline: recebe quando voltar.
+      sendServerMessage(senderUsername, "'" + recipientUsername
+          + "' está offline. A mensagem será entregue quando o usuário entrar.");
     } else {
       // Se o destinatário não for encontrado, avisa o remetente.
-      ClientHandler senderHandler = clients.get(senderUsername);
+      ChatSession senderHandler = UserRegistry.get(senderUsername);
       if (senderHandler != null) {
         senderHandler.sendMessage("Servidor: Usuário '" + recipientUsername + "' não encontrado ou offline.");
       }
     }
   }
 
+  /**
+   * Liga ou desliga o recebimento automático dos arquivos enviados para @all.
+   */
+  static void setAutoReceive(String username, boolean enabled) {
+    if (enabled) {
+      autoReceivers.add(username);
+      sendServerMessage(username, "Recebimento automático de arquivos ligado.");
+    } else {
+      autoReceivers.remove(username);
+      sendServerMessage(username, "Recebimento automático de arquivos desligado.");
+    }
+  }
+
+  /**
+   * Envia um aviso do servidor para um usuário, se ele estiver conectado.
+   */
+  static void sendServerMessage(String username, String message) {
+    ChatSession handler = UserRegistry.get(username);
+    if (handler != null) {
+      handler.sendMessage("Servidor: " + message);
+    }
+  }
+
+  /**
+   * Entrega a oferta de um arquivo privado ao destinatário conectado neste
+   * servidor e a guarda até o /accept.
+   */
+  static void offerFile(ChatSession recipient, String sender, String fileName, long fileSize) {
+    recordOffer(recipient.getUsername(), sender, fileName);
+    recipient.sendFrame(recipient.codec().incomingFile(sender, fileName, fileSize));
+  }
+
+  /**
+   * Guarda a oferta de sender para recipient. Uma oferta nova do mesmo
+   * remetente substitui a anterior, como no cliente.
+   */
+  static void recordOffer(String recipient, String sender, String fileName) {
+    pendingOffers.computeIfAbsent(recipient, r -> new ConcurrentHashMap<>()).put(sender, fileName);
+  }
+
   public static void requestFileTransfer(String sender, String recipient, String filePath, long fileSize) {
-    ClientHandler recipientHandler = clients.get(recipient);
+    ChatSession recipientHandler = UserRegistry.get(recipient);
     if (recipientHandler != null) {
-      recipientHandler.sendMessage(String.format("INCOMING_FILE @%s %s %d", sender, filePath, fileSize));
-    } else {
-      clients.get(sender).sendMessage("Servidor: Destinatário " + recipient + " não encontrado.");
+      offerFile(recipientHandler, sender, filePath, fileSize);
+    } else if (!Cluster.sendIncomingFile(recipient, sender, filePath, fileSize)) {
+      if (Mailboxes.depositFileOffer(recipient, sender, filePath, fileSize)) {
+        sendServerMessage(sender, "'" + recipient + "' está offline. A oferta será entregue quando o usuário entrar;"
+            + " o envio começa se você estiver online quando a oferta for aceita.");
+      } else {
+        UserRegistry.get(sender).sendMessage("Servidor: Destinatário " + recipient + " não encontrado.");
+      }
     }
   }
 
+  /**
+   * Prepara o envio privado depois que o destinatário aceitou. Roda no
+   * servidor do destinatário; no cluster, o remetente pode estar em outro nó
+   * e conecta na porta de transferência deste.
+   */
   public static void prepareFileTransfer(String sender, String recipient) {
+    ChatSession senderSession = UserRegistry.get(sender);
+    ChatSession recipientSession = UserRegistry.get(recipient);
+    if (recipientSession == null) {
+      return;
+    }
+    Map<String, String> offers = pendingOffers.get(recipient);
+    String fileName = offers == null ? null : offers.remove(sender);
+    if (fileName == null) {
+      recipientSession.sendMessage("Servidor: Não há oferta de arquivo pendente de '" + sender + "'.");
+      return;
+    }
+    if (senderSession == null && !Cluster.isRemote(sender)) {
+      recipientSession.sendMessage("Servidor: Usuário '" + sender + "' não encontrado ou offline.");
+      return;
+    }
     try {
-      // Define uma faixa de portas para transferência (mais amigável ao firewall)
-      int port = findAvailablePort(13000, 13100);
-      ServerSocket fileSocket = new ServerSocket(port);
-
-      // Inicia uma nova thread para gerenciar a transferência
-      FileTransferHandler transferHandler = new FileTransferHandler(fileSocket, sender, recipient);
-      pool.execute(transferHandler);
+      // Cada lado recebe o seu token para a porta de transferência; o servidor
+      // sabe quem é o remetente pelo token, e não pela ordem de conexão.
+      FileTransferHandler transferHandler = new FileTransferHandler(sender, recipient);
+      String senderToken = TransferPort.register(new TransferPort.Route() {
+        @Override
+        public void connected(Socket socket) {
+          transferHandler.attachSender(socket);
+        }
+
+        @Override
+        public boolean expired() {
+          transferHandler.expire();
+          return true;
+        }
+      });
+      String recipientToken = TransferPort.register(new TransferPort.Route() {
+        @Override
+        public void connected(Socket socket) {
+          transferHandler.attachRecipient(socket);
+        }
+
+        @Override
+        public boolean expired() {
+          transferHandler.expire();
+          return true;
+        }
+      });
 
       // Obtém o endereço IP local do servidor dinamicamente
       String ip = InetAddress.getLocalHost().getHostAddress();
-
-      System.out.println("Iniciando transferência de arquivo. IP: " + ip + ", Porta: " + port);
-
-      // Avisa ambos os clientes para se conectarem ao novo canal usando o IP correto
-      clients.get(sender).sendMessage(String.format("TRANSFER_READY %s %d @%s", ip, port, recipient));
-      clients.get(recipient).sendMessage(String.format("TRANSFER_READY %s %d @%s", ip, port, sender));
+      int port = TransferPort.PORT;
+
+      ServerLog.transfer(ServerLog.Level.INFO, "Transferência privada preparada para " + recipient + " em " + ip + ":" + port,
+          transferHandler.id, sender, null, -1);
+
+      // A compressão é feita de ponta a ponta pelos clientes (o servidor só
+      // repassa os bytes), então só vale se os dois a negociaram.
+      boolean senderDeflate = senderSession != null ? senderSession.supports(Compression.FILE_DEFLATE)
+          : Cluster.remoteSupports(sender, Compression.FILE_DEFLATE);
+      boolean deflate = senderDeflate && recipientSession.supports(Compression.FILE_DEFLATE);
+
+      // Avisa ambos os clientes para se conectarem à porta de transferência usando o IP correto
+      if (senderSession != null) {
+        senderSession.sendFrame(senderSession.codec().transferReady(ip, port, senderToken, recipient, fileName, deflate));
+      } else {
+        Cluster.sendTransferReady(sender, ip, port, senderToken, recipient, fileName, deflate);
+      }
+      recipientSession.sendFrame(recipientSession.codec().transferReady(ip, port, recipientToken, sender, fileName, deflate));
 
     } catch (Exception e) {
-      System.err.println("Erro ao preparar transferência de arquivo: " + e.getMessage());
-      e.printStackTrace();
+      ServerLog.error("Erro ao preparar transferência de arquivo", e);
 
       // Notifica os clientes sobre o erro
-      ClientHandler senderHandler = clients.get(sender);
-      if (senderHandler != null) {
-        senderHandler.sendMessage("Servidor: Erro ao preparar transferência de arquivo.");
+      String error = "Servidor: Erro ao preparar transferência de arquivo.";
+      if (senderSession != null) {
+        senderSession.sendMessage(error);
+      } else {
+        Cluster.sendToUser(sender, error);
       }
     }
   }
@@ -154,39 +548,75 @@ public class Server {
    * Método para iniciar o UPLOAD de um arquivo de broadcast
    */
   public static void initiateBroadcastUpload(String senderUsername, String fileName, long fileSize) {
+    if (fileSize < 0) {
+      sendServerMessage(senderUsername, "Tamanho inválido para o arquivo '" + fileName + "'.");
+      return;
+    }
+    if (fileSize > FileStore.MAX_BYTES) {
+      sendServerMessage(senderUsername, "Arquivo '" + fileName + "' maior que o limite de armazenamento do servidor.");
+      return;
+    }
+    // O espaço fica reservado até o upload terminar, para que vários uploads
+    // simultâneos não passem juntos do limite.
+    if (!FileStore.reserve(fileSize)) {
+      sendServerMessage(senderUsername, "Sem espaço de armazenamento para '" + fileName
+          + "' no momento. Tente mais tarde.");
+      return;
+    }
     try {
       // Gera um nome de arquivo único para evitar colisões
       String uniqueID = UUID.randomUUID().toString();
       String tempFilePath = "temp_uploads/" + uniqueID + "_" + fileName;
 
-      int port = findAvailablePort(13000, 13100);
-      ServerSocket uploadSocket = new ServerSocket(port);
-
-      // Inicia um handler para receber o arquivo do client
-      pool.execute(new FileUploadHandler(uploadSocket, tempFilePath, senderUsername, fileName));
+      // Registra um handler para receber o arquivo do client. O token pode ser
+      // reutilizado para retomar o upload se a conexão cair.
+      FileUploadHandler upload = new FileUploadHandler(tempFilePath, senderUsername, fileName, fileSize);
+      // Se o upload não acontecer, a reserva é devolvida quando o token expira.
+      String token = TransferPort.registerReusable(upload);
 
       String ip = InetAddress.getLocalHost().getHostAddress();
 
       // Avisa o cliente remetente para iniciar o upload
-      clients.get(senderUsername).sendMessage(String.format("UPLOAD_READY %s %d %s", ip, port, fileName));
+      ChatSession sender = UserRegistry.get(senderUsername);
+      sender.sendFrame(sender.codec().uploadReady(ip, TransferPort.PORT, token, fileName));
+
+      // Quem está na sala e tem recebimento automático já conecta agora e
+      // recebe os blocos enquanto o upload acontece.
+      Room room = Rooms.roomOf(senderUsername);
+      for (ChatSession receiver : room == null ? new ChatSession[0] : room.members()) {
+        String username = receiver.getUsername();
+        if (!autoReceivers.contains(username) || username.equals(senderUsername)) {
+          continue;
+        }
+        String pushToken = TransferPort.registerReusable(new FilePushHandler(upload, fileName, fileSize,
+            receiver.supports(Compression.FILE_DEFLATE)));
+        receiver.sendFrame(receiver.codec().pushReady(ip, TransferPort.PORT, pushToken, fileName, fileSize,
+            senderUsername));
+      }
 
     } catch (Exception e) {
-      e.printStackTrace();
-      clients.get(senderUsername).sendMessage("Servidor: Erro preparar o upload do arquivo.");
+      ServerLog.error("Erro ao preparar o upload de " + fileName, e);
+      UserRegistry.get(senderUsername).sendMessage("Servidor: Erro preparar o upload do arquivo.");
     }
   }
 
   /**
-   * Método para iniciar o UPLOAD de um arquivo de broadcast
+   * Anuncia para a sala do remetente um arquivo que acabou de entrar no FileStore. Se o
+   * mesmo conteúdo já tinha sido compartilhado com o mesmo nome, file é a
+   * entrada existente, mas o anúncio sai em nome de quem enviou agora.
    */
-  public static void notifyFileBroadcast(String senderUsername, String originalFileName, String tempFilePath, long fileSize) {
-    System.out.println("Arquivo " + originalFileName + " recebido de " + senderUsername + ". Notificando a todos.");
-    sharedFiles.put(originalFileName, new Object[]{tempFilePath, fileSize});
+  public static void notifyFileBroadcast(String senderUsername, SharedFile file) {
+    ServerLog.transfer(ServerLog.Level.INFO, "Arquivo recebido. Notificando a sala.", -1, senderUsername, file.name,
+        file.size);
 
-    String notification = String.format("BROADCAST_FILE @%s %s %d", senderUsername, originalFileName, fileSize);
-    for (ClientHandler handler : clients.values()) {
+    Room room = Rooms.roomOf(senderUsername);
+    if (room == null) {
+      return;
+    }
+    byte[][] encoded = new byte[2][];
+    for (ChatSession handler : room.members()) {
       if (!handler.getUsername().equals(senderUsername))
-        handler.sendMessage(notification);
+        handler.sendFrame(encodeOnce(handler, encoded, codec -> codec.broadcastFile(senderUsername, file.name, file.size)));
     }
   }
 
@@ -194,43 +624,34 @@ public class Server {
    * Método para iniciar o UPLOAD de um arquivo de broadcast
    */
   public static void handleDownloadRequest(String requesterUsername, String fileName) {
-    if (sharedFiles.containsKey(fileName)) {
-      try {
-        Object[] fileInfo = sharedFiles.get(fileName);
-        String filePathOnServer = (String) fileInfo[0];
-        long fileSize = (long) fileInfo[1];
-
-        int port = findAvailablePort(13000, 13100);
-        ServerSocket downloadSocket = new ServerSocket(port);
-
-        pool.execute(new FileDownloadHandler(downloadSocket, filePathOnServer));
-        
-        String ip = InetAddress.getLocalHost().getHostAddress();
-        clients.get(requesterUsername).sendMessage(String.format("DOWNLOAD_READY %s %d %s %d", ip, port, fileName, fileSize));
-
-      } catch (Exception e) {
-        e.printStackTrace();
-        clients.get(requesterUsername).sendMessage("Servidor: Erro ao preparar o download do arquivo.");
-      }
-    } else { 
-      clients.get(requesterUsername).sendMessage("Servidor: Arquivo '" + fileName + "' não encontrado ou expirado.");
+    ChatSession requester = UserRegistry.get(requesterUsername);
+    if (requester == null) {
+      return;
     }
-  }
+    SharedFile file = FileStore.acquire(fileName);
+    if (file == null) {
+      requester.sendMessage("Servidor: Arquivo '" + fileName + "' não encontrado ou expirado.");
+      return;
+    }
+    // Até o token ser registrado, a reserva do conteúdo é nossa; depois, o
+    // FileDownloadHandler a libera quando o token expira.
+    boolean registered = false;
+    try {
+      // Reutilizável: o cliente pode reconectar para retomar o download ou
+      // pedir outros trechos do arquivo com o mesmo token.
+      boolean negotiated = requester.supports(Compression.FILE_DEFLATE);
+      String token = TransferPort.registerReusable(new FileDownloadHandler(file, negotiated));
+      registered = true;
 
-  /**
-   * Encontra uma porta disponível na faixa especificada
-   */
-  private static int findAvailablePort(int startPort, int endPort) throws IOException {
-    for (int port = startPort; port < endPort; port++) {
-      try (ServerSocket socket = new ServerSocket(port)) {
-        return port;
-      } catch (Exception e) {
-        System.err.println("Porta: " + port + " ocupada.");
-        continue;
+      String ip = InetAddress.getLocalHost().getHostAddress();
+      requester.sendFrame(requester.codec().downloadReady(ip, TransferPort.PORT, token, fileName, file.size));
+    } catch (Exception e) {
+      ServerLog.error("Erro ao preparar o download de " + fileName, e);
+      requester.sendMessage("Servidor: Erro ao preparar o download do arquivo.");
+    } finally {
+      if (!registered) {
+        FileStore.release(file);
       }
     }
-
-    // Se não encontrou nenhuma porta livre no intervalo
-    throw new RuntimeException("Nenhuma porta livre encontrada no intervalo " + startPort + "-" + endPort);
   }
 }
@@ -0,0 +1,47 @@
+package servidor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Configurações do servidor, lidas do arquivo 'server.properties'.
+ * Propriedades de sistema (-Dchave=valor) têm precedência sobre o arquivo,
+ * e todas as chaves possuem um valor padrão caso não sejam informadas.
+ */
+final class ServerConfig {
+  private static final Properties props = load();
+
+  private ServerConfig() {
+  }
+
+  private static Properties load() {
+    Properties properties = new Properties();
+    try (FileInputStream in = new FileInputStream("server.properties")) {
+      properties.load(in);
+    } catch (IOException e) {
+      System.out.println("Arquivo 'server.properties' não encontrado. Usando valores padrão.");
+    }
+    return properties;
+  }
+
+  static String get(String key, String defaultValue) {
+    String value = System.getProperty(key);
+    if (value == null) {
+      value = props.getProperty(key, defaultValue);
+    }
+    return value.trim();
+  }
+
+  static int getInt(String key, int defaultValue) {
+    return Integer.parseInt(get(key, String.valueOf(defaultValue)));
+  }
+
+  static long getLong(String key, long defaultValue) {
+    return Long.parseLong(get(key, String.valueOf(defaultValue)));
+  }
+
+  static boolean getBoolean(String key, boolean defaultValue) {
+    return Boolean.parseBoolean(get(key, String.valueOf(defaultValue)));
+  }
+}
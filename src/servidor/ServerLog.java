@@ -0,0 +1,284 @@
+package servidor;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log do servidor, assíncrono. Quem registra um evento só ocupa uma posição
+ * de um buffer circular pré-alocado e preenche os campos dela; nada de
+ * System.out (um PrintStream sincronizado) nem de E/S na thread do chat ou
+ * da transferência. Uma única thread formata os eventos e os escreve em lote.
+ *
+ * Cada evento tem nível, mensagem e campos estruturados, escritos como
+ * chave=valor:
+ *
+ * 2024-05-10 14:30:12.345 INFO  [pool-1-thread-3] upload concluído user=ana transfer=12 file=foto.zip bytes=1048576
+ *
+ * Quando o buffer passa de 3/4 da capacidade, só 1 em cada 8 eventos DEBUG e
+ * INFO entra (WARN e ERROR sempre entram); com o buffer cheio, o evento é
+ * descartado. O chat nunca espera pelo log. Os descartes são contados,
+ * avisados no próprio log e exibidos nas métricas.
+ */
+final class ServerLog {
+
+  enum Level {
+    DEBUG, INFO, WARN, ERROR
+  }
+
+  private static final Level LEVEL = Level
+      .valueOf(ServerConfig.get("server.logging.level", "info").toUpperCase());
+  // Arredondada para potência de 2, para achar a posição com uma máscara.
+  private static final int CAPACITY = Integer.highestOneBit(
+      Math.max(64, ServerConfig.getInt("server.logging.capacity", 16384) * 2 - 1));
+  private static final int MASK = CAPACITY - 1;
+  private static final int SAMPLE_THRESHOLD = CAPACITY / 4 * 3;
+  private static final int SAMPLE_RATE = 8;
+  private static final int MAX_BATCH = 1024;
+  private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+      .withZone(ZoneId.systemDefault());
+
+  /**
+   * Uma posição do buffer. Os campos são escritos por quem registra o evento
+   * antes de publicar a sequência, e lidos só pela thread do log depois.
+   */
+  private static final class Slot {
+    volatile long sequence = -1;
+    Level level;
+    long time;
+    String thread;
+    String message;
+    String user;
+    String file;
+    long transfer;
+    long bytes;
+    Throwable error;
+  }
+
+  private static final Slot[] ring = new Slot[CAPACITY];
+  // Próxima posição a ser ocupada; só avança com CAS.
+  private static final AtomicLong tail = new AtomicLong();
+  // Próxima posição a ser escrita; só a thread do log altera.
+  private static volatile long head;
+  private static volatile boolean parked;
+  private static volatile boolean closing;
+  private static final LongAdder written = new LongAdder();
+  private static final LongAdder dropped = new LongAdder();
+  private static final LongAdder sampled = new LongAdder();
+  private static final Thread writer;
+
+  static {
+    for (int i = 0; i < CAPACITY; i++) {
+      ring[i] = new Slot();
+    }
+    writer = new Thread(ServerLog::drainLoop, "server-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  private ServerLog() {
+  }
+
+  static void debug(String message) {
+    log(Level.DEBUG, message, null, null, -1, -1, null);
+  }
+
+  static void info(String message) {
+    log(Level.INFO, message, null, null, -1, -1, null);
+  }
+
+  /**
+   * Evento sobre um usuário.
+   */
+  static void info(String message, String user) {
+    log(Level.INFO, message, user, null, -1, -1, null);
+  }
+
+  static void warn(String message) {
+    log(Level.WARN, message, null, null, -1, -1, null);
+  }
+
+  static void warn(String message, Throwable error) {
+    log(Level.WARN, message, null, null, -1, -1, error);
+  }
+
+  static void error(String message, Throwable error) {
+    log(Level.ERROR, message, null, null, -1, -1, error);
+  }
+
+  /**
+   * Evento de uma transferência de arquivo. Campos desconhecidos ficam null
+   * (ou -1, nos números) e não são escritos.
+   */
+  static void transfer(Level level, String message, long transfer, String user, String file, long bytes) {
+    log(level, message, user, file, transfer, bytes, null);
+  }
+
+  static boolean enabled(Level level) {
+    return level.compareTo(LEVEL) >= 0;
+  }
+
+  /**
+   * Registra um evento. Nunca bloqueia: se não há espaço, o evento é
+   * descartado.
+   */
+  static void log(Level level, String message, String user, String file, long transfer, long bytes,
+      Throwable error) {
+    if (!enabled(level)) {
+      return;
+    }
+    long sequence;
+    do {
+      sequence = tail.get();
+      long used = sequence - head;
+      if (used >= CAPACITY) {
+        dropped.increment();
+        return;
+      }
+      if (used >= SAMPLE_THRESHOLD && level.compareTo(Level.WARN) < 0
+          && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0) {
+        sampled.increment();
+        return;
+      }
+    } while (!tail.compareAndSet(sequence, sequence + 1));
+
+    Slot slot = ring[(int) (sequence & MASK)];
+    slot.level = level;
+    slot.time = System.currentTimeMillis();
+    slot.thread = Thread.currentThread().getName();
+    slot.message = message;
+    slot.user = user;
+    slot.file = file;
+    slot.transfer = transfer;
+    slot.bytes = bytes;
+    slot.error = error;
+    slot.sequence = sequence;
+    if (parked) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Escreve o que estiver no buffer e encerra a thread do log. Chamado ao
+   * desligar o servidor.
+   */
+  static void close() {
+    closing = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(2000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  static long written() {
+    return written.sum();
+  }
+
+  static long dropped() {
+    return dropped.sum();
+  }
+
+  static long sampled() {
+    return sampled.sum();
+  }
+
+  static int pending() {
+    return (int) (tail.get() - head);
+  }
+
+  private static void drainLoop() {
+    StringBuilder out = new StringBuilder(64 * 1024);
+    StringBuilder err = new StringBuilder(4 * 1024);
+    long reportedLost = 0;
+    while (true) {
+      long next = head;
+      int count = 0;
+      for (Slot slot; count < MAX_BATCH && (slot = ring[(int) (next & MASK)]).sequence == next; next++, count++) {
+        format(slot, slot.level.compareTo(Level.WARN) >= 0 ? err : out);
+        // Solta as referências antes de liberar a posição.
+        slot.message = slot.user = slot.file = slot.thread = null;
+        slot.error = null;
+        head = next + 1;
+      }
+
+      long lost = dropped.sum() + sampled.sum();
+      if (lost != reportedLost) {
+        err.append(TIME.format(Instant.now())).append(" WARN  [server-log] eventos de log descartados por falta de espaço")
+            .append(" dropped=").append(dropped.sum()).append(" sampled=").append(sampled.sum()).append('\n');
+        reportedLost = lost;
+      }
+      if (out.length() > 0) {
+        System.out.print(out);
+        System.out.flush();
+        out.setLength(0);
+      }
+      if (err.length() > 0) {
+        System.err.print(err);
+        System.err.flush();
+        err.setLength(0);
+      }
+      written.add(count);
+
+      if (count == 0) {
+        if (closing) {
+          return;
+        }
+        // Buffer vazio: para até chegar um evento (log() acorda a thread).
+        parked = true;
+        if (ring[(int) (head & MASK)].sequence != head && !closing) {
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        parked = false;
+      }
+    }
+  }
+
+  private static void format(Slot slot, StringBuilder line) {
+    line.append(TIME.format(Instant.ofEpochMilli(slot.time))).append(' ');
+    String level = slot.level.name();
+    line.append(level);
+    for (int i = level.length(); i < 6; i++) {
+      line.append(' ');
+    }
+    line.append('[').append(slot.thread).append("] ").append(slot.message);
+    field(line, "user", slot.user);
+    if (slot.transfer >= 0) {
+      line.append(" transfer=").append(slot.transfer);
+    }
+    field(line, "file", slot.file);
+    if (slot.bytes >= 0) {
+      line.append(" bytes=").append(slot.bytes);
+    }
+    if (slot.error != null) {
+      field(line, "error", String.valueOf(slot.error.getMessage()));
+    }
+    line.append('\n');
+    // A pilha só é escrita para ERROR; nos avisos basta a mensagem.
+    if (slot.error != null && slot.level == Level.ERROR) {
+      StringWriter trace = new StringWriter();
+      slot.error.printStackTrace(new PrintWriter(trace));
+      line.append(trace);
+    }
+  }
+
+  private static void field(StringBuilder line, String name, String value) {
+    if (value == null) {
+      return;
+    }
+    line.append(' ').append(name).append('=');
+    if (value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.isEmpty()) {
+      line.append('"').append(value.replace("\"", "\\\"")).append('"');
+    } else {
+      line.append(value);
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package servidor;
+
+import java.nio.file.Path;
+
+/**
+ * Metadados de um arquivo compartilhado com a sala (@all). Vários nomes podem
+ * apontar para o mesmo conteúdo: o arquivo em disco é identificado pelo hash
+ * SHA-256 e guardado uma única vez pelo FileStore.
+ */
+final class SharedFile {
+  /** Nome com que o arquivo foi anunciado e deve ser pedido em /download. */
+  final String name;
+  final String sender;
+  final long size;
+  /** SHA-256 do conteúdo, em hexadecimal. */
+  final String digest;
+  /** Arquivo no diretório do FileStore, compartilhado entre nomes com o mesmo hash. */
+  final Path path;
+  final long sharedAt;
+  /** Último anúncio ou pedido de download; usado na expiração. Protegido pelo FileStore. */
+  long lastAccess;
+
+  SharedFile(String name, String sender, long size, String digest, Path path) {
+    this.name = name;
+    this.sender = sender;
+    this.size = size;
+    this.digest = digest;
+    this.path = path;
+    this.sharedAt = System.currentTimeMillis();
+    this.lastAccess = sharedAt;
+  }
+}
@@ -0,0 +1,229 @@
+package servidor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Porta única de dados para todas as transferências de arquivo (uploads,
+ * downloads e transferências privadas). Em vez de abrir um ServerSocket por
+ * transferência, o servidor gera um token e o envia ao cliente pelo chat; o
+ * cliente conecta nesta porta e envia o token como primeira linha. A conexão
+ * é então entregue à rota registrada para aquele token.
+ */
+final class TransferPort {
+  static final int PORT = ServerConfig.getInt("server.transfer.port", 13000);
+  // Tempo que um token fica válido esperando a conexão do cliente.
+  private static final long TOKEN_TTL_MS = ServerConfig.getLong("server.transfer.tokenTtlMs", 60000);
+  // Tempo máximo para o cliente enviar o token depois de conectar.
+  private static final int HANDSHAKE_TIMEOUT = 10000;
+  // Token: UUID em hexadecimal, sem hífens, seguido de '\n'.
+  private static final int TOKEN_LENGTH = 32;
+
+  /**
+   * Destino de uma conexão que apresentou um token válido.
+   */
+  interface Route {
+    /**
+     * Recebe a conexão, já sem o token. A rota passa a ser dona do socket e
+     * é responsável por fechá-lo. Roda em uma thread do pool do servidor.
+     */
+    void connected(Socket socket) throws IOException;
+
+    /**
+     * Chamado quando o token expira sem que ninguém tenha conectado (ou, nos
+     * tokens reutilizáveis, sem novas conexões dentro da validade).
+     *
+     * @return false para manter o token válido, por exemplo enquanto uma
+     *         transferência com ele ainda está em andamento.
+     */
+    default boolean expired() {
+      return true;
+    }
+  }
+
+  private static final class Entry {
+    final Route route;
+    final boolean reusable;
+    volatile long expiresAt;
+
+    Entry(Route route, boolean reusable) {
+      this.route = route;
+      this.reusable = reusable;
+      this.expiresAt = System.currentTimeMillis() + TOKEN_TTL_MS;
+    }
+  }
+
+  private static final Map<String, Entry> routes = new ConcurrentHashMap<>();
+  private static final AtomicLong transferIds = new AtomicLong();
+
+  private TransferPort() {
+  }
+
+  /**
+   * Abre a porta de dados e começa a aceitar conexões em uma thread própria.
+   */
+  static void start() throws IOException {
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(PORT), 1024);
+
+    Thread acceptor = new Thread(() -> acceptLoop(serverChannel), "transfer-port");
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "transfer-token-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sweeper.scheduleWithFixedDelay(TransferPort::expireTokens, 5, 5, TimeUnit.SECONDS);
+
+    ServerLog.info("Porta de transferência de arquivos: " + PORT);
+  }
+
+  /**
+   * Registra uma rota que aceita uma única conexão.
+   *
+   * @return O token que o cliente deve apresentar.
+   */
+  static String register(Route route) {
+    return register(route, false);
+  }
+
+  /**
+   * Registra uma rota que aceita várias conexões com o mesmo token enquanto ele
+   * não expirar. Cada conexão renova a validade do token.
+   *
+   * @return O token que o cliente deve apresentar.
+   */
+  static String registerReusable(Route route) {
+    return register(route, true);
+  }
+
+  private static String register(Route route, boolean reusable) {
+    String token = UUID.randomUUID().toString().replace("-", "");
+    routes.put(token, new Entry(route, reusable));
+    return token;
+  }
+
+  /**
+   * Número que identifica uma transferência no log do servidor.
+   */
+  static long nextTransferId() {
+    return transferIds.incrementAndGet();
+  }
+
+  private static void acceptLoop(ServerSocketChannel serverChannel) {
+    while (true) {
+      try {
+        SocketChannel channel = serverChannel.accept();
+        // O socket aceito mantém o canal, usado no envio com transferTo e no
+        // repasse com buffer direto.
+        Socket socket = channel.socket();
+        Server.execute(() -> handshake(socket));
+      } catch (IOException e) {
+        Metrics.TransferFailure.ACCEPT.count();
+        ServerLog.warn("Erro na porta de transferência", e);
+      }
+    }
+  }
+
+  /**
+   * Lê o token enviado pelo cliente e entrega a conexão para a rota certa.
+   */
+  private static void handshake(Socket socket) {
+    try {
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+      String token = readToken(socket.getInputStream());
+      socket.setSoTimeout(0);
+
+      Route route = token == null ? null : claim(token);
+      if (route == null) {
+        Metrics.TransferFailure.INVALID_TOKEN.count();
+        ServerLog.warn("Conexão de transferência com token inválido ou expirado: " + socket.getRemoteSocketAddress());
+        socket.close();
+        return;
+      }
+      route.connected(socket);
+    } catch (SocketTimeoutException e) {
+      Metrics.TransferFailure.TIMEOUT.count();
+      ServerLog.warn("Cliente não enviou o token de transferência a tempo: " + socket.getRemoteSocketAddress());
+      closeQuietly(socket);
+    } catch (Exception e) {
+      ServerLog.error("Erro na conexão de transferência", e);
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * A rota do token, ou null se ele não existe ou já expirou. Um token de uso
+   * único é removido aqui; um reutilizável tem a validade renovada.
+   */
+  static Route claim(String token) {
+    Entry entry = routes.get(token);
+    if (entry == null || !entry.reusable && !routes.remove(token, entry)) {
+      return null;
+    }
+    if (entry.reusable) {
+      entry.expiresAt = System.currentTimeMillis() + TOKEN_TTL_MS;
+    }
+    return entry.route;
+  }
+
+  /**
+   * Lê exatamente o token e o '\n', sem consumir nenhum byte além disso: o que
+   * vem depois pertence à transferência.
+   */
+  private static String readToken(InputStream in) throws IOException {
+    byte[] line = in.readNBytes(TOKEN_LENGTH + 1);
+    if (line.length != TOKEN_LENGTH + 1 || line[TOKEN_LENGTH] != '\n') {
+      return null;
+    }
+    return new String(line, 0, TOKEN_LENGTH, StandardCharsets.US_ASCII);
+  }
+
+  private static void expireTokens() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, Entry>> it = routes.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Entry> mapEntry = it.next();
+      Entry entry = mapEntry.getValue();
+      if (entry.expiresAt >= now) {
+        continue;
+      }
+      try {
+        if (entry.route.expired()) {
+          // Um token de uso único que expira é uma transferência que não aconteceu.
+          if (routes.remove(mapEntry.getKey(), entry) && !entry.reusable) {
+            Metrics.TransferFailure.EXPIRED.count();
+          }
+        } else {
+          entry.expiresAt = now + TOKEN_TTL_MS;
+        }
+      } catch (Exception e) {
+        ServerLog.error("Erro ao expirar token de transferência", e);
+        routes.remove(mapEntry.getKey(), entry);
+      }
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
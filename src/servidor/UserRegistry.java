@@ -0,0 +1,172 @@
+package servidor;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Diretório dos usuários conectados neste servidor. As leituras não usam
+ * lock: a busca de uma sessão é a posição do id do usuário num array, e a
+ * lista de todos os usuários é um array imutável, publicado a cada entrada
+ * ou saída (copy-on-write), como os membros de Room.
+ *
+ * O id de um usuário conectado junta a posição (slot) da sessão no array e a
+ * geração dessa posição. O id só é criado depois que o login é aceito e é
+ * devolvido na saída: a posição volta para uma lista de posições livres e é
+ * reaproveitada pelo próximo login, com a geração seguinte. Quem guardou o
+ * id de um usuário que já saiu recebe null, e não a sessão de quem ocupou a
+ * posição depois. Assim, o mapa de nomes e o array têm no máximo o pico de
+ * usuários conectados ao mesmo tempo, e nomes recusados não ocupam nada.
+ *
+ * Entradas e saídas são serializadas por um lock. São raras perto das
+ * leituras, e assim a verificação de nome em uso e a atualização do retrato
+ * acontecem juntas: dois logins com o mesmo nome nunca passam os dois.
+ */
+final class UserRegistry {
+  /**
+   * Sessão que ocupa uma posição, com a geração em que ela entrou.
+   */
+  private static final class Slot {
+    final int generation;
+    final ChatSession session;
+
+    Slot(int generation, ChatSession session) {
+      this.generation = generation;
+      this.session = session;
+    }
+  }
+
+  // Id de cada usuário conectado.
+  private static final Map<String, Long> ids = new ConcurrentHashMap<>();
+  private static final Object lock = new Object();
+
+  // Sessão de cada posição. Trocado por um maior, sob o lock, quando falta espaço.
+  private static volatile AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<>(1024);
+  // Retrato das sessões conectadas. Não deve ser modificado.
+  private static volatile ChatSession[] snapshot = new ChatSession[0];
+
+  // Estado das posições, só acessado com o lock: a última geração de cada
+  // uma, as posições livres (uma pilha) e a primeira nunca usada.
+  private static int[] generations = new int[1024];
+  private static int[] free = new int[1024];
+  private static int freeCount;
+  private static int nextSlot;
+
+  private UserRegistry() {
+  }
+
+  /**
+   * O id do usuário conectado, ou -1 se ele não está conectado. O id deixa
+   * de valer quando o usuário sai, mesmo que ele entre de novo.
+   */
+  static long id(String username) {
+    Long id = ids.get(username);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * A sessão conectada com o nome de usuário, ou null.
+   */
+  static ChatSession get(String username) {
+    Long id = ids.get(username);
+    return id == null ? null : get(id);
+  }
+
+  /**
+   * A sessão do id, ou null se o usuário já saiu.
+   */
+  static ChatSession get(long id) {
+    int index = (int) id;
+    AtomicReferenceArray<Slot> current = slots;
+    Slot slot = index >= 0 && index < current.length() ? current.get(index) : null;
+    return slot != null && slot.generation == (int) (id >>> 32) ? slot.session : null;
+  }
+
+  /**
+   * Registra a sessão com o nome de usuário.
+   *
+   * @return false se já há uma sessão com esse nome.
+   */
+  static boolean add(String username, ChatSession session) {
+    synchronized (lock) {
+      if (ids.containsKey(username)) {
+        return false;
+      }
+      int index = freeCount > 0 ? free[--freeCount] : nextSlot++;
+      if (index >= generations.length) {
+        grow(index);
+      }
+      // A geração fica em 31 bits para o id nunca ser negativo.
+      int generation = generations[index] = (generations[index] + 1) & Integer.MAX_VALUE;
+      // A posição é preenchida antes de o nome apontar para ela.
+      slots.set(index, new Slot(generation, session));
+      ids.put(username, ((long) generation << 32) | index);
+
+      ChatSession[] current = snapshot;
+      ChatSession[] updated = new ChatSession[current.length + 1];
+      System.arraycopy(current, 0, updated, 0, current.length);
+      updated[current.length] = session;
+      snapshot = updated;
+      return true;
+    }
+  }
+
+  /**
+   * Remove a sessão, se ela é a registrada com o nome de usuário, e libera a
+   * posição e o id.
+   *
+   * @return false se o nome não está registrado com essa sessão.
+   */
+  static boolean remove(String username, ChatSession session) {
+    synchronized (lock) {
+      long id = id(username);
+      if (id < 0 || get(id) != session) {
+        return false;
+      }
+      int index = (int) id;
+      ids.remove(username);
+      slots.set(index, null);
+      free[freeCount++] = index;
+
+      ChatSession[] current = snapshot;
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == session) {
+          ChatSession[] updated = new ChatSession[current.length - 1];
+          System.arraycopy(current, 0, updated, 0, i);
+          System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+          snapshot = updated;
+          break;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Retrato das sessões conectadas no momento da chamada, sem cópia.
+   */
+  static ChatSession[] snapshot() {
+    return snapshot;
+  }
+
+  static int size() {
+    return snapshot.length;
+  }
+
+  /**
+   * Aumenta os arrays das posições para caber index. Chamado com o lock;
+   * quem leu o array de sessões antigo ainda vê as sessões que estavam nele.
+   */
+  private static void grow(int index) {
+    int length = Math.max(index + 1, generations.length * 2);
+    generations = Arrays.copyOf(generations, length);
+    free = Arrays.copyOf(free, length);
+    AtomicReferenceArray<Slot> current = slots;
+    AtomicReferenceArray<Slot> larger = new AtomicReferenceArray<>(length);
+    for (int i = 0; i < current.length(); i++) {
+      larger.set(i, current.get(i));
+    }
+    slots = larger;
+  }
+}